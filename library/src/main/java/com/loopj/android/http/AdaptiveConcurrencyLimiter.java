@@ -0,0 +1,203 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adjusts number of requests allowed to run against single host, using additive-increase /
+ * multiplicative-decrease (AIMD) on round-trip times and errors observed by {@link
+ * AsyncHttpRequest}. Once set to {@link RequestDispatcher#setConcurrencyLimiter(AdaptiveConcurrencyLimiter)},
+ * the limit of each host grows by one with every successful attempt made while the host is
+ * reasonably busy, and shrinks by backoff ratio, {@link #DEFAULT_BACKOFF_RATIO} by default,
+ * whenever an attempt fails with I/O error or overload status (429, 503), or takes much longer
+ * than usual for that host.
+ * <p>&nbsp;</p>
+ * Limits computed here never exceed {@link RequestDispatcher#getMaxRequestsPerHost()}. Up to
+ * {@link #DEFAULT_MAX_HOSTS} hosts are measured by default, least recently used ones start over
+ * from the initial limit.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 20;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    /**
+     * Attempt is considered slow, if it took this many times longer than the long-term average
+     */
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+    public static final int DEFAULT_MAX_HOSTS = 64;
+
+    // smoothing factors of the short-term and long-term round-trip time averages
+    private static final double SHORT_RTT_ALPHA = 0.25;
+    private static final double LONG_RTT_ALPHA = 0.02;
+    // samples needed for the long-term average to be meaningful
+    private static final int WARM_UP_SAMPLES = 10;
+
+    private final Map<String, HostState> hostStates;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+
+    /**
+     * Creates new AdaptiveConcurrencyLimiter with default limits
+     */
+    public AdaptiveConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * Creates new AdaptiveConcurrencyLimiter
+     *
+     * @param initialLimit limit of host, which was not measured yet
+     * @param minLimit     lowest limit of host, must be at least 1
+     * @param maxLimit     highest limit of host, must be at least minLimit
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, DEFAULT_BACKOFF_RATIO, DEFAULT_LATENCY_TOLERANCE, DEFAULT_MAX_HOSTS);
+    }
+
+    /**
+     * Creates new AdaptiveConcurrencyLimiter
+     *
+     * @param initialLimit     limit of host, which was not measured yet
+     * @param minLimit         lowest limit of host, must be at least 1
+     * @param maxLimit         highest limit of host, must be at least minLimit
+     * @param backoffRatio     ratio the limit is multiplied by on failed or slow attempt, above
+     *                         0 and below 1
+     * @param latencyTolerance how many times longer than the long-term average attempt takes to
+     *                         be considered slow, above 1
+     * @param maxHosts         maximum number of measured hosts, least recently used are dropped
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, double latencyTolerance, final int maxHosts) {
+        Utils.asserts(minLimit >= 1, "minLimit must be at least 1");
+        Utils.asserts(maxLimit >= minLimit, "maxLimit must not be lower than minLimit");
+        Utils.asserts(backoffRatio > 0 && backoffRatio < 1, "backoffRatio must be between 0 and 1");
+        Utils.asserts(latencyTolerance > 1, "latencyTolerance must be above 1");
+        Utils.asserts(maxHosts > 0, "maxHosts must be positive");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.initialLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        this.hostStates = new LinkedHashMap<String, HostState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HostState> eldest) {
+                return size() > maxHosts;
+            }
+        };
+    }
+
+    /**
+     * Returns current limit of requests running at once against the host
+     *
+     * @param host host, as in {@link AsyncHttpRequest#getHostKey()}
+     * @return current limit of the host
+     */
+    public synchronized int getLimit(String host) {
+        HostState state = hostStates.get(host);
+        return state == null ? initialLimit : (int) state.limit;
+    }
+
+    /**
+     * Returns smoothed round-trip time of recent attempts against the host
+     *
+     * @param host host, as in {@link AsyncHttpRequest#getHostKey()}
+     * @return round-trip time in milliseconds, or -1 if the host was not measured yet
+     */
+    public synchronized long getRoundTripTime(String host) {
+        HostState state = hostStates.get(host);
+        return state == null ? -1 : Math.round(state.shortRtt);
+    }
+
+    /**
+     * Returns long-term average round-trip time of attempts against the host, used as the
+     * baseline to detect slow attempts
+     *
+     * @param host host, as in {@link AsyncHttpRequest#getHostKey()}
+     * @return round-trip time in milliseconds, or -1 if the host was not measured yet
+     */
+    public synchronized long getBaselineRoundTripTime(String host) {
+        HostState state = hostStates.get(host);
+        return state == null ? -1 : Math.round(state.longRtt);
+    }
+
+    /**
+     * Returns hosts measured so far
+     *
+     * @return snapshot of measured hosts
+     */
+    public synchronized Set<String> getHosts() {
+        return new HashSet<String>(hostStates.keySet());
+    }
+
+    /**
+     * Forgets measurements of all hosts, i.e. after network connectivity change
+     */
+    public synchronized void reset() {
+        hostStates.clear();
+    }
+
+    /**
+     * Updates limit of the host with result of single attempt to execute request
+     *
+     * @param host          host, as in {@link AsyncHttpRequest#getHostKey()}
+     * @param rttMillis     time from sending the request to receiving the response headers
+     * @param inFlight      number of requests running against the host, including this one
+     * @param isSuccessful  false if the attempt failed in a way indicating overload
+     */
+    public synchronized void onAttempt(String host, long rttMillis, int inFlight, boolean isSuccessful) {
+        HostState state = hostStates.get(host);
+        if (state == null) {
+            state = new HostState(initialLimit, rttMillis);
+            hostStates.put(host, state);
+        } else {
+            state.shortRtt += SHORT_RTT_ALPHA * (rttMillis - state.shortRtt);
+            state.longRtt += LONG_RTT_ALPHA * (rttMillis - state.longRtt);
+        }
+        state.samples++;
+
+        boolean isSlow = state.samples > WARM_UP_SAMPLES && rttMillis > latencyTolerance * state.longRtt;
+        if (!isSuccessful || isSlow) {
+            state.limit = Math.max(minLimit, Math.floor(state.limit * backoffRatio));
+        } else if (inFlight * 2 >= state.limit) {
+            // grow only if the current limit is actually being used
+            state.limit = Math.min(maxLimit, state.limit + 1);
+        }
+    }
+
+    private static class HostState {
+        double limit;
+        double shortRtt;
+        double longRtt;
+        int samples;
+
+        HostState(int limit, long rttMillis) {
+            this.limit = limit;
+            this.shortRtt = rttMillis;
+            this.longRtt = rttMillis;
+        }
+    }
+}
@@ -19,7 +19,6 @@
 package com.loopj.android.http;
 
 import android.content.Context;
-import android.os.Looper;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,15 +28,16 @@ import java.lang.reflect.Field;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import cz.msebera.android.httpclient.Header;
@@ -66,7 +66,10 @@ import cz.msebera.android.httpclient.client.methods.HttpPut;
 import cz.msebera.android.httpclient.client.methods.HttpUriRequest;
 import cz.msebera.android.httpclient.client.params.ClientPNames;
 import cz.msebera.android.httpclient.client.protocol.ClientContext;
+import cz.msebera.android.httpclient.client.utils.URIUtils;
 import cz.msebera.android.httpclient.conn.ClientConnectionManager;
+import cz.msebera.android.httpclient.conn.ConnectionReleaseTrigger;
+import cz.msebera.android.httpclient.conn.DnsResolver;
 import cz.msebera.android.httpclient.conn.params.ConnManagerParams;
 import cz.msebera.android.httpclient.conn.params.ConnPerRouteBean;
 import cz.msebera.android.httpclient.conn.params.ConnRoutePNames;
@@ -129,16 +132,31 @@ public class AsyncHttpClient {
     public static final int DEFAULT_MAX_RETRIES = 5;
     public static final int DEFAULT_RETRY_SLEEP_TIME_MILLIS = 1500;
     public static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_PARSE_THREADS = 2;
+    public static final int DEFAULT_MAX_PARSE_THREADS = 4;
+    public static final int DEFAULT_PARSE_QUEUE_SIZE = 64;
     public static LogInterface log = new LogHandler();
+    private static final long PARSE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static ExecutorService sharedParseExecutor;
     private final DefaultHttpClient httpClient;
     private final HttpContext httpContext;
-    private final Map<Context, List<RequestHandle>> requestMap;
+    private final RequestRegistry requestRegistry;
     private final Map<String, String> clientHeaderMap;
     private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxTotalConnections = DEFAULT_MAX_CONNECTIONS;
+    private final ConnPerRouteBean connPerRoute;
     private int connectTimeout = DEFAULT_SOCKET_TIMEOUT;
     private int responseTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private final RequestDispatcher dispatcher;
+    private final Map<String, CoalescingResponseHandler> coalescedRequests;
     private ExecutorService threadPool;
+    private ExecutorService parseExecutor;
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private volatile Transport transport;
     private boolean isUrlEncodingEnabled = true;
+    private boolean isRequestCoalescingEnabled = false;
+    // redirect handler set to the client cannot be read back
+    private boolean isRedirectEnabled = true;
 
     /**
      * Creates a new AsyncHttpClient with default constructor arguments values
@@ -187,8 +205,10 @@ public class AsyncHttpClient {
         BasicHttpParams httpParams = new BasicHttpParams();
 
         ConnManagerParams.setTimeout(httpParams, connectTimeout);
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(maxConnections));
-        ConnManagerParams.setMaxTotalConnections(httpParams, DEFAULT_MAX_CONNECTIONS);
+        // kept, so the limit can be changed after the connection pool is created
+        connPerRoute = new ConnPerRouteBean(maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, connPerRoute);
+        ConnManagerParams.setMaxTotalConnections(httpParams, maxTotalConnections);
 
         HttpConnectionParams.setSoTimeout(httpParams, responseTimeout);
         HttpConnectionParams.setConnectionTimeout(httpParams, connectTimeout);
@@ -199,33 +219,25 @@ public class AsyncHttpClient {
 
         ClientConnectionManager cm = createConnectionManager(schemeRegistry, httpParams);
         Utils.asserts(cm != null, "Custom implementation of #createConnectionManager(SchemeRegistry, BasicHttpParams) returned null");
+        if (cm instanceof PooledConnectionManager) {
+            // validates only connections idle for a while, instead of every connection before every request
+            HttpConnectionParams.setStaleCheckingEnabled(httpParams, false);
+        }
 
         threadPool = getDefaultThreadPool();
-        requestMap = Collections.synchronizedMap(new WeakHashMap<Context, List<RequestHandle>>());
+        dispatcher = new RequestDispatcher(threadPool, RequestDispatcher.DEFAULT_MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(maxConnections);
+        parseExecutor = getDefaultParseExecutor();
+        requestRegistry = new RequestRegistry();
         clientHeaderMap = new HashMap<String, String>();
+        coalescedRequests = new HashMap<String, CoalescingResponseHandler>();
 
         httpContext = new SyncBasicHttpContext(new BasicHttpContext());
         httpClient = new DefaultHttpClient(cm, httpParams);
         httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
             @Override
             public void process(HttpRequest request, HttpContext context) {
-                if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
-                    request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
-                }
-                for (String header : clientHeaderMap.keySet()) {
-                    if (request.containsHeader(header)) {
-                        Header overwritten = request.getFirstHeader(header);
-                        log.d(LOG_TAG,
-                                String.format("Headers were overwritten! (%s | %s) overwrites (%s | %s)",
-                                        header, clientHeaderMap.get(header),
-                                        overwritten.getName(), overwritten.getValue())
-                        );
-
-                        //remove the overwritten header
-                        request.removeHeader(overwritten);
-                    }
-                    request.addHeader(header, clientHeaderMap.get(header));
-                }
+                addClientHeaders(request);
             }
         });
 
@@ -268,6 +280,27 @@ public class AsyncHttpClient {
         }, 0);
 
         httpClient.setHttpRequestRetryHandler(new RetryHandler(DEFAULT_MAX_RETRIES, DEFAULT_RETRY_SLEEP_TIME_MILLIS));
+        transport = new HttpClientTransport(httpClient);
+    }
+
+    private void addClientHeaders(HttpRequest request) {
+        if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+            request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+        }
+        for (String header : clientHeaderMap.keySet()) {
+            if (request.containsHeader(header)) {
+                Header overwritten = request.getFirstHeader(header);
+                log.d(LOG_TAG,
+                        String.format("Headers were overwritten! (%s | %s) overwrites (%s | %s)",
+                                header, clientHeaderMap.get(header),
+                                overwritten.getName(), overwritten.getValue())
+                );
+
+                //remove the overwritten header
+                request.removeHeader(overwritten);
+            }
+            request.addHeader(header, clientHeaderMap.get(header));
+        }
     }
 
     /**
@@ -298,7 +331,7 @@ public class AsyncHttpClient {
         if (fixNoHttpResponseException) {
             sslSocketFactory = MySSLSocketFactory.getFixedSocketFactory();
         } else {
-            sslSocketFactory = SSLSocketFactory.getSocketFactory();
+            sslSocketFactory = getCachingSocketFactory();
         }
 
         SchemeRegistry schemeRegistry = new SchemeRegistry();
@@ -308,6 +341,15 @@ public class AsyncHttpClient {
         return schemeRegistry;
     }
 
+    private static SSLSocketFactory getCachingSocketFactory() {
+        try {
+            return new CachingSSLSocketFactory();
+        } catch (Throwable t) {
+            log.w(LOG_TAG, "Cannot create TLS session cache, using shared SSLSocketFactory", t);
+            return SSLSocketFactory.getSocketFactory();
+        }
+    }
+
     public static void allowRetryExceptionClass(Class<?> cls) {
         if (cls != null) {
             RetryHandler.addClassToWhitelist(cls);
@@ -446,6 +488,31 @@ public class AsyncHttpClient {
         }
     }
 
+    /**
+     * Aborts connection the entity is being read from, rather than reading rest of the entity to
+     * release the connection for reuse, if the entity, or entity it wraps, is managed by
+     * HttpClient
+     *
+     * @param entity HttpEntity, may be null
+     */
+    public static void abortEntityViaReflection(HttpEntity entity) {
+        try {
+            Field f = null;
+            while (entity instanceof HttpEntityWrapper && !(entity instanceof ConnectionReleaseTrigger)) {
+                if (f == null) {
+                    f = HttpEntityWrapper.class.getDeclaredField("wrappedEntity");
+                    f.setAccessible(true);
+                }
+                entity = (HttpEntity) f.get(entity);
+            }
+            if (entity instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) entity).abortConnection();
+            }
+        } catch (Throwable t) {
+            log.e(LOG_TAG, "wrappedEntity abort", t);
+        }
+    }
+
     /**
      * Get the underlying HttpClient instance. This is useful for setting additional fine-grained
      * settings for requests by accessing the client's ConnectionManager, HttpParams and
@@ -557,10 +624,68 @@ public class AsyncHttpClient {
      */
     public void setThreadPool(ExecutorService threadPool) {
         this.threadPool = threadPool;
+        this.dispatcher.setExecutorService(threadPool);
     }
 
     /**
-     * Get the default threading pool to be used for this HTTP client.
+     * Returns dispatcher, which queues requests by priority and limits number of requests
+     * running at once
+     *
+     * @return RequestDispatcher used by this client
+     */
+    public RequestDispatcher getRequestDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Returns maximum number of requests executed at once, further requests are queued
+     *
+     * @return maximum number of running requests, default is 10
+     */
+    public int getMaxConcurrentRequests() {
+        return dispatcher.getMaxRequests();
+    }
+
+    /**
+     * Sets maximum number of requests executed at once, which also bounds number of threads used
+     * from thread pool. Further requests are queued and started in order of their priority.
+     *
+     * @param maxConcurrentRequests maximum number of running requests, must be at least 1
+     * @see AsyncHttpResponseHandler#setPriority(int)
+     * @see RequestHandle#setPriority(int)
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        dispatcher.setMaxRequests(maxConcurrentRequests);
+    }
+
+    /**
+     * Returns maximum number of requests waiting for execution
+     *
+     * @return maximum number of queued requests, unbounded by default
+     */
+    public int getMaxQueuedRequests() {
+        return dispatcher.getMaxQueuedRequests();
+    }
+
+    /**
+     * Limits number of requests waiting for execution, so burst of requests can't exhaust the
+     * heap. Number of requests rejected so far is available from {@link
+     * RequestDispatcher#getRejectedRequestsCount()}.
+     *
+     * @param maxQueuedRequests maximum number of queued requests, or 0 for unbounded queue
+     * @param rejectPolicy      what to do with requests over limit, one of {@link
+     *                          RequestDispatcher#REJECT_POLICY_FAIL}, {@link
+     *                          RequestDispatcher#REJECT_POLICY_DROP_LOWEST_PRIORITY} or {@link
+     *                          RequestDispatcher#REJECT_POLICY_BLOCK}
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests, int rejectPolicy) {
+        dispatcher.setMaxQueuedRequests(maxQueuedRequests, rejectPolicy);
+    }
+
+    /**
+     * Get the default threading pool to be used for this HTTP client. Number of threads in use
+     * is bounded by {@link #getMaxConcurrentRequests()}, as requests are handed over to the pool
+     * by {@link RequestDispatcher}.
      *
      * @return The default threading pool to be used
      */
@@ -569,14 +694,222 @@ public class AsyncHttpClient {
     }
 
     /**
-     * Provided so it is easier for developers to provide custom ThreadSafeClientConnManager implementation
+     * Returns executor shared by response handlers of this client to decode responses off the
+     * main thread, such as parsing JSON in {@link JsonHttpResponseHandler}. Default executor is
+     * shared by all clients, so it must not be shut down.
+     *
+     * @return current parse executor
+     */
+    public ExecutorService getParseExecutor() {
+        return parseExecutor;
+    }
+
+    /**
+     * Overrides executor shared by response handlers of this client to decode responses off the
+     * main thread. Applies to handlers sent from now on, which don't have their own executor set
+     * by {@link AsyncHttpResponseHandler#setParseExecutor(java.util.concurrent.Executor)}.
+     *
+     * @param parseExecutor an instance of {@link ExecutorService}, must not be null
+     */
+    public void setParseExecutor(ExecutorService parseExecutor) {
+        this.parseExecutor = Utils.notNull(parseExecutor, "parseExecutor");
+    }
+
+    /**
+     * Returns pool of buffers shared by response handlers of this client to read response
+     * bodies into
+     *
+     * @return current buffer pool, {@link BufferPool#getDefault()} unless overridden
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Overrides pool of buffers shared by response handlers of this client. Applies to handlers
+     * sent from now on, which don't have their own pool set by {@link
+     * AsyncHttpResponseHandler#setBufferPool(BufferPool)}.
+     *
+     * @param bufferPool an instance of {@link BufferPool}, must not be null
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = Utils.notNull(bufferPool, "bufferPool");
+    }
+
+    /**
+     * Returns number of responses waiting for decoding by parse executor
+     *
+     * @return number of queued responses, or -1 if the parse executor doesn't report it
+     */
+    public int getParseQueueDepth() {
+        ExecutorService executor = parseExecutor;
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        }
+        return -1;
+    }
+
+    /**
+     * Get the default executor to decode responses, shared by response handlers of this HTTP
+     * client. By default, pool of {@link #DEFAULT_PARSE_THREADS} daemon threads shared by all
+     * clients of the process is used, with at most {@link #DEFAULT_PARSE_QUEUE_SIZE} responses
+     * waiting, as each of them holds its whole body. Once the queue is full, the pool grows up to
+     * {@link #DEFAULT_MAX_PARSE_THREADS} threads, which stop after being idle for a while; further
+     * responses are rejected, and parsed on the thread handing them over, see {@link
+     * AsyncHttpResponseHandler#executeParser(Runnable)}.
+     *
+     * @return The default parse executor to be used
+     */
+    protected ExecutorService getDefaultParseExecutor() {
+        return getSharedParseExecutor();
+    }
+
+    private static synchronized ExecutorService getSharedParseExecutor() {
+        if (sharedParseExecutor == null) {
+            // daemon threads, as the pool is never shut down, outliving any single client
+            sharedParseExecutor = new ThreadPoolExecutor(DEFAULT_PARSE_THREADS, DEFAULT_MAX_PARSE_THREADS, PARSE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(DEFAULT_PARSE_QUEUE_SIZE), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AsyncHttpClient-parse");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedParseExecutor;
+    }
+
+    /**
+     * Provided so it is easier for developers to provide custom ThreadSafeClientConnManager implementation.
+     * Statistics of the pool are available only if {@link PooledConnectionManager} is returned.
      *
      * @param schemeRegistry SchemeRegistry, usually provided by {@link #getDefaultSchemeRegistry(boolean, int, int)}
      * @param httpParams     BasicHttpParams
      * @return ClientConnectionManager instance
      */
     protected ClientConnectionManager createConnectionManager(SchemeRegistry schemeRegistry, BasicHttpParams httpParams) {
-        return new ThreadSafeClientConnManager(httpParams, schemeRegistry);
+        return new PooledConnectionManager(httpParams, schemeRegistry);
+    }
+
+    /**
+     * Sets resolver of host names of new connections, such as {@link CachingDnsResolver}. Has
+     * effect only if the default {@link PooledConnectionManager} is used.
+     *
+     * @param dnsResolver DNS resolver, or null to use the system resolver
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        if (cm instanceof PooledConnectionManager) {
+            ((PooledConnectionManager) cm).setDnsResolver(dnsResolver);
+        } else {
+            log.w(LOG_TAG, "Custom connection manager in use, cannot set DNS resolver");
+        }
+    }
+
+    /**
+     * Opens connections to the host in background and keeps them in the connection pool, so the
+     * next requests to the host don't wait for DNS lookup, TCP connect and TLS handshake. Idle
+     * connections already in the pool count towards the number, and no more than {@link
+     * #getMaxConnections()} connections are opened. Connections through proxy are not opened
+     * ahead.
+     *
+     * @param url   URL of the host, such as https://api.example.com, only scheme, host and port
+     *              are used
+     * @param count number of connections to have ready
+     */
+    public void preconnect(String url, int count) {
+        HttpHost target = URIUtils.extractHost(URI.create(url));
+        Utils.asserts(target != null, "URL must contain host");
+        if (count < 1)
+            return;
+        threadPool.execute(new Preconnector(httpClient, threadPool, target, count));
+    }
+
+    /**
+     * Returns statistics of the connection pool, statistics of single routes are available from
+     * {@link PooledConnectionManager#getStats(cz.msebera.android.httpclient.conn.routing.HttpRoute)}
+     *
+     * @return current statistics of the whole pool, or null if custom connection manager, other
+     * than {@link PooledConnectionManager}, is used
+     */
+    public ConnectionPoolStats getConnectionPoolStats() {
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        return cm instanceof PooledConnectionManager ? ((PooledConnectionManager) cm).getTotalStats() : null;
+    }
+
+    /**
+     * Returns transport executing requests of this client
+     *
+     * @return current transport, {@link HttpClientTransport} of {@link #getHttpClient()} by default
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets transport executing requests of this client, i.e. to use other HTTP engine with the
+     * same response handlers. Affects requests started afterwards, retries are still controlled
+     * by {@link #setMaxRetriesAndTimeout(int, int)}. Headers added by {@link
+     * #addHeader(String, String)} are set to requests of any transport, while other interceptors
+     * of {@link #getHttpClient()}, such as preemptive authentication and decompression of
+     * responses, are run only by {@link HttpClientTransport}. Use {@link NioTransport} to execute
+     * requests without holding a thread each.
+     * <p>&nbsp;</p>
+     * Other transports don't see settings held by {@link #getHttpClient()} and {@link
+     * #getHttpContext()} either: redirects ({@link #setEnableRedirects(boolean)}, {@link
+     * #setRedirectHandler(RedirectHandler)}), cookies ({@link #setCookieStore(CookieStore)}),
+     * credentials ({@link #setBasicAuth(String, String)}, {@link #setCredentials(AuthScope,
+     * Credentials)}), proxy ({@link #setProxy(String, int)}) and trust settings of {@link
+     * #setSSLSocketFactory(SSLSocketFactory)}. Warning is logged for each of them the client has
+     * configured when the transport is set.
+     *
+     * @param transport transport to be used, or null to use {@link HttpClientTransport} of {@link
+     *                  #getHttpClient()}
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport == null ? new HttpClientTransport(httpClient) : transport;
+        if (!(this.transport instanceof HttpClientTransport)) {
+            warnIgnoredSettings(this.transport);
+        }
+    }
+
+    private void warnIgnoredSettings(Transport transport) {
+        String name = transport.getClass().getSimpleName();
+        if (isRedirectEnabled) {
+            log.w(LOG_TAG, name + " does not follow redirects, they are passed to response handlers");
+        }
+        if (httpContext.getAttribute(ClientContext.COOKIE_STORE) != null) {
+            log.w(LOG_TAG, name + " ignores cookie store of the client");
+        }
+        if (httpClient.getCredentialsProvider().getCredentials(AuthScope.ANY) != null) {
+            log.w(LOG_TAG, name + " ignores credentials of the client");
+        }
+        if (httpClient.getParams().getParameter(ConnRoutePNames.DEFAULT_PROXY) != null) {
+            log.w(LOG_TAG, name + " ignores proxy of the client");
+        }
+        Scheme scheme = httpClient.getConnectionManager().getSchemeRegistry().get("https");
+        if (scheme != null && !(scheme.getSocketFactory() instanceof CachingSSLSocketFactory)) {
+            log.w(LOG_TAG, name + " ignores SSL socket factory of the client, and its trust settings");
+        }
+    }
+
+    /**
+     * Returns TLS session cache of the HTTPS scheme, to configure its size and session timeout,
+     * or to read counts of full and resumed handshakes
+     *
+     * @return TLS session cache, or null if HTTPS uses socket factory other than {@link
+     * CachingSSLSocketFactory} or {@link MySSLSocketFactory}
+     */
+    public TlsSessionCache getTlsSessionCache() {
+        Scheme scheme = httpClient.getConnectionManager().getSchemeRegistry().get("https");
+        Object factory = scheme == null ? null : scheme.getSocketFactory();
+        if (factory instanceof CachingSSLSocketFactory) {
+            return ((CachingSSLSocketFactory) factory).getSessionCache();
+        }
+        if (factory instanceof MySSLSocketFactory) {
+            return ((MySSLSocketFactory) factory).getSessionCache();
+        }
+        return null;
     }
 
     /**
@@ -592,6 +925,7 @@ public class AsyncHttpClient {
         httpClient.getParams().setBooleanParameter(ClientPNames.REJECT_RELATIVE_REDIRECT, !enableRelativeRedirects);
         httpClient.getParams().setBooleanParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, enableCircularRedirects);
         httpClient.setRedirectHandler(new MyRedirectHandler(enableRedirects));
+        isRedirectEnabled = enableRedirects;
     }
 
     /**
@@ -622,6 +956,7 @@ public class AsyncHttpClient {
      */
     public void setRedirectHandler(final RedirectHandler customRedirectHandler) {
         httpClient.setRedirectHandler(customRedirectHandler);
+        isRedirectEnabled = true;
     }
 
     /**
@@ -644,7 +979,9 @@ public class AsyncHttpClient {
     }
 
     /**
-     * Sets maximum limit of parallel connections
+     * Sets maximum limit of parallel connections per host. Requests to host, which already has
+     * this many requests running, are kept queued in {@link RequestDispatcher} until one of them
+     * finishes, while requests to other hosts proceed.
      *
      * @param maxConnections maximum parallel connections, must be at least 1
      */
@@ -652,8 +989,56 @@ public class AsyncHttpClient {
         if (maxConnections < 1)
             maxConnections = DEFAULT_MAX_CONNECTIONS;
         this.maxConnections = maxConnections;
-        final HttpParams httpParams = this.httpClient.getParams();
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(this.maxConnections));
+        // the pool keeps reading the bean it was created with, replacing it in params has no effect
+        connPerRoute.setDefaultMaxPerRoute(this.maxConnections);
+        if (maxTotalConnections < this.maxConnections)
+            setMaxTotalConnections(this.maxConnections);
+        dispatcher.setMaxRequestsPerHost(this.maxConnections);
+    }
+
+    /**
+     * Returns current limit of parallel connections to all hosts together
+     *
+     * @return maximum limit of parallel connections in total, default is 10
+     */
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    /**
+     * Sets maximum limit of parallel connections to all hosts together, takes effect immediately.
+     * Raised automatically by {@link #setMaxConnections(int)}, if lower than the per host limit.
+     *
+     * @param maxTotalConnections maximum parallel connections in total, must be at least 1
+     */
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        if (maxTotalConnections < 1)
+            maxTotalConnections = DEFAULT_MAX_CONNECTIONS;
+        this.maxTotalConnections = maxTotalConnections;
+        ConnManagerParams.setMaxTotalConnections(httpClient.getParams(), this.maxTotalConnections);
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        if (cm instanceof ThreadSafeClientConnManager)
+            ((ThreadSafeClientConnManager) cm).setMaxTotal(this.maxTotalConnections);
+    }
+
+    /**
+     * Returns limiter adjusting limit of parallel connections per host
+     *
+     * @return current limiter, null by default
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return dispatcher.getConcurrencyLimiter();
+    }
+
+    /**
+     * Sets limiter, which adjusts limit of parallel connections of each host according to
+     * observed round-trip times and errors. Limit set by {@link #setMaxConnections(int)} remains
+     * the upper bound.
+     *
+     * @param concurrencyLimiter limiter to be used, or null to use fixed limit for every host
+     */
+    public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        dispatcher.setConcurrencyLimiter(concurrencyLimiter);
     }
 
     /**
@@ -888,27 +1273,14 @@ public class AsyncHttpClient {
             return;
         }
 
-        final List<RequestHandle> requestList = requestMap.get(context);
-        requestMap.remove(context);
-
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            Runnable runnable = new Runnable() {
-                @Override
-                public void run() {
-                    cancelRequests(requestList, mayInterruptIfRunning);
-                }
-            };
-            threadPool.submit(runnable);
-        } else {
-            cancelRequests(requestList, mayInterruptIfRunning);
-        }
+        // on the main thread, handles leave aborting connections to the cancellation service,
+        // so this doesn't block, nor waits behind the requests being cancelled
+        cancelRequests(requestRegistry.removeByContext(context), mayInterruptIfRunning);
     }
 
     private void cancelRequests(final List<RequestHandle> requestList, final boolean mayInterruptIfRunning) {
-        if (requestList != null) {
-            for (RequestHandle requestHandle : requestList) {
-                requestHandle.cancel(mayInterruptIfRunning);
-            }
+        for (RequestHandle requestHandle : requestList) {
+            requestHandle.cancel(mayInterruptIfRunning);
         }
     }
 
@@ -922,20 +1294,14 @@ public class AsyncHttpClient {
      *                              pending requests.
      */
     public void cancelAllRequests(boolean mayInterruptIfRunning) {
-        for (List<RequestHandle> requestList : requestMap.values()) {
-            if (requestList != null) {
-                for (RequestHandle requestHandle : requestList) {
-                    requestHandle.cancel(mayInterruptIfRunning);
-                }
-            }
-        }
-        requestMap.clear();
+        cancelRequests(requestRegistry.removeAllContexts(), mayInterruptIfRunning);
     }
 
     /**
      * Allows you to cancel all requests currently in queue or running, by set TAG,
      * if passed TAG is null, will not attempt to cancel any requests, if TAG is null
-     * on RequestHandle, it cannot be canceled by this call
+     * on RequestHandle, it cannot be canceled by this call. TAG has to be set either through
+     * {@link RequestHandle#setTag(Object)}, or on the response handler before sending the request.
      *
      * @param TAG                   TAG to be matched in RequestHandle
      * @param mayInterruptIfRunning specifies if active requests should be cancelled along with
@@ -946,14 +1312,7 @@ public class AsyncHttpClient {
             log.d(LOG_TAG, "cancelRequestsByTAG, passed TAG is null, cannot proceed");
             return;
         }
-        for (List<RequestHandle> requestList : requestMap.values()) {
-            if (requestList != null) {
-                for (RequestHandle requestHandle : requestList) {
-                    if (TAG.equals(requestHandle.getTag()))
-                        requestHandle.cancel(mayInterruptIfRunning);
-                }
-            }
-        }
+        cancelRequests(requestRegistry.getByTag(TAG), mayInterruptIfRunning);
     }
 
     // [-] HTTP HEAD
@@ -1466,7 +1825,13 @@ public class AsyncHttpClient {
      * @return AsyncHttpRequest ready to be dispatched
      */
     protected AsyncHttpRequest newAsyncHttpRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest, String contentType, ResponseHandlerInterface responseHandler, Context context) {
-        return new AsyncHttpRequest(client, httpContext, uriRequest, responseHandler);
+        // custom transport replaces only the client of this instance
+        Transport _transport = client == httpClient ? transport : new HttpClientTransport(client);
+        if (!(_transport instanceof HttpClientTransport)) {
+            // done by request interceptor of the client otherwise
+            addClientHeaders(uriRequest);
+        }
+        return new AsyncHttpRequest(_transport, client.getHttpRequestRetryHandler(), httpContext, uriRequest, responseHandler);
     }
 
     /**
@@ -1486,6 +1851,25 @@ public class AsyncHttpClient {
             throw new IllegalArgumentException("HttpUriRequest must not be null");
         }
 
+        prepareRequest(uriRequest, contentType, responseHandler);
+
+        if (isRequestCoalescingEnabled && "GET".equals(uriRequest.getMethod()) && CoalescingResponseHandler.isCoalescable(responseHandler)) {
+            return sendCoalescedRequest(client, httpContext, uriRequest, contentType, responseHandler, context);
+        }
+
+        AsyncHttpRequest request = newAsyncHttpRequest(client, httpContext, uriRequest, contentType, responseHandler, context);
+        request.setPriority(getPriority(responseHandler));
+        RequestHandle requestHandle = new RequestHandle(request);
+        trackRequestHandle(context, requestHandle, request);
+        dispatcher.enqueue(request);
+
+        return requestHandle;
+    }
+
+    /**
+     * Validates the request and its response handler, and sets up headers before sending it
+     */
+    private void prepareRequest(HttpUriRequest uriRequest, String contentType, ResponseHandlerInterface responseHandler) {
         if (responseHandler == null) {
             throw new IllegalArgumentException("ResponseHandler must not be null");
         }
@@ -1504,35 +1888,100 @@ public class AsyncHttpClient {
 
         responseHandler.setRequestHeaders(uriRequest.getAllHeaders());
         responseHandler.setRequestURI(uriRequest.getURI());
+        attachSharedResources(responseHandler);
+    }
 
-        AsyncHttpRequest request = newAsyncHttpRequest(client, httpContext, uriRequest, contentType, responseHandler, context);
-        threadPool.submit(request);
-        RequestHandle requestHandle = new RequestHandle(request);
-
-        if (context != null) {
-            List<RequestHandle> requestList;
-            // Add request to request map
-            synchronized (requestMap) {
-                requestList = requestMap.get(context);
-                if (requestList == null) {
-                    requestList = Collections.synchronizedList(new LinkedList<RequestHandle>());
-                    requestMap.put(context, requestList);
-                }
+    private void attachSharedResources(ResponseHandlerInterface responseHandler) {
+        if (responseHandler instanceof AsyncHttpResponseHandler) {
+            AsyncHttpResponseHandler handler = (AsyncHttpResponseHandler) responseHandler;
+            if (handler.getParseExecutor() == null) {
+                handler.setParseExecutor(parseExecutor);
             }
+            if (handler.getBufferPool() == null) {
+                handler.setBufferPool(bufferPool);
+            }
+        }
+    }
 
-            requestList.add(requestHandle);
+    /**
+     * Adds the RequestHandle to request registry, so it can be cancelled along with other
+     * requests of the Context or TAG, until the request completes
+     */
+    private void trackRequestHandle(Context context, RequestHandle requestHandle, AsyncHttpRequest request) {
+        requestRegistry.register(context, requestHandle, request);
+    }
 
-            Iterator<RequestHandle> iterator = requestList.iterator();
-            while (iterator.hasNext()) {
-                if (iterator.next().shouldBeGarbageCollected()) {
-                    iterator.remove();
-                }
+    /**
+     * Sends all requests of the group at once, queueing them next to each other. Requests of the
+     * group are always executed asynchronously, and share deadline and cancellation scope of the
+     * group.
+     *
+     * @param context the Android Context which initiated the requests, can be null
+     * @param group   group of requests, can be submitted only once
+     * @return the group, to allow fluid syntax
+     */
+    public RequestGroup sendRequestGroup(Context context, RequestGroup group) {
+        Utils.notNull(group, "group");
+        List<AsyncHttpRequest> requests = new ArrayList<AsyncHttpRequest>();
+        for (RequestGroup.Member member : group.getMembers()) {
+            HttpUriRequest uriRequest = member.uriRequest;
+            if (uriRequest == null) {
+                uriRequest = new HttpGet(getUrlWithQueryString(isUrlEncodingEnabled, member.url, member.params));
+            }
+            prepareRequest(uriRequest, null, member);
+            attachSharedResources(member.getResponseHandler());
+            AsyncHttpRequest request = newAsyncHttpRequest(httpClient, httpContext, uriRequest, null, member, context);
+            requests.add(request);
+            trackRequestHandle(context, new RequestHandle(request), request);
+        }
+        group.onSubmit(requests);
+        dispatcher.enqueueAll(requests);
+        return group;
+    }
+
+    /**
+     * Attaches response handler to identical GET request already in flight, or sends new request
+     * shared by the response handler and other identical GET requests sent until its response
+     * arrives.
+     *
+     * @return RequestHandle of the subscription, cancelling the shared request only if there is no
+     * other response handler subscribed
+     */
+    private RequestHandle sendCoalescedRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest, String contentType, ResponseHandlerInterface responseHandler, Context context) {
+        String requestKey = CoalescingResponseHandler.getRequestKey(uriRequest);
+        CoalescingResponseHandler sharedHandler;
+        RequestHandle requestHandle;
+        boolean isNewRequest = false;
+
+        synchronized (coalescedRequests) {
+            sharedHandler = coalescedRequests.get(requestKey);
+            if (sharedHandler == null || (requestHandle = sharedHandler.subscribe(responseHandler)) == null) {
+                sharedHandler = new CoalescingResponseHandler(coalescedRequests, requestKey);
+                sharedHandler.setRequestHeaders(uriRequest.getAllHeaders());
+                sharedHandler.setRequestURI(uriRequest.getURI());
+                sharedHandler.setRequest(newAsyncHttpRequest(client, httpContext, uriRequest, contentType, sharedHandler, context));
+                requestHandle = sharedHandler.subscribe(responseHandler);
+                coalescedRequests.put(requestKey, sharedHandler);
+                isNewRequest = true;
             }
         }
 
+        trackRequestHandle(context, requestHandle, sharedHandler.getRequest());
+        // shared request is queued with the highest priority of its subscribers
+        int priority = getPriority(responseHandler);
+        if (isNewRequest) {
+            sharedHandler.getRequest().setPriority(priority);
+            dispatcher.enqueue(sharedHandler.getRequest());
+        } else if (priority > sharedHandler.getRequest().getPriority()) {
+            sharedHandler.getRequest().setPriority(priority);
+        }
         return requestHandle;
     }
 
+    private static int getPriority(ResponseHandlerInterface responseHandler) {
+        return responseHandler instanceof AsyncHttpResponseHandler ? ((AsyncHttpResponseHandler) responseHandler).getPriority() : RequestHandle.PRIORITY_NORMAL;
+    }
+
     /**
      * Returns a {@link URI} instance for the specified, absolute URL string.
      *
@@ -1582,6 +2031,23 @@ public class AsyncHttpClient {
         return isUrlEncodingEnabled;
     }
 
+    /**
+     * Sets state of GET request coalescing. If enabled, GET request with the same URI and headers
+     * as another GET request, which is still in flight, is not sent on its own, but receives the
+     * response of the request in flight, which is read just once. Cancelling such request aborts
+     * the shared request only if there's no other request waiting for its response. Disabled by
+     * default.
+     *
+     * @param enabled desired state of feature
+     */
+    public void setRequestCoalescingEnabled(boolean enabled) {
+        this.isRequestCoalescingEnabled = enabled;
+    }
+
+    public boolean isRequestCoalescingEnabled() {
+        return isRequestCoalescingEnabled;
+    }
+
     /**
      * Applicable only to HttpRequest methods extending HttpEntityEnclosingRequestBase, which is for
      * example not DELETE
@@ -1600,7 +2066,7 @@ public class AsyncHttpClient {
     /**
      * Enclosing entity to hold stream of gzip decoded data for accessing HttpEntity contents
      */
-    private static class InflatingEntity extends HttpEntityWrapper {
+    static class InflatingEntity extends HttpEntityWrapper {
 
         InputStream wrappedStream;
         PushbackInputStream pushbackStream;
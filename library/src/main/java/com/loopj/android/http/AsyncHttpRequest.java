@@ -20,10 +20,17 @@ package com.loopj.android.http;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.HttpStatus;
 import cz.msebera.android.httpclient.client.HttpRequestRetryHandler;
 import cz.msebera.android.httpclient.client.methods.HttpUriRequest;
 import cz.msebera.android.httpclient.impl.client.AbstractHttpClient;
@@ -33,7 +40,8 @@ import cz.msebera.android.httpclient.protocol.HttpContext;
  * Internal class, representing the HttpRequest, done in asynchronous manner
  */
 public class AsyncHttpRequest implements Runnable {
-    private final AbstractHttpClient client;
+    private final Transport transport;
+    private final HttpRequestRetryHandler retryHandler;
     private final HttpContext context;
     private final HttpUriRequest request;
     private final ResponseHandlerInterface responseHandler;
@@ -42,9 +50,37 @@ public class AsyncHttpRequest implements Runnable {
     private boolean cancelIsNotified;
     private volatile boolean isFinished;
     private boolean isRequestPreProcessed;
+    private volatile RequestDispatcher dispatcher;
+    // changed only under lock of the dispatcher, as it orders its queue by them
+    volatile int priority = RequestHandle.PRIORITY_NORMAL;
+    long sequence;
+    private String hostKey;
+    // changed under lock of the dispatcher once bound to it, as it orders expiring requests by it
+    volatile long deadline;
+    private final List<Runnable> completionListeners = new ArrayList<Runnable>(1);
+    private boolean isCompleted;
+    // result of attempt sent by AsyncTransport, handed over to the thread completing the request
+    private boolean isAttemptPending;
+    private long pendingAttemptStart;
+    private HttpResponse pendingResponse;
+    private IOException pendingError;
 
     public AsyncHttpRequest(AbstractHttpClient client, HttpContext context, HttpUriRequest request, ResponseHandlerInterface responseHandler) {
-        this.client = Utils.notNull(client, "client");
+        this(new HttpClientTransport(Utils.notNull(client, "client")), client.getHttpRequestRetryHandler(), context, request, responseHandler);
+    }
+
+    /**
+     * Creates new AsyncHttpRequest, executed by given transport
+     *
+     * @param transport       transport executing single attempts of the request
+     * @param retryHandler    retry handler deciding whether failed attempt is to be retried
+     * @param context         HttpContext in which the request will be executed
+     * @param request         request to be executed
+     * @param responseHandler response handler to put the response into
+     */
+    public AsyncHttpRequest(Transport transport, HttpRequestRetryHandler retryHandler, HttpContext context, HttpUriRequest request, ResponseHandlerInterface responseHandler) {
+        this.transport = Utils.notNull(transport, "transport");
+        this.retryHandler = Utils.notNull(retryHandler, "retryHandler");
         this.context = Utils.notNull(context, "context");
         this.request = Utils.notNull(request, "request");
         this.responseHandler = Utils.notNull(responseHandler, "responseHandler");
@@ -82,8 +118,50 @@ public class AsyncHttpRequest implements Runnable {
 
     @Override
     public void run() {
+        if (startRequest()) {
+            completeRequest();
+        }
+    }
+
+    /**
+     * Runs this request, without holding the calling thread while waiting for the response, if
+     * the transport is {@link AsyncTransport}
+     *
+     * @param executor   executor to continue on, once the response is received
+     * @param onFinished called once the request has finished, on any thread
+     */
+    void run(final Executor executor, final Runnable onFinished) {
+        boolean isPending = false;
+        try {
+            if (!(transport instanceof AsyncTransport)) {
+                run();
+            } else if (startRequest()) {
+                isPending = sendAsync(executor, onFinished);
+                if (!isPending) {
+                    completeRequest();
+                }
+            }
+        } finally {
+            if (!isPending) {
+                onFinished.run();
+            }
+        }
+    }
+
+    /**
+     * Notifies response handler about start of this request
+     *
+     * @return false if this request has been cancelled or has failed already
+     */
+    private boolean startRequest() {
         if (isCancelled()) {
-            return;
+            return false;
+        }
+
+        if (isDeadlineExceeded()) {
+            // nobody waits for the response anymore, fail without touching the network
+            failUnsent(new DeadlineExceededException("Deadline exceeded before request was started"));
+            return false;
         }
 
         // Carry out pre-processing for this request only once.
@@ -93,15 +171,19 @@ public class AsyncHttpRequest implements Runnable {
         }
 
         if (isCancelled()) {
-            return;
+            return false;
         }
 
         responseHandler.sendStartMessage();
 
-        if (isCancelled()) {
-            return;
-        }
+        return !isCancelled();
+    }
 
+    /**
+     * Executes this request with retries, unless its first attempt has been sent already, and
+     * notifies response handler about the result
+     */
+    private void completeRequest() {
         try {
             makeRequestWithRetries();
         } catch (IOException e) {
@@ -128,22 +210,96 @@ public class AsyncHttpRequest implements Runnable {
         isFinished = true;
     }
 
-    private void makeRequest() throws IOException {
-        if (isCancelled()) {
-            return;
+    /**
+     * Sends first attempt of this request by {@link AsyncTransport}, the rest of the request is
+     * completed on the executor once the attempt finishes
+     *
+     * @return true if the attempt has been sent, false if the request is to be completed
+     * synchronously
+     */
+    private boolean sendAsync(final Executor executor, final Runnable onFinished) {
+        if (isCancelled() || request.getURI().getScheme() == null) {
+            // reported by the synchronous path
+            return false;
         }
 
-        // Fixes #115
-        if (request.getURI().getScheme() == null) {
-            // subclass of IOException so processed in the caller
-            throw new MalformedURLException("No valid URI scheme was provided");
-        }
+        updateRangeHeaders();
 
-        if (responseHandler instanceof RangeFileAsyncHttpResponseHandler) {
-            ((RangeFileAsyncHttpResponseHandler) responseHandler).updateRequestHeaders(request);
-        }
+        pendingAttemptStart = System.nanoTime();
+        isAttemptPending = true;
+        ((AsyncTransport) transport).execute(request, context, new AsyncTransport.Callback() {
+            @Override
+            public void onResponse(HttpResponse response) {
+                pendingResponse = response;
+                resume();
+            }
+
+            @Override
+            public void onFailure(IOException error) {
+                pendingError = error;
+                resume();
+            }
 
-        HttpResponse response = client.execute(request, context);
+            private void resume() {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                completeRequest();
+                            } finally {
+                                onFinished.run();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    AsyncHttpClient.log.e("AsyncHttpRequest", "Executor rejected response", e);
+                    cancel(true);
+                    onFinished.run();
+                }
+            }
+        });
+        return true;
+    }
+
+    private void makeRequest() throws IOException {
+        long attemptStart;
+        HttpResponse response;
+        if (isAttemptPending) {
+            // sent by AsyncTransport already, only its result is handled here
+            isAttemptPending = false;
+            attemptStart = pendingAttemptStart;
+            response = pendingResponse;
+            IOException error = pendingError;
+            pendingResponse = null;
+            pendingError = null;
+            if (error != null) {
+                onAttemptFailed(attemptStart, error);
+                throw error;
+            }
+        } else {
+            if (isCancelled()) {
+                return;
+            }
+
+            // Fixes #115
+            if (request.getURI().getScheme() == null) {
+                // subclass of IOException so processed in the caller
+                throw new MalformedURLException("No valid URI scheme was provided");
+            }
+
+            updateRangeHeaders();
+
+            attemptStart = System.nanoTime();
+            try {
+                response = transport.execute(request, context);
+            } catch (IOException e) {
+                onAttemptFailed(attemptStart, e);
+                throw e;
+            }
+        }
+        int statusCode = response.getStatusLine().getStatusCode();
+        reportAttempt(attemptStart, statusCode != HttpStatus.SC_SERVICE_UNAVAILABLE && statusCode != 429);
 
         if (isCancelled()) {
             return;
@@ -157,7 +313,13 @@ public class AsyncHttpRequest implements Runnable {
         }
 
         // The response is ready, handle it.
-        responseHandler.sendResponseMessage(response);
+        if (responseHandler instanceof RequestGroup.Member) {
+            ((RequestGroup.Member) responseHandler).sendResponseMessage(response, this);
+        } else if (responseHandler instanceof StreamingResponseHandler) {
+            ((StreamingResponseHandler) responseHandler).sendResponseMessage(response, this);
+        } else {
+            responseHandler.sendResponseMessage(response);
+        }
 
         if (isCancelled()) {
             return;
@@ -167,10 +329,32 @@ public class AsyncHttpRequest implements Runnable {
         responseHandler.onPostProcessResponse(responseHandler, response);
     }
 
+    private void updateRangeHeaders() {
+        // handler of group member is behind its wrapper
+        ResponseHandlerInterface handler = RequestGroup.Member.unwrap(responseHandler);
+        if (handler instanceof RangeFileAsyncHttpResponseHandler) {
+            ((RangeFileAsyncHttpResponseHandler) handler).updateRequestHeaders(request);
+        }
+    }
+
+    private void onAttemptFailed(long attemptStart, IOException error) {
+        // unknown host is not a sign of overload, and cancelled attempt tells nothing
+        if (!(error instanceof UnknownHostException) && !isCancelled()) {
+            reportAttempt(attemptStart, false);
+        }
+    }
+
+    private void reportAttempt(long attemptStart, boolean isSuccessful) {
+        RequestDispatcher _dispatcher = dispatcher;
+        if (_dispatcher != null) {
+            _dispatcher.onAttempt(this, (System.nanoTime() - attemptStart) / 1000000, isSuccessful);
+        }
+    }
+
     private void makeRequestWithRetries() throws IOException {
         boolean retry = true;
         IOException cause = null;
-        HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
+        RetryHandler.setDeadline(deadline);
         try {
             while (retry) {
                 try {
@@ -196,6 +380,11 @@ public class AsyncHttpRequest implements Runnable {
                     cause = e;
                     retry = retryHandler.retryRequest(cause, ++executionCount, context);
                 }
+                if (retry && isDeadlineExceeded()) {
+                    // retry budget is exhausted, possibly while sleeping before the retry
+                    retry = false;
+                    cause = new DeadlineExceededException("Deadline exceeded after " + executionCount + " attempts, last error: " + cause.getMessage());
+                }
                 if (retry) {
                     responseHandler.sendRetryMessage(executionCount);
                 }
@@ -204,6 +393,8 @@ public class AsyncHttpRequest implements Runnable {
             // catch anything else to ensure failure message is propagated
             AsyncHttpClient.log.e("AsyncHttpRequest", "Unhandled exception origin cause", e);
             cause = new IOException("Unhandled exception: " + e.getMessage());
+        } finally {
+            RetryHandler.setDeadline(0);
         }
 
         // cleaned up to throw IOException
@@ -231,10 +422,61 @@ public class AsyncHttpRequest implements Runnable {
 
     public boolean cancel(boolean mayInterruptIfRunning) {
         isCancelled.set(true);
+        removeFromQueue();
         request.abort();
         return isCancelled();
     }
 
+    /**
+     * Marks this request as cancelled, without aborting its connection, which may block
+     *
+     * @return true if the request is cancelled, false if it has already finished
+     */
+    boolean markCancelled() {
+        isCancelled.set(true);
+        removeFromQueue();
+        return isCancelled();
+    }
+
+    private void removeFromQueue() {
+        RequestDispatcher _dispatcher = dispatcher;
+        if (_dispatcher != null) {
+            _dispatcher.removeQueued(this);
+        }
+    }
+
+    /**
+     * Aborts connection of this request, after it has been marked as cancelled
+     */
+    void abort() {
+        request.abort();
+    }
+
+    /**
+     * Fails this request without sending it, i.e. when it's rejected by dispatcher
+     *
+     * @param error error to be reported to response handler
+     */
+    void failUnsent(Throwable error) {
+        if (isCancelled()) {
+            return;
+        }
+        responseHandler.sendStartMessage();
+        responseHandler.sendFailureMessage(0, null, null, error);
+        responseHandler.sendFinishMessage();
+        isFinished = true;
+    }
+
+    /**
+     * Returns whether cancellation of this request was requested, without notifying response
+     * handler about it
+     *
+     * @return true if this request has been cancelled
+     */
+    boolean isCancelRequested() {
+        return isCancelled.get();
+    }
+
     /**
      * Will set Object as TAG to this request, wrapped by WeakReference
      *
@@ -246,6 +488,131 @@ public class AsyncHttpRequest implements Runnable {
         return this;
     }
 
+    /**
+     * Returns priority of this request, used to order requests waiting for execution
+     *
+     * @return priority of this request, {@link RequestHandle#PRIORITY_NORMAL} by default
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Will set priority of this request. Requests of higher priority, which are waiting for
+     * execution, are started before requests of lower priority. Has no effect on request, which is
+     * already running.
+     *
+     * @param priority priority, such as {@link RequestHandle#PRIORITY_INTERACTIVE}
+     * @return this AsyncHttpRequest to allow fluid syntax
+     */
+    public AsyncHttpRequest setPriority(int priority) {
+        RequestDispatcher _dispatcher = dispatcher;
+        if (_dispatcher != null) {
+            _dispatcher.reprioritize(this, priority);
+        } else {
+            this.priority = priority;
+        }
+        return this;
+    }
+
+    /**
+     * Returns time, after which this request is no longer worth executing
+     *
+     * @return deadline in milliseconds since epoch, as in {@link System#currentTimeMillis()}, or 0
+     * if this request has no deadline
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Will set time, after which this request is no longer worth executing. If the deadline
+     * passes while the request is queued, it fails with {@link DeadlineExceededException} without
+     * being sent, if it passes while the request is running, no more retries are made.
+     *
+     * @param deadline deadline in milliseconds since epoch, as in {@link System#currentTimeMillis()},
+     *                 or 0 to remove the deadline
+     * @return this AsyncHttpRequest to allow fluid syntax
+     */
+    public AsyncHttpRequest setDeadline(long deadline) {
+        RequestDispatcher _dispatcher = dispatcher;
+        if (_dispatcher != null) {
+            _dispatcher.changeDeadline(this, deadline < 0 ? 0 : deadline);
+        } else {
+            this.deadline = deadline < 0 ? 0 : deadline;
+        }
+        return this;
+    }
+
+    /**
+     * Returns whether deadline of this request has passed
+     *
+     * @return true if this request has deadline, which has already passed
+     */
+    public boolean isDeadlineExceeded() {
+        long _deadline = deadline;
+        return _deadline > 0 && System.currentTimeMillis() >= _deadline;
+    }
+
+    /**
+     * Returns host this request is sent to, used to limit number of requests running against
+     * single host
+     *
+     * @return scheme, host name and port of the request URI, in form of scheme://hostname:port,
+     * with default port of the scheme filled in, so the host is counted once however it is written
+     */
+    public String getHostKey() {
+        if (hostKey == null) {
+            URI uri = request.getURI();
+            String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.US);
+            String host = uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.US);
+            int port = uri.getPort() < 0 ? ("https".equals(scheme) ? 443 : 80) : uri.getPort();
+            hostKey = scheme + "://" + host + ":" + port;
+        }
+        return hostKey;
+    }
+
+    /**
+     * Adds listener to be run once the request is completed, or run it right away if it already is
+     *
+     * @param listener listener to be run, on the thread completing the request
+     */
+    void addCompletionListener(Runnable listener) {
+        synchronized (completionListeners) {
+            if (!isCompleted) {
+                completionListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Called by dispatcher, once this request has either run, or will never run
+     */
+    void onCompleted() {
+        List<Runnable> listeners;
+        synchronized (completionListeners) {
+            isCompleted = true;
+            listeners = new ArrayList<Runnable>(completionListeners);
+            completionListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Binds this request to dispatcher, which queues it for execution
+     *
+     * @param dispatcher dispatcher queueing this request
+     * @param sequence   submission order of this request within the dispatcher
+     */
+    void setDispatcher(RequestDispatcher dispatcher, long sequence) {
+        this.dispatcher = dispatcher;
+        this.sequence = sequence;
+    }
+
     /**
      * Will return TAG of this AsyncHttpRequest
      *
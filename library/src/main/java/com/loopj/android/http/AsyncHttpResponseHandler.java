@@ -22,17 +22,19 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.URI;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import cz.msebera.android.httpclient.Header;
 import cz.msebera.android.httpclient.HttpEntity;
 import cz.msebera.android.httpclient.HttpResponse;
 import cz.msebera.android.httpclient.StatusLine;
 import cz.msebera.android.httpclient.client.HttpResponseException;
-import cz.msebera.android.httpclient.util.ByteArrayBuffer;
 
 /**
  * Used to intercept and handle the responses from requests made using {@link AsyncHttpClient}. The
@@ -91,6 +93,9 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
     protected static final int RETRY_MESSAGE = 5;
     protected static final int CANCEL_MESSAGE = 6;
     protected static final int BUFFER_SIZE = 4096;
+    public static final long DEFAULT_PROGRESS_INTERVAL = 100;
+    public static final long DEFAULT_MEMORY_THRESHOLD = Long.MAX_VALUE;
+    public static final long DEFAULT_MAX_BODY_SIZE = Long.MAX_VALUE;
     private static final String LOG_TAG = "AsyncHttpRH";
     private String responseCharset = DEFAULT_CHARSET;
     private Handler handler;
@@ -101,6 +106,25 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
     private Header[] requestHeaders = null;
     private Looper looper = null;
     private WeakReference<Object> TAG = new WeakReference<Object>(null);
+    private Executor parseExecutor;
+    private BufferPool bufferPool;
+    private volatile long memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+    private volatile long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private volatile File spillDirectory;
+    private volatile long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private volatile long progressBytes;
+    private volatile int priority = RequestHandle.PRIORITY_NORMAL;
+
+    private final Object progressLock = new Object();
+    // guarded by progressLock
+    private long lastProgressTime;
+    private long lastProgressBytes;
+    private long latestProgressBytes;
+    private long latestProgressTotal;
+    // progress message is waiting in looper, and will carry latest values
+    private boolean isProgressPosted;
+    // latest values were held back by throttling
+    private boolean isProgressDeferred;
 
     /**
      * Creates a new AsyncHttpResponseHandler
@@ -220,6 +244,185 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
         usePoolThread = pool;
     }
 
+    /**
+     * Returns executor used to decode response off the main thread, such as parsing JSON
+     *
+     * @return executor, or null if none was set
+     */
+    public Executor getParseExecutor() {
+        return parseExecutor;
+    }
+
+    /**
+     * Sets executor used to decode response off the main thread, such as parsing JSON. {@link
+     * AsyncHttpClient} sets its shared parse executor on handlers, which don't have any set.
+     *
+     * @param parseExecutor executor to be used, or null to use new thread for each response
+     * @see AsyncHttpClient#setParseExecutor(java.util.concurrent.ExecutorService)
+     */
+    public void setParseExecutor(Executor parseExecutor) {
+        this.parseExecutor = parseExecutor;
+    }
+
+    /**
+     * Returns pool of buffers the response body is read into
+     *
+     * @return buffer pool, or null if none was set
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets pool of buffers the response body is read into. {@link AsyncHttpClient} sets its
+     * buffer pool on handlers, which don't have any set.
+     *
+     * @param bufferPool pool to be used, or null to use {@link BufferPool#getDefault()}
+     * @see AsyncHttpClient#setBufferPool(BufferPool)
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns pool to take buffers from, the default one if none was set
+     */
+    BufferPool obtainBufferPool() {
+        BufferPool pool = bufferPool;
+        return pool != null ? pool : BufferPool.getDefault();
+    }
+
+    /**
+     * Returns length over which response body is spilled to file
+     *
+     * @return threshold in bytes
+     */
+    public long getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    /**
+     * Sets length over which response body is moved from memory to temporary file, which
+     * keeps heap usage predictable when response sizes vary widely. Body known to be larger from
+     * its Content-Length is written to file from the start. {@link ByteBufferHttpResponseHandler}
+     * then receives the file mapped into memory; handlers receiving byte array still get the
+     * whole body loaded into memory, though without holding it twice while reading it, unless
+     * they consume it through {@link #getResponseData(ResponseBody)}. This
+     * applies to the body as the transport hands it over: {@link NioTransport} receives the whole
+     * body into memory first, up to {@link NioTransport#setMaxResponseSize(long)}, so there the
+     * body is briefly held in memory and in file at once.
+     *
+     * @param memoryThreshold threshold in bytes, {@link Long#MAX_VALUE} to always keep body in
+     *                        memory, which is the default
+     */
+    public void setMemoryThreshold(long memoryThreshold) {
+        Utils.asserts(memoryThreshold >= 0, "memoryThreshold must not be negative");
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * Returns directory response bodies are spilled to
+     *
+     * @return directory, or null if default temporary directory is used
+     */
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Sets directory response bodies over memory threshold are spilled to, such as {@code
+     * Context.getCacheDir()}
+     *
+     * @param spillDirectory directory, or null to use default temporary directory
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Returns maximum accepted length of response body
+     *
+     * @return maximum length in bytes
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Sets maximum accepted length of response body. Larger response fails with {@link
+     * ResponseTooLargeException} as soon as its Content-Length, or amount of data read so far,
+     * exceeds the limit, and its connection is aborted rather than read to the end. {@link
+     * NioTransport} receives the whole body before handing it over, so there the body has been
+     * read already, and larger bodies are stopped only by {@link
+     * NioTransport#setMaxResponseSize(long)}.
+     *
+     * @param maxBodySize maximum length in bytes, {@link Long#MAX_VALUE} for no limit, which is
+     *                    the default
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        Utils.asserts(maxBodySize >= 0, "maxBodySize must not be negative");
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Returns priority requests sent with this handler are queued with
+     *
+     * @return priority, {@link RequestHandle#PRIORITY_NORMAL} by default
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets priority requests sent with this handler are queued with, taken when the request is
+     * submitted, so it is ordered among waiting requests from the start. Priority of request
+     * already submitted is changed by {@link RequestHandle#setPriority(int)}.
+     *
+     * @param priority priority, such as {@link RequestHandle#PRIORITY_INTERACTIVE} or {@link
+     *                 RequestHandle#PRIORITY_BULK}
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Returns minimum time between progress notifications
+     *
+     * @return interval in milliseconds
+     */
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Returns minimum number of bytes transferred between progress notifications
+     *
+     * @return byte delta
+     */
+    public long getProgressBytes() {
+        return progressBytes;
+    }
+
+    /**
+     * Throttles progress notifications, so that large transfers don't flood the looper with a
+     * message per read buffer. Progress is reported only once both given time has passed and
+     * given number of bytes has been transferred since last report, except for completing
+     * progress, where bytes written reach known total size, which is always reported. Progress,
+     * which arrives while the previous report is still waiting in looper, is coalesced into
+     * it, so only the latest value is delivered to {@link #onProgress(long, long)}.
+     * <p>&nbsp;</p>
+     * Defaults to {@link #DEFAULT_PROGRESS_INTERVAL} milliseconds and no byte delta, pass zeros
+     * to report progress of every read buffer.
+     *
+     * @param intervalMillis minimum time between notifications in milliseconds
+     * @param minBytes       minimum number of bytes transferred between notifications
+     */
+    public void setProgressThrottle(long intervalMillis, long minBytes) {
+        Utils.asserts(intervalMillis >= 0 && minBytes >= 0, "progress throttle must not be negative");
+        this.progressInterval = intervalMillis;
+        this.progressBytes = minBytes;
+    }
+
     public String getCharset() {
         return this.responseCharset == null ? DEFAULT_CHARSET : this.responseCharset;
     }
@@ -308,7 +511,51 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
 
     @Override
     final public void sendProgressMessage(long bytesWritten, long bytesTotal) {
-        sendMessage(obtainMessage(PROGRESS_MESSAGE, new Object[]{bytesWritten, bytesTotal}));
+        long now = System.nanoTime() / 1000000;
+        synchronized (progressLock) {
+            latestProgressBytes = bytesWritten;
+            latestProgressTotal = bytesTotal;
+            boolean isComplete = bytesTotal > 0 && bytesWritten == bytesTotal;
+            // going back means new transfer, such as download after upload, or retry
+            boolean isDue = isComplete || bytesWritten < lastProgressBytes
+                    || (now - lastProgressTime >= progressInterval && bytesWritten - lastProgressBytes >= progressBytes);
+            if (!isDue) {
+                isProgressDeferred = true;
+                return;
+            }
+        }
+        postProgress(now);
+    }
+
+    /**
+     * Reports progress held back by throttling, to be called once transfer of unknown size ends
+     */
+    void flushProgressMessage() {
+        synchronized (progressLock) {
+            if (!isProgressDeferred) {
+                return;
+            }
+        }
+        postProgress(System.nanoTime() / 1000000);
+    }
+
+    private void postProgress(long now) {
+        Object[] progress;
+        synchronized (progressLock) {
+            isProgressDeferred = false;
+            lastProgressTime = now;
+            lastProgressBytes = latestProgressBytes;
+            if (isProgressPosted) {
+                return;
+            }
+            if (!getUseSynchronousMode() && handler != null && Thread.currentThread().isInterrupted()) {
+                // the message wouldn't be sent
+                return;
+            }
+            isProgressPosted = handler != null && !getUseSynchronousMode();
+            progress = new Object[]{latestProgressBytes, latestProgressTotal};
+        }
+        sendMessage(obtainMessage(PROGRESS_MESSAGE, progress));
     }
 
     @Override
@@ -372,6 +619,14 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
                 case PROGRESS_MESSAGE:
                     response = (Object[]) message.obj;
                     if (response != null && response.length >= 2) {
+                        synchronized (progressLock) {
+                            if (isProgressPosted) {
+                                // coalesce progress reported since the message was posted
+                                isProgressPosted = false;
+                                response = new Object[]{latestProgressBytes, latestProgressTotal};
+                                lastProgressBytes = latestProgressBytes;
+                            }
+                        }
                         try {
                             onProgress((Long) response[0], (Long) response[1]);
                         } catch (Throwable t) {
@@ -399,12 +654,26 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
     }
 
     protected void sendMessage(Message msg) {
+        postMessage(msg);
+    }
+
+    /**
+     * Handles the message in place or posts it to the handler loop, same as {@link
+     * #sendMessage(Message)}
+     *
+     * @param msg message to deliver
+     * @return false if the message was dropped, because the request has been cancelled or the
+     * looper is quitting, and will never reach {@link #handleMessage(Message)}
+     */
+    final boolean postMessage(Message msg) {
         if (getUseSynchronousMode() || handler == null) {
             handleMessage(msg);
+            return true;
         } else if (!Thread.currentThread().isInterrupted()) { // do not send messages if request has been cancelled
             Utils.asserts(handler != null, "handler should not be null!");
-            handler.sendMessage(msg);
+            return handler.sendMessage(msg);
         }
+        return false;
     }
 
     /**
@@ -424,6 +693,35 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
         }
     }
 
+    /**
+     * Helper method to run decoding of response, which would otherwise block looper thread, on
+     * parse executor. In synchronous mode, or when using pool thread, runs it on current thread.
+     * Response rejected by the executor, when it is saturated, is parsed on current thread as
+     * well, typically the looper thread, rather than on a new thread for each response, so that
+     * bursts of responses don't spawn bursts of threads.
+     *
+     * @param parser runnable decoding the response and posting the result, must not be null
+     */
+    protected void executeParser(Runnable parser) {
+        if (getUseSynchronousMode() || getUsePoolThread()) {
+            // In synchronous mode everything should be run on one thread
+            parser.run();
+            return;
+        }
+        Executor executor = parseExecutor;
+        if (executor != null) {
+            try {
+                executor.execute(parser);
+                return;
+            } catch (RejectedExecutionException e) {
+                AsyncHttpClient.log.w(LOG_TAG, "Parse executor rejected response, parsing on current thread", e);
+                parser.run();
+                return;
+            }
+        }
+        new Thread(parser).start();
+    }
+
     /**
      * Helper method to create Message instance from handler
      *
@@ -461,39 +759,95 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
      * @throws java.io.IOException if reading entity or creating byte array failed
      */
     byte[] getResponseData(HttpEntity entity) throws IOException {
-        byte[] responseBody = null;
-        if (entity != null) {
-            InputStream instream = entity.getContent();
-            if (instream != null) {
-                long contentLength = entity.getContentLength();
-                if (contentLength > Integer.MAX_VALUE) {
-                    throw new IllegalArgumentException("HTTP entity too large to be buffered in memory");
-                }
-                int buffersize = (contentLength <= 0) ? BUFFER_SIZE : (int) contentLength;
-                try {
-                    ByteArrayBuffer buffer = new ByteArrayBuffer(buffersize);
-                    try {
-                        byte[] tmp = new byte[BUFFER_SIZE];
-                        long count = 0;
-                        int l;
-                        // do not send messages if request has been cancelled
-                        while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
-                            count += l;
-                            buffer.append(tmp, 0, l);
-                            sendProgressMessage(count, (contentLength <= 0 ? 1 : contentLength));
-                        }
-                    } finally {
-                        AsyncHttpClient.silentCloseInputStream(instream);
-                        AsyncHttpClient.endEntityViaReflection(entity);
-                    }
-                    responseBody = buffer.toByteArray();
-                } catch (OutOfMemoryError e) {
-                    System.gc();
-                    throw new IOException("File too large to fit into available memory");
+        ResponseBody body = readResponseBody(entity);
+        if (body == null) {
+            return null;
+        }
+        try {
+            return getResponseData(body);
+        } catch (OutOfMemoryError e) {
+            System.gc();
+            throw new IOException("File too large to fit into available memory");
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Returns byte array passed to {@link #onSuccess(int, Header[], byte[])} or {@link
+     * #onFailure(int, Header[], byte[], Throwable)} for the response body, which has been read
+     * into memory, or into file once over {@link #setMemoryThreshold(long)}. By default the body
+     * is loaded into the array whole; override to consume large body through {@link
+     * ResponseBody#openStream()} or {@link ResponseBody#toByteBuffer()} instead, without loading
+     * it into heap, and return null or a smaller array. The body is released once this method
+     * returns, so it must not be kept, see {@link ResponseBody#retain()}.
+     *
+     * @param body response body, never null
+     * @return array passed to the callback, can be null
+     * @throws java.io.IOException if reading the body failed, the request then fails or is
+     *                             retried as with any other I/O error
+     */
+    protected byte[] getResponseData(ResponseBody body) throws IOException {
+        return body.toByteArray();
+    }
+
+    /**
+     * Reads response HttpEntity contents into segments of buffer pool, or into file once over
+     * memory threshold, reporting progress
+     *
+     * @param entity can be null
+     * @return response entity body, which caller must release, or null
+     * @throws java.io.IOException if reading entity failed, or it's over maximum body size
+     */
+    ResponseBody readResponseBody(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return null;
+        }
+        InputStream instream = entity.getContent();
+        if (instream == null) {
+            return null;
+        }
+        long contentLength = entity.getContentLength();
+        long _memoryThreshold = memoryThreshold;
+        long _maxBodySize = maxBodySize;
+        ResponseBody body = null;
+        boolean isAborted = false;
+        try {
+            if (contentLength > _maxBodySize) {
+                isAborted = true;
+                throw new ResponseTooLargeException("Response body of " + contentLength + " bytes exceeds " + _maxBodySize + " bytes");
+            }
+            if (contentLength > Integer.MAX_VALUE && contentLength <= _memoryThreshold) {
+                throw new IllegalArgumentException("HTTP entity too large to be buffered in memory");
+            }
+            body = new ResponseBody(obtainBufferPool(), contentLength, _memoryThreshold, spillDirectory);
+            int l;
+            // do not send messages if request has been cancelled
+            while ((l = body.readFrom(instream)) != -1 && !Thread.currentThread().isInterrupted()) {
+                if (body.length() > _maxBodySize) {
+                    isAborted = true;
+                    throw new ResponseTooLargeException("Response body exceeds " + _maxBodySize + " bytes");
                 }
+                sendProgressMessage(body.length(), (contentLength <= 0 ? 1 : contentLength));
+            }
+            flushProgressMessage();
+            body.finish();
+            ResponseBody result = body;
+            body = null;
+            return result;
+        } catch (OutOfMemoryError e) {
+            System.gc();
+            throw new IOException("File too large to fit into available memory");
+        } finally {
+            if (body != null) {
+                body.release();
+            }
+            if (isAborted) {
+                AsyncHttpClient.abortEntityViaReflection(entity);
             }
+            AsyncHttpClient.silentCloseInputStream(instream);
+            AsyncHttpClient.endEntityViaReflection(entity);
         }
-        return responseBody;
     }
 
     /**
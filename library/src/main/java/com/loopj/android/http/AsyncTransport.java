@@ -0,0 +1,70 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.client.methods.HttpUriRequest;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+/**
+ * Transport able to execute requests without blocking the calling thread. {@link
+ * AsyncHttpRequest} started by {@link RequestDispatcher} releases its worker thread while the
+ * request is in flight, and continues on a worker thread once the response is complete, so
+ * requests waiting for slow servers don't hold a thread each.
+ * <p>&nbsp;</p>
+ * Blocking {@link #execute(HttpUriRequest, HttpContext)} is still used by {@link
+ * SyncHttpClient} and for retries.
+ */
+public interface AsyncTransport extends Transport {
+
+    /**
+     * Starts single attempt of the request and returns right away. Exactly one method of the
+     * callback is called later, on any thread, including the calling thread. Errors, including
+     * invalid requests, are reported to the callback as well.
+     *
+     * @param request  request to be sent, including its headers and entity
+     * @param context  HttpContext of the client, shared by all of its requests
+     * @param callback callback receiving the response, whose entity has been read completely
+     */
+    void execute(HttpUriRequest request, HttpContext context, Callback callback);
+
+    /**
+     * Receives result of request started by {@link AsyncTransport#execute(HttpUriRequest,
+     * HttpContext, Callback)}. Methods should return quickly, as they usually run on I/O thread
+     * of the transport.
+     */
+    interface Callback {
+
+        /**
+         * Called once the whole response has been received
+         *
+         * @param response response with entity readable without blocking
+         */
+        void onResponse(HttpResponse response);
+
+        /**
+         * Called if the request could not be sent, or the response could not be received
+         *
+         * @param error cause of the failure
+         */
+        void onFailure(IOException error);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+/**
+ * Pool of recyclable byte arrays, so that reading response bodies and writing uploads doesn't
+ * allocate fresh buffers for every request. Arrays come in size classes, powers of two from
+ * {@link #MIN_SEGMENT_SIZE} to {@link #MAX_SEGMENT_SIZE}; larger requests are served by
+ * unpooled arrays. Total size of arrays kept for reuse is bounded, arrays released over the
+ * bound are left to garbage collector.
+ * <p>&nbsp;</p>
+ * Shared by response handlers of {@link AsyncHttpClient}, see {@link
+ * AsyncHttpClient#setBufferPool(BufferPool)}, and by request entities, which use {@link
+ * #getDefault()}. Bodies are collected by {@link PooledBuffer}.
+ */
+public class BufferPool {
+
+    public static final int MIN_SEGMENT_SIZE = 4 * 1024;
+    public static final int MAX_SEGMENT_SIZE = 64 * 1024;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 1024 * 1024;
+
+    private static final int SIZE_CLASSES = 5;
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    // free arrays by size class, used as stacks
+    private final byte[][][] free = new byte[SIZE_CLASSES][][];
+    private final int[] freeCounts = new int[SIZE_CLASSES];
+    private long pooledBytes;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Creates new BufferPool
+     *
+     * @param maxPooledBytes maximum total size of arrays kept for reuse, split evenly between
+     *                       size classes
+     */
+    public BufferPool(long maxPooledBytes) {
+        Utils.asserts(maxPooledBytes >= 0, "maxPooledBytes must not be negative");
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            long capacity = maxPooledBytes / SIZE_CLASSES / (MIN_SEGMENT_SIZE << sizeClass);
+            free[sizeClass] = new byte[(int) Math.min(capacity, Integer.MAX_VALUE)][];
+        }
+    }
+
+    /**
+     * Returns pool shared by the whole process
+     *
+     * @return default pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns size of array, which would be acquired for given minimum size
+     *
+     * @param size minimum size
+     * @return size of the smallest size class fitting the size, or the size itself if larger
+     * than {@link #MAX_SEGMENT_SIZE}
+     */
+    public static int segmentSize(int size) {
+        if (size > MAX_SEGMENT_SIZE) {
+            return size;
+        }
+        int segmentSize = MIN_SEGMENT_SIZE;
+        while (segmentSize < size) {
+            segmentSize <<= 1;
+        }
+        return segmentSize;
+    }
+
+    private static int sizeClass(int segmentSize) {
+        int sizeClass = 0;
+        while ((MIN_SEGMENT_SIZE << sizeClass) < segmentSize) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Takes array of at least given size out of the pool, or allocates new one. Contents of
+     * the array are undefined.
+     *
+     * @param size minimum size of the array
+     * @return array of {@link #segmentSize(int)} bytes, to be given back by {@link
+     * #release(byte[])}
+     */
+    public byte[] acquire(int size) {
+        int segmentSize = segmentSize(size);
+        if (segmentSize <= MAX_SEGMENT_SIZE) {
+            int sizeClass = sizeClass(segmentSize);
+            synchronized (this) {
+                if (freeCounts[sizeClass] > 0) {
+                    byte[][] stack = free[sizeClass];
+                    byte[] array = stack[--freeCounts[sizeClass]];
+                    stack[freeCounts[sizeClass]] = null;
+                    pooledBytes -= segmentSize;
+                    hitCount++;
+                    return array;
+                }
+                missCount++;
+            }
+        }
+        return new byte[segmentSize];
+    }
+
+    /**
+     * Gives array back to the pool. The array must not be used by caller afterwards. Arrays not
+     * acquired from a pool, of size not matching any size class, are ignored.
+     *
+     * @param array array acquired by {@link #acquire(int)}, can be null
+     */
+    public void release(byte[] array) {
+        if (array == null || array.length > MAX_SEGMENT_SIZE || array.length != segmentSize(array.length)) {
+            return;
+        }
+        int sizeClass = sizeClass(array.length);
+        synchronized (this) {
+            if (freeCounts[sizeClass] < free[sizeClass].length) {
+                free[sizeClass][freeCounts[sizeClass]++] = array;
+                pooledBytes += array.length;
+            }
+        }
+    }
+
+    /**
+     * Returns total size of arrays currently kept for reuse
+     *
+     * @return size in bytes
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Returns number of acquired arrays, which were reused
+     *
+     * @return number of hits since creation of the pool
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns number of acquired arrays of pooled size, which had to be allocated
+     *
+     * @return number of misses since creation of the pool
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Drops all arrays kept for reuse
+     */
+    public synchronized void clear() {
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            for (int i = 0; i < freeCounts[sizeClass]; i++) {
+                free[sizeClass][i] = null;
+            }
+            freeCounts[sizeClass] = 0;
+        }
+        pooledBytes = 0;
+    }
+}
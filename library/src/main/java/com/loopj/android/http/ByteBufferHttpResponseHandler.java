@@ -0,0 +1,175 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import android.os.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.StatusLine;
+import cz.msebera.android.httpclient.client.HttpResponseException;
+
+/**
+ * Used to intercept and handle the responses, receiving response body as read-only {@link
+ * ByteBuffer} view of the buffers it was read into, instead of copy made into byte array. Body of
+ * known length is read into single array of that size, smaller bodies into segment of {@link
+ * BufferPool}; body of unknown length spanning several segments is copied into single array
+ * once. Body spilled to file over {@link #setMemoryThreshold(long)} is mapped into memory. Pooled
+ * segments return to the pool and spilled file is deleted after the callback returns, so the
+ * buffer must not be kept past the callback, copy its contents instead. Should the looper quit
+ * with the response message still pending, the message is discarded unhandled, as there is no
+ * callback to release it from; its spilled file is left in the spill directory, to be deleted
+ * by a later process once it is an hour old.
+ * <p>&nbsp;</p>
+ * Responses, which don't come with body read by this handler, such as network failures, are
+ * passed through {@link #onSuccess(int, Header[], byte[])} and {@link #onFailure(int, Header[],
+ * byte[], Throwable)}, which wrap the byte array.
+ * <p>&nbsp;</p>
+ * For example: <p>&nbsp;</p>
+ * <pre>
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.get("https://www.example.com/data.bin", new ByteBufferHttpResponseHandler() {
+ *     &#064;Override
+ *     public void onSuccess(int statusCode, Header[] headers, ByteBuffer responseBody) {
+ *         // Parse responseBody, it is valid until this method returns
+ *     }
+ *
+ *     &#064;Override
+ *     public void onFailure(int statusCode, Header[] headers, ByteBuffer responseBody, Throwable error) {
+ *         // Response failed :(
+ *     }
+ * });
+ * </pre>
+ */
+public abstract class ByteBufferHttpResponseHandler extends AsyncHttpResponseHandler {
+
+    /**
+     * Creates a new ByteBufferHttpResponseHandler
+     */
+    public ByteBufferHttpResponseHandler() {
+        super();
+    }
+
+    /**
+     * Creates a new ByteBufferHttpResponseHandler and decide whether the callbacks will be fired
+     * on current thread's looper or the pool thread's.
+     *
+     * @param usePoolThread Whether to use the pool's thread to fire callbacks
+     */
+    public ByteBufferHttpResponseHandler(boolean usePoolThread) {
+        super(usePoolThread);
+    }
+
+    /**
+     * Fired when a request returns successfully, override to handle in your own code
+     *
+     * @param statusCode   the status code of the response
+     * @param headers      return headers, if any
+     * @param responseBody read-only body of the response, valid until this method returns, or
+     *                     null
+     */
+    public abstract void onSuccess(int statusCode, Header[] headers, ByteBuffer responseBody);
+
+    /**
+     * Fired when a request fails to complete, override to handle in your own code
+     *
+     * @param statusCode   return HTTP status code
+     * @param headers      return headers, if any
+     * @param responseBody read-only body of the response, valid until this method returns, or
+     *                     null
+     * @param error        the underlying cause of the failure
+     */
+    public abstract void onFailure(int statusCode, Header[] headers, ByteBuffer responseBody, Throwable error);
+
+    @Override
+    public final void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+        onSuccess(statusCode, headers, wrap(responseBody));
+    }
+
+    @Override
+    public final void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+        onFailure(statusCode, headers, wrap(responseBody), error);
+    }
+
+    private static ByteBuffer wrap(byte[] responseBody) {
+        return responseBody == null ? null : ByteBuffer.wrap(responseBody).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        // do not process if request has been cancelled
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        StatusLine status = response.getStatusLine();
+        ResponseBody buffer = readResponseBody(response.getEntity());
+        // additional cancellation check as reading the body can take non-zero time to process
+        if (Thread.currentThread().isInterrupted()) {
+            if (buffer != null) {
+                buffer.release();
+            }
+            return;
+        }
+        ByteBuffer responseBody;
+        try {
+            responseBody = buffer == null ? null : buffer.toByteBuffer();
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        } catch (OutOfMemoryError e) {
+            buffer.release();
+            System.gc();
+            throw new IOException("File too large to fit into available memory");
+        }
+        Message message;
+        if (status.getStatusCode() >= 300) {
+            message = obtainMessage(FAILURE_MESSAGE, new Object[]{status.getStatusCode(), response.getAllHeaders(), responseBody, new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()), buffer});
+        } else {
+            message = obtainMessage(SUCCESS_MESSAGE, new Object[]{status.getStatusCode(), response.getAllHeaders(), responseBody, buffer});
+        }
+        // the body is released once handled, or here if the message never gets that far
+        if (!postMessage(message) && buffer != null) {
+            buffer.release();
+        }
+    }
+
+    @Override
+    protected void handleMessage(Message message) {
+        Object[] response = (Object[]) (message.what == SUCCESS_MESSAGE || message.what == FAILURE_MESSAGE ? message.obj : null);
+        if (response == null || response.length < 3 || !(response[2] instanceof ByteBuffer)) {
+            super.handleMessage(message);
+            return;
+        }
+        ResponseBody buffer = (ResponseBody) response[response.length - 1];
+        try {
+            if (message.what == SUCCESS_MESSAGE) {
+                onSuccess((Integer) response[0], (Header[]) response[1], (ByteBuffer) response[2]);
+            } else {
+                onFailure((Integer) response[0], (Header[]) response[1], (ByteBuffer) response[2], (Throwable) response[3]);
+            }
+        } catch (Throwable error) {
+            onUserException(error);
+        } finally {
+            buffer.release();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import cz.msebera.android.httpclient.conn.DnsResolver;
+import cz.msebera.android.httpclient.impl.conn.SystemDefaultDnsResolver;
+
+/**
+ * DnsResolver keeping results of another resolver (system resolver by default) in bounded
+ * in-memory cache, so new connections to recently resolved hosts don't wait for DNS lookup.
+ * Successful lookups are kept for {@link #getTimeToLive()}, failed lookups for {@link
+ * #getNegativeTimeToLive()}. Hosts in use are refreshed in background shortly before their
+ * entry expires, and can be resolved ahead of time by {@link #prefetch(String...)}.
+ * <p>&nbsp;</p>
+ * Set by {@link AsyncHttpClient#setDnsResolver(DnsResolver)} or {@link
+ * PooledConnectionManager#setDnsResolver(DnsResolver)}.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+    public static final long DEFAULT_TIME_TO_LIVE = 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TIME_TO_LIVE = 10 * 1000;
+
+    private static final String LOG_TAG = "CachingDnsResolver";
+    // part of time to live, after which use of entry triggers refresh in background
+    private static final double REFRESH_RATIO = 0.75;
+
+    private final DnsResolver resolver;
+    private final Map<String, CacheEntry> entries;
+    private final long timeToLive;
+    private final long negativeTimeToLive;
+    private Executor executor;
+    private long hitCount;
+    private long missCount;
+    private long resolveCount;
+    private long totalResolveTimeMillis;
+
+    /**
+     * Creates new CachingDnsResolver on top of system resolver, with default limits
+     */
+    public CachingDnsResolver() {
+        this(SystemDefaultDnsResolver.INSTANCE, DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE, DEFAULT_NEGATIVE_TIME_TO_LIVE);
+    }
+
+    /**
+     * Creates new CachingDnsResolver
+     *
+     * @param resolver           resolver doing the actual lookups, must not be null
+     * @param maxEntries         maximum number of cached hosts, least recently used are dropped
+     * @param timeToLive         time in milliseconds successful lookup is cached for
+     * @param negativeTimeToLive time in milliseconds failed lookup is cached for, 0 to not cache
+     *                           failures
+     */
+    public CachingDnsResolver(DnsResolver resolver, final int maxEntries, long timeToLive, long negativeTimeToLive) {
+        Utils.asserts(maxEntries > 0, "maxEntries must be positive");
+        this.resolver = Utils.notNull(resolver, "resolver");
+        this.timeToLive = Math.max(0, timeToLive);
+        this.negativeTimeToLive = Math.max(0, negativeTimeToLive);
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Sets executor used to refresh and prefetch hosts in background
+     *
+     * @param executor executor, or null to start new thread for each background lookup
+     */
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        CacheEntry entry;
+        boolean refresh = false;
+        synchronized (this) {
+            entry = entries.get(host);
+            long now = System.currentTimeMillis();
+            if (entry != null && now < entry.expires) {
+                hitCount++;
+                if (entry.error == null && now >= entry.refreshAfter && !entry.isRefreshing) {
+                    entry.isRefreshing = true;
+                    refresh = true;
+                }
+            } else {
+                missCount++;
+                entry = null;
+            }
+        }
+        if (refresh) {
+            refreshInBackground(host);
+        }
+        if (entry == null) {
+            entry = lookup(host);
+        }
+        if (entry.error != null) {
+            throw new UnknownHostException(entry.error.getMessage());
+        }
+        return entry.addresses.clone();
+    }
+
+    /**
+     * Resolves the hosts in background, so they are cached by the time they are connected to
+     *
+     * @param hosts host names to be resolved
+     */
+    public void prefetch(String... hosts) {
+        prefetch(Arrays.asList(hosts));
+    }
+
+    /**
+     * Resolves the hosts in background, so they are cached by the time they are connected to
+     *
+     * @param hosts host names to be resolved
+     */
+    public void prefetch(Collection<String> hosts) {
+        for (String host : hosts) {
+            synchronized (this) {
+                CacheEntry entry = entries.get(host);
+                if (entry != null && entry.error == null && System.currentTimeMillis() < entry.refreshAfter) {
+                    continue;
+                }
+            }
+            refreshInBackground(host);
+        }
+    }
+
+    /**
+     * Drops all cached lookups, i.e. after network connectivity change
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns time successful lookups are cached for
+     *
+     * @return time to live in milliseconds
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Returns time failed lookups are cached for
+     *
+     * @return time to live of failures in milliseconds
+     */
+    public long getNegativeTimeToLive() {
+        return negativeTimeToLive;
+    }
+
+    /**
+     * Returns number of lookups answered from cache
+     *
+     * @return number of cache hits
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns number of lookups, which had to wait for the underlying resolver
+     *
+     * @return number of cache misses
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns ratio of lookups answered from cache
+     *
+     * @return hit rate between 0 and 1, 0 if there was no lookup yet
+     */
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Returns average time taken by the underlying resolver, including background lookups
+     *
+     * @return average resolution time in milliseconds, 0 if there was no lookup yet
+     */
+    public synchronized long getAverageResolveTimeMillis() {
+        return resolveCount == 0 ? 0 : totalResolveTimeMillis / resolveCount;
+    }
+
+    private CacheEntry lookup(String host) {
+        long start = System.currentTimeMillis();
+        CacheEntry entry = new CacheEntry();
+        try {
+            entry.addresses = resolver.resolve(host);
+        } catch (UnknownHostException e) {
+            entry.error = e;
+        }
+        long now = System.currentTimeMillis();
+        long ttl = entry.error == null ? timeToLive : negativeTimeToLive;
+        entry.expires = now + ttl;
+        entry.refreshAfter = now + (long) (ttl * REFRESH_RATIO);
+        synchronized (this) {
+            resolveCount++;
+            totalResolveTimeMillis += now - start;
+            CacheEntry previous = entries.get(host);
+            if (entry.error != null && previous != null && previous.error == null && now < previous.expires) {
+                // failed refresh, keep using addresses which are still valid
+                previous.isRefreshing = false;
+                return entry;
+            }
+            if (ttl > 0) {
+                entries.put(host, entry);
+            } else {
+                entries.remove(host);
+            }
+        }
+        return entry;
+    }
+
+    private void refreshInBackground(final String host) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                lookup(host);
+            }
+        };
+        Executor _executor;
+        synchronized (this) {
+            _executor = executor;
+        }
+        if (_executor != null) {
+            try {
+                _executor.execute(runnable);
+                return;
+            } catch (RejectedExecutionException e) {
+                AsyncHttpClient.log.w(LOG_TAG, "Executor rejected DNS lookup, using new thread", e);
+            }
+        }
+        Thread thread = new Thread(runnable, "AsyncHttpClient-dns");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static class CacheEntry {
+        InetAddress[] addresses;
+        UnknownHostException error;
+        long expires;
+        long refreshAfter;
+        boolean isRefreshing;
+    }
+}
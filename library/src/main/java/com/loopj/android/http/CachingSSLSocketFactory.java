@@ -0,0 +1,92 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import cz.msebera.android.httpclient.conn.ssl.SSLSocketFactory;
+import cz.msebera.android.httpclient.conn.ssl.X509HostnameVerifier;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+/**
+ * SSLSocketFactory with its own SSLContext and {@link TlsSessionCache}, so TLS sessions are
+ * cached per client rather than shared with every other user of the default SSLContext, and
+ * their handshakes are counted. Certificates and host names are verified as by {@link
+ * SSLSocketFactory#getSocketFactory()}.
+ * <p>&nbsp;</p>
+ * Used for HTTPS by default, see {@link AsyncHttpClient#AsyncHttpClient(boolean, int, int)}.
+ */
+public class CachingSSLSocketFactory extends SSLSocketFactory {
+
+    private final SSLContext sslContext;
+    private final TlsSessionCache sessionCache;
+
+    /**
+     * Creates new CachingSSLSocketFactory, trusting system certificate authorities and verifying
+     * host names as browsers do
+     *
+     * @throws NoSuchAlgorithmException if TLS is not available
+     * @throws KeyManagementException   if the SSLContext cannot be initialized
+     */
+    public CachingSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
+        this(createDefaultContext(), BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+    }
+
+    /**
+     * Creates new CachingSSLSocketFactory
+     *
+     * @param sslContext       initialized SSLContext, must not be null
+     * @param hostnameVerifier host name verifier, must not be null
+     */
+    public CachingSSLSocketFactory(SSLContext sslContext, X509HostnameVerifier hostnameVerifier) {
+        super(sslContext, hostnameVerifier);
+        this.sslContext = sslContext;
+        this.sessionCache = new TlsSessionCache(sslContext);
+    }
+
+    private static SSLContext createDefaultContext() throws NoSuchAlgorithmException, KeyManagementException {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, null, null);
+        return sslContext;
+    }
+
+    /**
+     * Returns session cache of this factory, to configure its limits or read handshake counters
+     *
+     * @return TLS session cache
+     */
+    public TlsSessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, target, port, true);
+        prepareSocket(sslSocket);
+        sessionCache.track(sslSocket);
+        TlsSessionCache.handshake(sslSocket, target, getHostnameVerifier());
+        return sslSocket;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancels requests without blocking the calling thread, which is usually the main thread. The
+ * requests are marked as cancelled right away, and their connections are aborted in batches by
+ * single worker thread of elevated priority, shared by all clients. The worker thread is started
+ * on demand and stops after {@link #IDLE_TIMEOUT_MILLIS} without work, so no thread is kept
+ * while nothing gets cancelled.
+ */
+final class CancellationService {
+
+    private static final String LOG_TAG = "CancellationService";
+    private static final long IDLE_TIMEOUT_MILLIS = 10 * 1000;
+    private static final CancellationService instance = new CancellationService();
+
+    private final List<AsyncHttpRequest> pendingAborts = new ArrayList<AsyncHttpRequest>();
+    private boolean isWorkerRunning;
+
+    private CancellationService() {
+    }
+
+    static CancellationService getInstance() {
+        return instance;
+    }
+
+    /**
+     * Marks the request as cancelled and schedules abort of its connection
+     *
+     * @param request request to be cancelled
+     * @return true if the request is cancelled, false if it has already finished
+     */
+    boolean cancel(AsyncHttpRequest request) {
+        boolean cancelled = request.markCancelled();
+        synchronized (this) {
+            pendingAborts.add(request);
+            startWorkerIfNeeded();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Marks all the requests as cancelled and schedules abort of their connections at once
+     *
+     * @param requests requests to be cancelled
+     */
+    void cancelAll(List<AsyncHttpRequest> requests) {
+        for (AsyncHttpRequest request : requests) {
+            request.markCancelled();
+        }
+        synchronized (this) {
+            pendingAborts.addAll(requests);
+            startWorkerIfNeeded();
+        }
+    }
+
+    private void startWorkerIfNeeded() {
+        if (isWorkerRunning) {
+            notifyAll();
+            return;
+        }
+        isWorkerRunning = true;
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processAborts();
+            }
+        }, "AsyncHttpClient-cancel");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MAX_PRIORITY);
+        worker.start();
+    }
+
+    private void processAborts() {
+        while (true) {
+            List<AsyncHttpRequest> batch;
+            synchronized (this) {
+                if (pendingAborts.isEmpty()) {
+                    try {
+                        wait(IDLE_TIMEOUT_MILLIS);
+                    } catch (InterruptedException e) {
+                        // fall through, exit if there's no work
+                    }
+                }
+                if (pendingAborts.isEmpty()) {
+                    isWorkerRunning = false;
+                    return;
+                }
+                batch = new ArrayList<AsyncHttpRequest>(pendingAborts);
+                pendingAborts.clear();
+            }
+            for (AsyncHttpRequest request : batch) {
+                try {
+                    request.abort();
+                } catch (Throwable t) {
+                    AsyncHttpClient.log.w(LOG_TAG, "Aborting cancelled request failed", t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpEntity;
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.client.methods.HttpUriRequest;
+import cz.msebera.android.httpclient.entity.ByteArrayEntity;
+
+/**
+ * Response handler shared by identical GET requests, which are in flight at the same time, see
+ * {@link AsyncHttpClient#setRequestCoalescingEnabled(boolean)}. The response body is read only
+ * once, and then replayed from memory to each subscribed {@link ResponseHandlerInterface}, so
+ * every kind of response handler receives the response as if it made the request itself.
+ * <p>&nbsp;</p>
+ * Callbacks are fired on the pool thread, and forwarded to subscribed handlers, which in turn
+ * deliver them according to their own threading settings.
+ */
+class CoalescingResponseHandler extends AsyncHttpResponseHandler {
+
+    private static final String LOG_TAG = "CoalescingRH";
+    private static final int NOT_SUBSCRIBED = 0;
+    private static final int UNSUBSCRIBED = 1;
+    private static final int UNSUBSCRIBED_LAST = 2;
+
+    private final Map<String, CoalescingResponseHandler> inFlightRequests;
+    private final String requestKey;
+    private final List<ResponseHandlerInterface> subscribers = new ArrayList<ResponseHandlerInterface>();
+    private AsyncHttpRequest request;
+    private boolean isStarted;
+    private boolean isClosed;
+
+    /**
+     * Creates new CoalescingResponseHandler
+     *
+     * @param inFlightRequests map of coalesced requests, from which this handler removes itself
+     *                         once it stops accepting new subscribers, guarded by itself
+     * @param requestKey       key of this handler within inFlightRequests
+     */
+    CoalescingResponseHandler(Map<String, CoalescingResponseHandler> inFlightRequests, String requestKey) {
+        super(true);
+        this.inFlightRequests = inFlightRequests;
+        this.requestKey = requestKey;
+    }
+
+    /**
+     * Returns key identifying requests, which can share single response. Requests are considered
+     * identical, if they have the same URI and the same headers, regardless of header order.
+     *
+     * @param request request to get key for
+     * @return key of the request
+     */
+    static String getRequestKey(HttpUriRequest request) {
+        List<String> headers = new ArrayList<String>();
+        for (Header header : request.getAllHeaders()) {
+            headers.add(header.getName().toLowerCase(Locale.US) + ": " + header.getValue());
+        }
+        Collections.sort(headers);
+
+        StringBuilder key = new StringBuilder(request.getMethod()).append(' ').append(request.getURI());
+        for (String header : headers) {
+            key.append('\n').append(header);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns whether the response handler can receive replayed response of coalesced request
+     *
+     * @param responseHandler response handler of the request
+     * @return false for handlers, which modify the request before it is sent, or read the live
+     * body stream of their own request, also when wrapped as member of request group
+     */
+    static boolean isCoalescable(ResponseHandlerInterface responseHandler) {
+        ResponseHandlerInterface handler = RequestGroup.Member.unwrap(responseHandler);
+        return !(handler instanceof RangeFileAsyncHttpResponseHandler) && !(handler instanceof StreamingResponseHandler);
+    }
+
+    AsyncHttpRequest getRequest() {
+        return request;
+    }
+
+    void setRequest(AsyncHttpRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * Attaches response handler to the shared request
+     *
+     * @param responseHandler response handler to receive the response
+     * @return RequestHandle of the subscription, or null if this handler no longer accepts
+     * subscribers, as the response is already being delivered
+     */
+    RequestHandle subscribe(ResponseHandlerInterface responseHandler) {
+        boolean sendStart;
+        synchronized (this) {
+            if (isClosed) {
+                return null;
+            }
+            subscribers.add(responseHandler);
+            sendStart = isStarted;
+        }
+        if (sendStart) {
+            // late subscriber has missed start of the shared request
+            responseHandler.sendStartMessage();
+        }
+        return new Subscription(this, responseHandler);
+    }
+
+    /**
+     * Detaches response handler and stops accepting new subscribers, if it was the last one
+     *
+     * @param responseHandler response handler to be detached
+     * @return {@link #UNSUBSCRIBED_LAST} if the shared request should be cancelled, {@link
+     * #NOT_SUBSCRIBED} if the response handler was not subscribed anymore
+     */
+    private int unsubscribe(ResponseHandlerInterface responseHandler) {
+        boolean isLast;
+        synchronized (this) {
+            if (!subscribers.remove(responseHandler)) {
+                return NOT_SUBSCRIBED;
+            }
+            isLast = !isClosed && subscribers.isEmpty();
+        }
+        responseHandler.sendCancelMessage();
+        if (isLast) {
+            close();
+            return UNSUBSCRIBED_LAST;
+        }
+        return UNSUBSCRIBED;
+    }
+
+    /**
+     * Stops accepting new subscribers
+     *
+     * @return subscribers to receive the response
+     */
+    private List<ResponseHandlerInterface> close() {
+        List<ResponseHandlerInterface> receivers;
+        synchronized (this) {
+            isClosed = true;
+            receivers = new ArrayList<ResponseHandlerInterface>(subscribers);
+        }
+        synchronized (inFlightRequests) {
+            if (inFlightRequests.get(requestKey) == this) {
+                inFlightRequests.remove(requestKey);
+            }
+        }
+        return receivers;
+    }
+
+    private synchronized List<ResponseHandlerInterface> getSubscribers() {
+        return new ArrayList<ResponseHandlerInterface>(subscribers);
+    }
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
+        HttpEntity entity = response.getEntity();
+        Header contentType = entity == null ? null : entity.getContentType();
+        byte[] responseBody = getResponseData(entity);
+
+        // handlers subscribed while the body was read will get it as well
+        for (ResponseHandlerInterface subscriber : close()) {
+            if (responseBody != null) {
+                ByteArrayEntity replayedEntity = new ByteArrayEntity(responseBody);
+                replayedEntity.setContentType(contentType);
+                response.setEntity(replayedEntity);
+            }
+            try {
+                subscriber.onPreProcessResponse(subscriber, response);
+                subscriber.sendResponseMessage(response);
+                subscriber.onPostProcessResponse(subscriber, response);
+            } catch (IOException e) {
+                // failure of single subscriber must not affect the others
+                subscriber.sendFailureMessage(0, null, null, e);
+            }
+        }
+    }
+
+    @Override
+    public void onStart() {
+        synchronized (this) {
+            isStarted = true;
+        }
+        for (ResponseHandlerInterface subscriber : getSubscribers()) {
+            subscriber.sendStartMessage();
+        }
+    }
+
+    @Override
+    public void onFinish() {
+        for (ResponseHandlerInterface subscriber : close()) {
+            subscriber.sendFinishMessage();
+        }
+    }
+
+    @Override
+    public void onRetry(int retryNo) {
+        for (ResponseHandlerInterface subscriber : getSubscribers()) {
+            subscriber.sendRetryMessage(retryNo);
+        }
+    }
+
+    @Override
+    public void onCancel() {
+        for (ResponseHandlerInterface subscriber : close()) {
+            subscriber.sendCancelMessage();
+        }
+    }
+
+    @Override
+    public void onProgress(long bytesWritten, long totalSize) {
+        // progress is reported to subscribers, when the response is replayed to them
+    }
+
+    @Override
+    public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+        // never called, as sendResponseMessage is overridden
+    }
+
+    @Override
+    public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+        for (ResponseHandlerInterface subscriber : close()) {
+            subscriber.sendFailureMessage(statusCode, headers, responseBody, error);
+        }
+    }
+
+    @Override
+    public void onUserException(Throwable error) {
+        AsyncHttpClient.log.e(LOG_TAG, "Forwarding callback to subscriber failed", error);
+    }
+
+    /**
+     * Handle of single subscriber, cancelling the shared request only when it's the last one
+     */
+    private static class Subscription extends RequestHandle {
+        private final CoalescingResponseHandler shared;
+        private final ResponseHandlerInterface responseHandler;
+        private volatile boolean isCancelled;
+
+        Subscription(CoalescingResponseHandler shared, ResponseHandlerInterface responseHandler) {
+            super(shared.getRequest());
+            this.shared = shared;
+            this.responseHandler = responseHandler;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            int result = shared.unsubscribe(responseHandler);
+            if (result == NOT_SUBSCRIBED) {
+                return false;
+            }
+            isCancelled = true;
+            unregister();
+            if (result == UNSUBSCRIBED_LAST) {
+                super.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return isCancelled || super.isFinished();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+
+        @Override
+        public Object getTag() {
+            return responseHandler.getTag();
+        }
+
+        @Override
+        public RequestHandle setTag(Object tag) {
+            responseHandler.setTag(tag);
+            notifyTagChanged();
+            return this;
+        }
+
+        @Override
+        public RequestHandle setPriority(int priority) {
+            // shared request runs at the highest priority of its subscribers
+            if (priority > super.getPriority()) {
+                super.setPriority(priority);
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import cz.msebera.android.httpclient.conn.routing.HttpRoute;
+
+/**
+ * Snapshot of connections of {@link PooledConnectionManager}, either of single route, or of the
+ * whole pool
+ */
+public class ConnectionPoolStats {
+
+    private final HttpRoute route;
+    private final int leased;
+    private final int idle;
+    private final int pending;
+    private final int max;
+    private final long leaseCount;
+    private final long totalLeaseWaitMillis;
+    private final long maxLeaseWaitMillis;
+
+    ConnectionPoolStats(HttpRoute route, int leased, int idle, int pending, int max, long leaseCount, long totalLeaseWaitMillis, long maxLeaseWaitMillis) {
+        this.route = route;
+        this.leased = leased;
+        this.idle = idle;
+        this.pending = pending;
+        this.max = max;
+        this.leaseCount = leaseCount;
+        this.totalLeaseWaitMillis = totalLeaseWaitMillis;
+        this.maxLeaseWaitMillis = maxLeaseWaitMillis;
+    }
+
+    /**
+     * Returns route these statistics belong to
+     *
+     * @return route, or null if these are statistics of the whole pool
+     */
+    public HttpRoute getRoute() {
+        return route;
+    }
+
+    /**
+     * Returns number of connections currently used by requests
+     *
+     * @return number of leased connections
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * Returns number of open connections kept in the pool for reuse
+     *
+     * @return number of idle connections
+     */
+    public int getIdle() {
+        return idle;
+    }
+
+    /**
+     * Returns number of requests currently waiting for a connection
+     *
+     * @return number of pending connection requests
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Returns maximum number of connections
+     *
+     * @return limit of connections of the route, or of the whole pool
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Returns number of connections leased so far
+     *
+     * @return number of leases
+     */
+    public long getLeaseCount() {
+        return leaseCount;
+    }
+
+    /**
+     * Returns average time requests waited for a connection
+     *
+     * @return average lease wait time in milliseconds, 0 if no connection was leased yet
+     */
+    public long getAverageLeaseWaitMillis() {
+        return leaseCount == 0 ? 0 : totalLeaseWaitMillis / leaseCount;
+    }
+
+    /**
+     * Returns longest time a request waited for a connection
+     *
+     * @return maximum lease wait time in milliseconds
+     */
+    public long getMaxLeaseWaitMillis() {
+        return maxLeaseWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "[route: " + (route == null ? "all" : route) +
+                "; leased: " + leased +
+                "; idle: " + idle +
+                "; pending: " + pending +
+                "; max: " + max +
+                "; leases: " + leaseCount +
+                "; avg wait: " + getAverageLeaseWaitMillis() + "ms" +
+                "; max wait: " + maxLeaseWaitMillis + "ms]";
+    }
+}
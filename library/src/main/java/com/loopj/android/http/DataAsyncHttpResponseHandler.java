@@ -24,7 +24,6 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import cz.msebera.android.httpclient.HttpEntity;
-import cz.msebera.android.httpclient.util.ByteArrayBuffer;
 
 @SuppressWarnings("ALL")
 public abstract class DataAsyncHttpResponseHandler extends AsyncHttpResponseHandler {
@@ -124,17 +123,20 @@ public abstract class DataAsyncHttpResponseHandler extends AsyncHttpResponseHand
                 if (contentLength < 0) {
                     contentLength = BUFFER_SIZE;
                 }
+                BufferPool pool = obtainBufferPool();
+                PooledBuffer buffer = null;
+                byte[] tmp = pool.acquire(BUFFER_SIZE);
                 try {
-                    ByteArrayBuffer buffer = new ByteArrayBuffer((int) contentLength);
+                    buffer = new PooledBuffer(pool, (int) contentLength);
                     try {
-                        byte[] tmp = new byte[BUFFER_SIZE];
                         int l, count = 0;
                         // do not send messages if request has been cancelled
                         while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
-                            buffer.append(tmp, 0, l);
+                            buffer.write(tmp, 0, l);
                             sendProgressDataMessage(copyOfRange(tmp, 0, l));
                             sendProgressMessage(count, contentLength);
                         }
+                        flushProgressMessage();
                     } finally {
                         AsyncHttpClient.silentCloseInputStream(instream);
                     }
@@ -142,6 +144,11 @@ public abstract class DataAsyncHttpResponseHandler extends AsyncHttpResponseHand
                 } catch (OutOfMemoryError e) {
                     System.gc();
                     throw new IOException("File too large to fit into available memory");
+                } finally {
+                    pool.release(tmp);
+                    if (buffer != null) {
+                        buffer.release();
+                    }
                 }
             }
         }
@@ -0,0 +1,35 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+
+/**
+ * Reported to {@link ResponseHandlerInterface#sendFailureMessage(int, cz.msebera.android.httpclient.Header[],
+ * byte[], Throwable)}, when request has not completed before its deadline, see {@link
+ * RequestHandle#setDeadline(long)}
+ */
+public class DeadlineExceededException extends IOException {
+
+    private static final long serialVersionUID = -3390167546391721806L;
+
+    public DeadlineExceededException(String detailMessage) {
+        super(detailMessage);
+    }
+}
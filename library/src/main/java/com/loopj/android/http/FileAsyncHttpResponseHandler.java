@@ -219,8 +219,9 @@ public abstract class FileAsyncHttpResponseHandler extends AsyncHttpResponseHand
             long contentLength = entity.getContentLength();
             FileOutputStream buffer = new FileOutputStream(getTargetFile(), this.append);
             if (instream != null) {
+                BufferPool pool = obtainBufferPool();
+                byte[] tmp = pool.acquire(BUFFER_SIZE);
                 try {
-                    byte[] tmp = new byte[BUFFER_SIZE];
                     int l, count = 0;
                     // do not send messages if request has been cancelled
                     while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
@@ -228,7 +229,9 @@ public abstract class FileAsyncHttpResponseHandler extends AsyncHttpResponseHand
                         buffer.write(tmp, 0, l);
                         sendProgressMessage(count, contentLength);
                     }
+                    flushProgressMessage();
                 } finally {
+                    pool.release(tmp);
                     AsyncHttpClient.silentCloseInputStream(instream);
                     buffer.flush();
                     AsyncHttpClient.silentCloseOutputStream(buffer);
@@ -0,0 +1,501 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.message.BasicHeader;
+import cz.msebera.android.httpclient.util.ByteArrayBuffer;
+
+/**
+ * HPACK header compression of HTTP/2 (RFC 7541), as used by {@link NioTransport}. Header names
+ * and values are mapped to octets one to one as ISO-8859-1, same as in HTTP/1.1 messages.
+ */
+final class Hpack {
+
+    /**
+     * Initial size of dynamic tables, also the size advertised by {@link NioTransport}
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int EOS = 256;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // Huffman code of each octet and of EOS, aligned to the right
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    // lookup of static table entries by "name:value" and by name, to their lowest index
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<String, Integer>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+    // binary tree of Huffman codes, two slots per node, leaves are stored as -(symbol + 1)
+    private static final int[] HUFFMAN_TREE = new int[2 * (EOS + 1)];
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_ENTRIES.put(STATIC_TABLE[i][0] + ':' + STATIC_TABLE[i][1], i + 1);
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+        int nextNode = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (HUFFMAN_TREE[slot] == 0) {
+                    HUFFMAN_TREE[slot] = nextNode++;
+                }
+                node = HUFFMAN_TREE[slot];
+            }
+            HUFFMAN_TREE[2 * node + (code & 1)] = -(symbol + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Encoder of header blocks sent to single peer, indexing headers in its dynamic table
+     */
+    static class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        // smallest and last size since the previous header block, -1 if unchanged
+        private int minTableSize = -1;
+        private int lastTableSize = -1;
+
+        /**
+         * Applies maximum size of the dynamic table, as allowed by the peer
+         *
+         * @param size maximum size in octets, as in SETTINGS_HEADER_TABLE_SIZE
+         */
+        void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size == table.maxSize) {
+                return;
+            }
+            table.setMaxSize(size);
+            minTableSize = minTableSize < 0 ? size : Math.min(minTableSize, size);
+            lastTableSize = size;
+        }
+
+        /**
+         * Encodes the headers as single header block
+         *
+         * @param headers headers with lower case names, pseudo-headers first
+         * @param out     buffer, where the encoded block is appended
+         */
+        void encode(List<Header> headers, ByteArrayBuffer out) {
+            if (minTableSize >= 0) {
+                writeInt(out, 0x20, 5, minTableSize);
+                if (lastTableSize != minTableSize) {
+                    writeInt(out, 0x20, 5, lastTableSize);
+                }
+                minTableSize = -1;
+                lastTableSize = -1;
+            }
+            for (Header header : headers) {
+                String name = header.getName();
+                String value = header.getValue() == null ? "" : header.getValue();
+                Integer staticIndex = STATIC_ENTRIES.get(name + ':' + value);
+                int index = staticIndex != null ? staticIndex : table.indexOf(name, value);
+                if (index > 0) {
+                    writeInt(out, 0x80, 7, index);
+                    continue;
+                }
+                Integer staticName = STATIC_NAMES.get(name);
+                int nameIndex = staticName != null ? staticName : table.indexOfName(name);
+                if ("authorization".equals(name) || "proxy-authorization".equals(name)) {
+                    // never indexed, so intermediaries don't compress credentials either
+                    writeInt(out, 0x10, 4, nameIndex);
+                } else if (":path".equals(name) || "content-length".equals(name)) {
+                    // rarely repeated, not worth the space in the table
+                    writeInt(out, 0x00, 4, nameIndex);
+                } else {
+                    writeInt(out, 0x40, 6, nameIndex);
+                    table.add(new BasicHeader(name, value));
+                }
+                if (nameIndex == 0) {
+                    writeString(out, name);
+                }
+                writeString(out, value);
+            }
+        }
+    }
+
+    /**
+     * Decoder of header blocks received from single peer
+     */
+    static class Decoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+
+        /**
+         * Decodes complete header block
+         *
+         * @param block  buffer holding the block
+         * @param length length of the block
+         * @return decoded headers, in order of the block
+         * @throws IOException if the block is malformed, the decoder is unusable afterwards
+         */
+        List<Header> decode(byte[] block, int length) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(block, 0, length);
+            List<Header> headers = new ArrayList<Header>();
+            while (in.hasRemaining()) {
+                int first = in.get(in.position()) & 0xff;
+                if ((first & 0x80) != 0) {
+                    headers.add(get(readInt(in, 7)));
+                } else if ((first & 0x40) != 0) {
+                    Header header = readLiteral(in, 6);
+                    table.add(header);
+                    headers.add(header);
+                } else if ((first & 0x20) != 0) {
+                    int size = readInt(in, 5);
+                    if (size > DEFAULT_TABLE_SIZE) {
+                        throw new IOException("HPACK table size " + size + " exceeds " + DEFAULT_TABLE_SIZE);
+                    }
+                    table.setMaxSize(size);
+                } else {
+                    headers.add(readLiteral(in, 4));
+                }
+            }
+            return headers;
+        }
+
+        private Header readLiteral(ByteBuffer in, int prefix) throws IOException {
+            int nameIndex = readInt(in, prefix);
+            String name = nameIndex == 0 ? readString(in) : get(nameIndex).getName();
+            return new BasicHeader(name, readString(in));
+        }
+
+        private Header get(int index) throws IOException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return new BasicHeader(STATIC_TABLE[index - 1][0], STATIC_TABLE[index - 1][1]);
+            }
+            Header header = index > STATIC_TABLE.length ? table.get(index - STATIC_TABLE.length - 1) : null;
+            if (header == null) {
+                throw new IOException("Invalid HPACK index " + index);
+            }
+            return header;
+        }
+    }
+
+    /**
+     * Dynamic table, newest entry first
+     */
+    private static class Table {
+        private final LinkedList<Header> entries = new LinkedList<Header>();
+        private int size;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        Header get(int index) {
+            return index < entries.size() ? entries.get(index) : null;
+        }
+
+        int indexOf(String name, String value) {
+            int index = STATIC_TABLE.length + 1;
+            for (Header entry : entries) {
+                if (entry.getName().equals(name) && entry.getValue().equals(value)) {
+                    return index;
+                }
+                index++;
+            }
+            return 0;
+        }
+
+        int indexOfName(String name) {
+            int index = STATIC_TABLE.length + 1;
+            for (Header entry : entries) {
+                if (entry.getName().equals(name)) {
+                    return index;
+                }
+                index++;
+            }
+            return 0;
+        }
+
+        void add(Header header) {
+            int entrySize = sizeOf(header);
+            evict(maxSize - entrySize);
+            if (entrySize <= maxSize) {
+                entries.addFirst(header);
+                size += entrySize;
+            }
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int targetSize) {
+            while (size > targetSize && !entries.isEmpty()) {
+                size -= sizeOf(entries.removeLast());
+            }
+        }
+
+        private static int sizeOf(Header header) {
+            return header.getName().length() + header.getValue().length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    private static void writeInt(ByteArrayBuffer out, int flags, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.append(flags | value);
+            return;
+        }
+        out.append(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.append((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.append(value);
+    }
+
+    private static int readInt(ByteBuffer in, int prefix) throws IOException {
+        int max = (1 << prefix) - 1;
+        int value = in.get() & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift < 28; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Truncated HPACK integer");
+            }
+            int b = in.get() & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("HPACK integer too large");
+    }
+
+    private static void writeString(ByteArrayBuffer out, String value) {
+        int length = value.length();
+        long bits = 0;
+        for (int i = 0; i < length; i++) {
+            bits += HUFFMAN_LENGTHS[octet(value.charAt(i))];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= length) {
+            writeInt(out, 0x00, 7, length);
+            for (int i = 0; i < length; i++) {
+                out.append(octet(value.charAt(i)));
+            }
+            return;
+        }
+        writeInt(out, 0x80, 7, huffmanLength);
+        long pending = 0;
+        int pendingBits = 0;
+        for (int i = 0; i < length; i++) {
+            int symbol = octet(value.charAt(i));
+            pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            pendingBits += HUFFMAN_LENGTHS[symbol];
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                out.append((int) (pending >>> pendingBits) & 0xff);
+            }
+            pending &= (1L << pendingBits) - 1;
+        }
+        if (pendingBits > 0) {
+            // padded with the most significant bits of EOS
+            out.append((int) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits)) & 0xff);
+        }
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        if (!in.hasRemaining()) {
+            throw new IOException("Truncated HPACK string");
+        }
+        boolean isHuffman = (in.get(in.position()) & 0x80) != 0;
+        int length = readInt(in, 7);
+        if (length > in.remaining()) {
+            throw new IOException("Truncated HPACK string");
+        }
+        StringBuilder value = new StringBuilder(isHuffman ? length * 8 / 5 : length);
+        if (!isHuffman) {
+            for (int i = 0; i < length; i++) {
+                value.append((char) (in.get() & 0xff));
+            }
+            return value.toString();
+        }
+        int node = 0;
+        int paddingBits = 0;
+        boolean isPaddingValid = true;
+        for (int i = 0; i < length; i++) {
+            int b = in.get() & 0xff;
+            for (int shift = 7; shift >= 0; shift--) {
+                int bit = (b >>> shift) & 1;
+                node = HUFFMAN_TREE[2 * node + bit];
+                if (node < 0) {
+                    int symbol = -node - 1;
+                    if (symbol == EOS) {
+                        throw new IOException("EOS in HPACK string");
+                    }
+                    value.append((char) symbol);
+                    node = 0;
+                    paddingBits = 0;
+                    isPaddingValid = true;
+                } else if (node == 0) {
+                    throw new IOException("Invalid Huffman code in HPACK string");
+                } else {
+                    paddingBits++;
+                    isPaddingValid &= bit == 1;
+                }
+            }
+        }
+        if (paddingBits > 7 || !isPaddingValid) {
+            throw new IOException("Invalid padding of HPACK string");
+        }
+        return value.toString();
+    }
+
+    private static int octet(char c) {
+        return c > 0xff ? '?' : c;
+    }
+}
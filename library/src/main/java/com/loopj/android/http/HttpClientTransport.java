@@ -0,0 +1,64 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.client.HttpClient;
+import cz.msebera.android.httpclient.client.methods.HttpUriRequest;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+/**
+ * Transport executing requests by Apache HttpClient, default {@link Transport} of {@link
+ * AsyncHttpClient}, using its connection pool, retry handler, redirect and authentication
+ * settings.
+ */
+public class HttpClientTransport implements Transport {
+
+    private final HttpClient client;
+
+    /**
+     * Creates new HttpClientTransport
+     *
+     * @param client HttpClient executing the requests, must not be null
+     */
+    public HttpClientTransport(HttpClient client) {
+        this.client = Utils.notNull(client, "client");
+    }
+
+    /**
+     * Returns HttpClient executing the requests
+     *
+     * @return HttpClient of this transport
+     */
+    public HttpClient getHttpClient() {
+        return client;
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        return client.execute(request, context);
+    }
+
+    @Override
+    public void shutdown() {
+        client.getConnectionManager().shutdown();
+    }
+}
@@ -174,12 +174,7 @@ public class JsonHttpResponseHandler extends TextHttpResponseHandler {
                     }
                 }
             };
-            if (!getUseSynchronousMode() && !getUsePoolThread()) {
-                new Thread(parser).start();
-            } else {
-                // In synchronous mode everything should be run on one thread
-                parser.run();
-            }
+            executeParser(parser);
         } else {
             onSuccess(statusCode, headers, new JSONObject());
         }
@@ -222,12 +217,7 @@ public class JsonHttpResponseHandler extends TextHttpResponseHandler {
                     }
                 }
             };
-            if (!getUseSynchronousMode() && !getUsePoolThread()) {
-                new Thread(parser).start();
-            } else {
-                // In synchronous mode everything should be run on one thread
-                parser.run();
-            }
+            executeParser(parser);
         } else {
             AsyncHttpClient.log.v(LOG_TAG, "response body is null, calling onFailure(Throwable, JSONObject)");
             onFailure(statusCode, headers, throwable, (JSONObject) null);
@@ -61,8 +61,6 @@ public class JsonStreamerEntity implements HttpEntity {
             new BasicHeader(
                     AsyncHttpClient.HEADER_CONTENT_ENCODING,
                     AsyncHttpClient.ENCODING_GZIP);
-    // Buffer used for reading from input streams.
-    private final byte[] buffer = new byte[BUFFER_SIZE];
     // JSON data and associated meta-data to be uploaded.
     private final Map<String, Object> jsonParams = new HashMap<String, Object>();
 
@@ -316,8 +314,13 @@ public class JsonStreamerEntity implements HttpEntity {
                 new Base64OutputStream(os, Base64.NO_CLOSE | Base64.NO_WRAP);
 
         // Read from input stream until no more data's left to read.
-        while ((bytesRead = entry.inputStream.read(buffer)) != -1) {
-            bos.write(buffer, 0, bytesRead);
+        byte[] buffer = BufferPool.getDefault().acquire(BUFFER_SIZE);
+        try {
+            while ((bytesRead = entry.inputStream.read(buffer)) != -1) {
+                bos.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
         }
 
         // Close the Base64 output stream.
@@ -350,10 +353,15 @@ public class JsonStreamerEntity implements HttpEntity {
                 new Base64OutputStream(os, Base64.NO_CLOSE | Base64.NO_WRAP);
 
         // Read from file until no more data's left to read.
-        while ((bytesRead = in.read(buffer)) != -1) {
-            bos.write(buffer, 0, bytesRead);
-            bytesWritten += bytesRead;
-            progressHandler.sendProgressMessage(bytesWritten, totalSize);
+        byte[] buffer = BufferPool.getDefault().acquire(BUFFER_SIZE);
+        try {
+            while ((bytesRead = in.read(buffer)) != -1) {
+                bos.write(buffer, 0, bytesRead);
+                bytesWritten += bytesRead;
+                progressHandler.sendProgressMessage(bytesWritten, totalSize);
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
         }
 
         // Close the Base64 output stream.
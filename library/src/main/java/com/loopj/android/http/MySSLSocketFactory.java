@@ -34,6 +34,7 @@ import java.security.cert.X509Certificate;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -49,6 +50,7 @@ import cz.msebera.android.httpclient.params.BasicHttpParams;
 import cz.msebera.android.httpclient.params.HttpParams;
 import cz.msebera.android.httpclient.params.HttpProtocolParams;
 import cz.msebera.android.httpclient.protocol.HTTP;
+import cz.msebera.android.httpclient.protocol.HttpContext;
 
 /**
  * This file is introduced to fix HTTPS Post bug on API &lt; ICS see
@@ -57,6 +59,7 @@ import cz.msebera.android.httpclient.protocol.HTTP;
  */
 public class MySSLSocketFactory extends SSLSocketFactory {
     final SSLContext sslContext = SSLContext.getInstance("TLS");
+    private final TlsSessionCache sessionCache;
 
     /**
      * Creates a new SSL Socket Factory with the given KeyStore.
@@ -83,6 +86,7 @@ public class MySSLSocketFactory extends SSLSocketFactory {
         };
 
         sslContext.init(null, new TrustManager[]{tm}, null);
+        sessionCache = new TlsSessionCache(sslContext);
     }
 
     /**
@@ -184,14 +188,31 @@ public class MySSLSocketFactory extends SSLSocketFactory {
         }
     }
 
+    /**
+     * Returns session cache of this factory, to configure its limits or read handshake counters
+     *
+     * @return TLS session cache
+     */
+    public TlsSessionCache getSessionCache() {
+        return sessionCache;
+    }
+
     @Override
     public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
-        return sslContext.getSocketFactory().createSocket(socket, host, port, autoClose);
+        return sessionCache.track(sslContext.getSocketFactory().createSocket(socket, host, port, autoClose));
     }
 
     @Override
     public Socket createSocket() throws IOException {
-        return sslContext.getSocketFactory().createSocket();
+        return sessionCache.track(sslContext.getSocketFactory().createSocket());
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+        // tunnelled connections are layered here, they must use the same SSLContext as createSocket()
+        SSLSocket sslSocket = (SSLSocket) createSocket(socket, target, port, true);
+        TlsSessionCache.handshake(sslSocket, target, getHostnameVerifier());
+        return sslSocket;
     }
 
     /**
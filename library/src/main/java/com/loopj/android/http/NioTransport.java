@@ -0,0 +1,2708 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HeaderElement;
+import cz.msebera.android.httpclient.HttpEntity;
+import cz.msebera.android.httpclient.HttpEntityEnclosingRequest;
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.HttpVersion;
+import cz.msebera.android.httpclient.NoHttpResponseException;
+import cz.msebera.android.httpclient.ParseException;
+import cz.msebera.android.httpclient.StatusLine;
+import cz.msebera.android.httpclient.client.ClientProtocolException;
+import cz.msebera.android.httpclient.client.methods.HttpRequestBase;
+import cz.msebera.android.httpclient.client.methods.HttpUriRequest;
+import cz.msebera.android.httpclient.concurrent.Cancellable;
+import cz.msebera.android.httpclient.conn.ConnectTimeoutException;
+import cz.msebera.android.httpclient.conn.DnsResolver;
+import cz.msebera.android.httpclient.conn.ssl.SSLSocketFactory;
+import cz.msebera.android.httpclient.conn.ssl.X509HostnameVerifier;
+import cz.msebera.android.httpclient.entity.ByteArrayEntity;
+import cz.msebera.android.httpclient.impl.EnglishReasonPhraseCatalog;
+import cz.msebera.android.httpclient.impl.conn.SystemDefaultDnsResolver;
+import cz.msebera.android.httpclient.message.BasicHeader;
+import cz.msebera.android.httpclient.message.BasicHttpResponse;
+import cz.msebera.android.httpclient.message.BasicLineParser;
+import cz.msebera.android.httpclient.message.BasicStatusLine;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+import cz.msebera.android.httpclient.util.ByteArrayBuffer;
+
+/**
+ * HTTP/1.1 {@link AsyncTransport} doing all network I/O on few selector threads, so number of
+ * requests in flight is not bound to number of threads. Each selector thread multiplexes many
+ * non-blocking sockets, writes requests and parses responses incrementally as bytes arrive, and
+ * hands complete responses over to {@link AsyncHttpRequest}, which runs the response handler on
+ * worker thread of {@link AsyncHttpClient}.
+ * <p>&nbsp;</p>
+ * Supports HTTP and HTTPS (TLS by {@link SSLEngine}), persistent connections kept alive for
+ * {@link #getKeepAliveTimeout()}, chunked and length-delimited bodies, gzip content encoding,
+ * and connect and socket timeouts. Request entities are serialized before sending, response
+ * bodies are kept in memory up to {@link #getMaxResponseSize()}, so transfers of very large
+ * bodies are better left to {@link HttpClientTransport}.
+ * <p>&nbsp;</p>
+ * Settings {@link AsyncHttpClient} keeps in its HttpClient and HttpContext don't apply to this
+ * transport, which sends each request as it is: redirects are not followed, but passed to
+ * response handlers, regardless of {@link AsyncHttpClient#setEnableRedirects(boolean)}; cookies
+ * of {@link AsyncHttpClient#setCookieStore(cz.msebera.android.httpclient.client.CookieStore)},
+ * such as {@link PersistentCookieStore}, are neither sent nor stored; credentials of {@link
+ * AsyncHttpClient#setBasicAuth(String, String)} are not sent, set Authorization header by {@link
+ * AsyncHttpClient#addHeader(String, String)} instead; proxy of {@link
+ * AsyncHttpClient#setProxy(String, int)} is not used, requests are sent to the host directly;
+ * trust settings of {@link AsyncHttpClient#setSSLSocketFactory(cz.msebera.android.httpclient.conn.ssl.SSLSocketFactory)}
+ * are not used, pass SSLContext to {@link #NioTransport(int, SSLContext, X509HostnameVerifier)}
+ * instead. {@link AsyncHttpClient#setTransport(Transport)} logs a warning for each of them the
+ * client has configured.
+ * <p>&nbsp;</p>
+ * Idempotent requests can be pipelined, see {@link #setPipeliningEnabled(boolean)}.
+ * <p>&nbsp;</p>
+ * HTTP/2 is used as set by {@link #setHttp2Mode(int)}, then all requests to single origin share
+ * one connection, each request being single stream of it, with headers compressed by HPACK and
+ * both directions flow-controlled. Cleartext HTTP/2 (h2c) is used with prior knowledge only, the
+ * HTTP/1.1 Upgrade mechanism is not supported. Responses are handed over the same way as with
+ * HTTP/1.1, so response handlers work unchanged.
+ * <p>&nbsp;</p>
+ * Selected by {@link AsyncHttpClient#setTransport(Transport)}; with this transport limits of
+ * {@link RequestDispatcher} can be raised well above the number of worker threads.
+ */
+public class NioTransport implements AsyncTransport {
+
+    public static final int DEFAULT_IO_THREADS = 1;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 10 * 1000;
+    public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 30 * 1000;
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+    public static final long DEFAULT_MAX_RESPONSE_SIZE = 32 * 1024 * 1024;
+    public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 4;
+    /**
+     * HTTP/1.1 only, the default
+     */
+    public static final int HTTP2_DISABLED = 0;
+    /**
+     * HTTP/2 over TLS, if the server selects it by ALPN, HTTP/1.1 otherwise and for cleartext
+     * connections. ALPN is available since Android 10, on older platforms HTTP/1.1 is used.
+     */
+    public static final int HTTP2_NEGOTIATE = 1;
+    /**
+     * HTTP/2 for all connections, including cleartext h2c, for servers known to support it.
+     * Over TLS the server may still select HTTP/1.1 by ALPN, where available.
+     */
+    public static final int HTTP2_PRIOR_KNOWLEDGE = 2;
+
+    private static final String LOG_TAG = "NioTransport";
+    private static final String CHARSET = "ISO-8859-1";
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private static final HttpVersion HTTP_2 = new HttpVersion(2, 0);
+
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    // idle connections by route, most recently used last, guarded by itself
+    private final Map<String, LinkedList<Connection>> idleConnections = new HashMap<String, LinkedList<Connection>>();
+    // HTTP/1.1 connections accepting pipelined requests by route, guarded by idleConnections
+    private final Map<String, LinkedList<Connection>> pipeliningConnections = new HashMap<String, LinkedList<Connection>>();
+    // routes, whose servers have not answered pipelined requests, guarded by idleConnections
+    private final Set<String> nonPipeliningRoutes = new HashSet<String>();
+    // HTTP/2 connections by route, including those still being established, guarded by idleConnections
+    private final Map<String, Connection> sharedConnections = new HashMap<String, Connection>();
+    // routes, whose servers have selected HTTP/1.1 by ALPN, guarded by idleConnections
+    private final Set<String> http1Routes = new HashSet<String>();
+    private final X509HostnameVerifier hostnameVerifier;
+    private SSLContext sslContext;
+    private volatile DnsResolver dnsResolver = SystemDefaultDnsResolver.INSTANCE;
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private volatile long keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private volatile int maxIdleConnectionsPerHost = DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST;
+    private volatile long maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+    private volatile int http2Mode = HTTP2_DISABLED;
+    private volatile boolean isPipeliningEnabled;
+    private volatile int maxPipelinedRequests = DEFAULT_MAX_PIPELINED_REQUESTS;
+    private volatile boolean isShutdown;
+
+    /**
+     * Creates new NioTransport with single selector thread, verifying certificates by system
+     * trust store and host names as browsers do
+     *
+     * @throws IOException if selector cannot be opened
+     */
+    public NioTransport() throws IOException {
+        this(DEFAULT_IO_THREADS, null, SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+    }
+
+    /**
+     * Creates new NioTransport
+     *
+     * @param ioThreads        number of selector threads, at least 1
+     * @param sslContext       SSLContext for HTTPS connections, or null to use SSLContext
+     *                         trusting system certificate authorities
+     * @param hostnameVerifier verifier of host names of HTTPS connections, must not be null
+     * @throws IOException if selector cannot be opened
+     */
+    public NioTransport(int ioThreads, SSLContext sslContext, X509HostnameVerifier hostnameVerifier) throws IOException {
+        Utils.asserts(ioThreads > 0, "ioThreads must be positive");
+        this.sslContext = sslContext;
+        this.hostnameVerifier = Utils.notNull(hostnameVerifier, "hostnameVerifier");
+        loops = new IoLoop[ioThreads];
+        try {
+            for (int i = 0; i < ioThreads; i++) {
+                loops[i] = new IoLoop("AsyncHttpClient-nio-" + i);
+            }
+        } catch (IOException e) {
+            shutdown();
+            throw e;
+        }
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Sets resolver of host names of new connections, such as {@link CachingDnsResolver}
+     *
+     * @param dnsResolver DNS resolver, or null to use the system resolver
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver == null ? SystemDefaultDnsResolver.INSTANCE : dnsResolver;
+    }
+
+    /**
+     * Returns time limit of establishing connection, including TLS handshake
+     *
+     * @return connect timeout in milliseconds
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets time limit of establishing connection, including TLS handshake
+     *
+     * @param connectTimeout connect timeout in milliseconds, 0 for no limit
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        Utils.asserts(connectTimeout >= 0, "connectTimeout must not be negative");
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Returns longest time of inactivity, while request is being sent or response received
+     *
+     * @return socket timeout in milliseconds
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Sets longest time of inactivity, while request is being sent or response received
+     *
+     * @param socketTimeout socket timeout in milliseconds, 0 for no limit
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        Utils.asserts(socketTimeout >= 0, "socketTimeout must not be negative");
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Returns time, for which idle connection is kept open for next request
+     *
+     * @return keep-alive timeout in milliseconds
+     */
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Sets time, for which idle connection is kept open for next request
+     *
+     * @param keepAliveTimeout keep-alive timeout in milliseconds, 0 to not keep idle connections
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout) {
+        Utils.asserts(keepAliveTimeout >= 0, "keepAliveTimeout must not be negative");
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Returns maximum number of idle connections kept open for single host
+     *
+     * @return maximum number of idle connections per host
+     */
+    public int getMaxIdleConnectionsPerHost() {
+        return maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * Sets maximum number of idle connections kept open for single host
+     *
+     * @param maxIdleConnectionsPerHost maximum number of idle connections per host
+     */
+    public void setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+        Utils.asserts(maxIdleConnectionsPerHost >= 0, "maxIdleConnectionsPerHost must not be negative");
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * Returns maximum size of response body, as received, larger responses fail
+     *
+     * @return maximum size in bytes
+     */
+    public long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Sets maximum size of response body, as received, larger responses fail with {@link
+     * ResponseTooLargeException} as soon as their size is known, and their connection is closed.
+     * The whole body is received into memory before the response is handed over, so this limit
+     * applies before, and regardless of, {@link AsyncHttpResponseHandler#setMaxBodySize(long)}
+     * and {@link AsyncHttpResponseHandler#setMemoryThreshold(long)}; lower it to bound the heap
+     * used per response.
+     *
+     * @param maxResponseSize maximum size in bytes, at most {@link Integer#MAX_VALUE}
+     */
+    public void setMaxResponseSize(long maxResponseSize) {
+        Utils.asserts(maxResponseSize > 0 && maxResponseSize <= Integer.MAX_VALUE, "maxResponseSize must be positive and fit into byte array");
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * Returns whether idempotent requests are pipelined
+     *
+     * @return true if pipelining is enabled
+     */
+    public boolean isPipeliningEnabled() {
+        return isPipeliningEnabled;
+    }
+
+    /**
+     * Enables HTTP/1.1 pipelining of GET and HEAD requests without body. Such requests to single
+     * host are written one after another to connection, which is still waiting for response to
+     * earlier request, up to {@link #getMaxPipelinedRequests()} requests per connection, and
+     * their responses are read in order, saving round trip per request. If the server closes
+     * the connection before answering all of them, the rest is sent again, each over its own
+     * connection, and the host is not sent pipelined requests anymore.
+     * <p>&nbsp;</p>
+     * Requests are pipelined only while they run at once, so limits of {@link RequestDispatcher}
+     * need to allow several requests per host. Disabled by default, as some servers and proxies
+     * handle pipelined requests poorly; HTTP/2, where used, takes precedence.
+     *
+     * @param isPipeliningEnabled true to enable pipelining
+     */
+    public void setPipeliningEnabled(boolean isPipeliningEnabled) {
+        this.isPipeliningEnabled = isPipeliningEnabled;
+    }
+
+    /**
+     * Returns maximum number of requests sent over single connection, before the first of them
+     * is answered
+     *
+     * @return maximum number of pipelined requests per connection
+     */
+    public int getMaxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
+    /**
+     * Sets maximum number of requests sent over single connection, before the first of them is
+     * answered, applies if pipelining is enabled
+     *
+     * @param maxPipelinedRequests maximum number of pipelined requests per connection, at
+     *                             least 1
+     */
+    public void setMaxPipelinedRequests(int maxPipelinedRequests) {
+        Utils.asserts(maxPipelinedRequests > 0, "maxPipelinedRequests must be positive");
+        this.maxPipelinedRequests = maxPipelinedRequests;
+    }
+
+    /**
+     * Returns when HTTP/2 is used
+     *
+     * @return one of {@link #HTTP2_DISABLED}, {@link #HTTP2_NEGOTIATE} and {@link
+     * #HTTP2_PRIOR_KNOWLEDGE}
+     */
+    public int getHttp2Mode() {
+        return http2Mode;
+    }
+
+    /**
+     * Sets when HTTP/2 is used, applies to new connections only
+     *
+     * @param http2Mode one of {@link #HTTP2_DISABLED}, {@link #HTTP2_NEGOTIATE} and {@link
+     *                  #HTTP2_PRIOR_KNOWLEDGE}
+     */
+    public void setHttp2Mode(int http2Mode) {
+        Utils.asserts(http2Mode >= HTTP2_DISABLED && http2Mode <= HTTP2_PRIOR_KNOWLEDGE, "Unknown HTTP/2 mode");
+        this.http2Mode = http2Mode;
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        BlockingCallback callback = new BlockingCallback();
+        execute(request, context, callback);
+        return callback.await(request);
+    }
+
+    @Override
+    public void execute(HttpUriRequest request, HttpContext context, Callback callback) {
+        Exchange exchange = new Exchange(request, callback);
+        if (request instanceof HttpRequestBase) {
+            HttpRequestBase abortable = (HttpRequestBase) request;
+            abortable.setCancellable(exchange);
+            if (abortable.isAborted()) {
+                exchange.cancel();
+                return;
+            }
+        }
+        try {
+            exchange.prepare();
+            dispatch(exchange, null);
+        } catch (IOException e) {
+            exchange.fail(e);
+        }
+    }
+
+    /**
+     * Closes all connections and stops selector threads, requests in flight fail
+     */
+    @Override
+    public void shutdown() {
+        isShutdown = true;
+        for (IoLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Sends the exchange over idle or shared connection of its route, or over new connection
+     *
+     * @param exchange prepared exchange
+     * @param address  address of new connection, or null to resolve the host
+     * @throws IOException if the host cannot be resolved, or the transport is shut down
+     */
+    private void dispatch(Exchange exchange, InetSocketAddress address) throws IOException {
+        if (isShutdown) {
+            throw new IOException("Transport is shut down");
+        }
+        if (isHttp2(exchange)) {
+            dispatchShared(exchange, address);
+            return;
+        }
+        if (isPipeliningEnabled && exchange.isPipelineable() && dispatchPipelined(exchange, address)) {
+            return;
+        }
+        Connection connection = takeIdleConnection(exchange.route);
+        if (connection != null) {
+            start(connection.loop, exchange, connection, null);
+            return;
+        }
+        start(nextLoop(), exchange, null, address != null ? address : resolve(exchange));
+    }
+
+    /**
+     * Dispatches again exchange, which was not processed by the server, failing it on error
+     */
+    private void redispatch(Exchange exchange, InetSocketAddress address) {
+        exchange.connection = null;
+        try {
+            dispatch(exchange, address);
+        } catch (IOException e) {
+            exchange.fail(e);
+        }
+    }
+
+    private boolean isHttp2(Exchange exchange) {
+        int mode = http2Mode;
+        if (mode == HTTP2_DISABLED || (mode == HTTP2_NEGOTIATE && (!exchange.isSecure || !Alpn.isSupported()))) {
+            return false;
+        }
+        synchronized (idleConnections) {
+            return !http1Routes.contains(exchange.route);
+        }
+    }
+
+    private void dispatchShared(final Exchange exchange, InetSocketAddress address) throws IOException {
+        Connection connection;
+        synchronized (idleConnections) {
+            connection = sharedConnections.get(exchange.route);
+        }
+        boolean isNew = false;
+        if (connection == null) {
+            Connection created = new Connection(nextLoop(), exchange.route, address != null ? address : resolve(exchange), exchange.host, exchange.port, exchange.isSecure);
+            created.http2 = new Http2Session(created);
+            synchronized (idleConnections) {
+                connection = sharedConnections.get(exchange.route);
+                if (connection == null) {
+                    sharedConnections.put(exchange.route, created);
+                    connection = created;
+                    isNew = true;
+                }
+            }
+        }
+        final Connection _connection = connection;
+        final boolean _isNew = isNew;
+        exchange.loop = connection.loop;
+        boolean isSubmitted = connection.loop.submit(new Runnable() {
+            @Override
+            public void run() {
+                // queued first, so that failure to connect fails the exchange, instead of dispatching it again
+                _connection.enqueue(exchange);
+                if (_isNew) {
+                    try {
+                        _connection.open();
+                    } catch (IOException e) {
+                        _connection.fail(e);
+                    }
+                }
+            }
+        });
+        if (!isSubmitted) {
+            if (isNew) {
+                connection.unshare();
+            }
+            throw new IOException("Transport is shut down");
+        }
+    }
+
+    /**
+     * Pipelines the exchange behind requests of busy connection of its route, or sends it over
+     * idle or new connection accepting further pipelined requests
+     *
+     * @return false if the route doesn't support pipelining
+     */
+    private boolean dispatchPipelined(final Exchange exchange, InetSocketAddress address) throws IOException {
+        Connection connection = null;
+        synchronized (idleConnections) {
+            if (nonPipeliningRoutes.contains(exchange.route)) {
+                return false;
+            }
+            LinkedList<Connection> connections = pipeliningConnections.get(exchange.route);
+            if (connections != null) {
+                for (Connection candidate : connections) {
+                    if (candidate.pipelineDepth < maxPipelinedRequests) {
+                        candidate.pipelineDepth++;
+                        connection = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+        if (connection != null) {
+            final Connection _connection = connection;
+            exchange.loop = connection.loop;
+            boolean isSubmitted = connection.loop.submit(new Runnable() {
+                @Override
+                public void run() {
+                    _connection.pipeline(exchange);
+                }
+            });
+            if (!isSubmitted) {
+                throw new IOException("Transport is shut down");
+            }
+            return true;
+        }
+
+        connection = takeIdleConnection(exchange.route);
+        if (connection != null) {
+            connection.acceptPipelining();
+            start(connection.loop, exchange, connection, null);
+            return true;
+        }
+        final Connection created = new Connection(nextLoop(), exchange.route, address != null ? address : resolve(exchange), exchange.host, exchange.port, exchange.isSecure);
+        created.acceptPipelining();
+        exchange.loop = created.loop;
+        boolean isSubmitted = created.loop.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (exchange.isDone()) {
+                    created.close();
+                } else {
+                    created.loop.open(created, exchange);
+                }
+            }
+        });
+        if (!isSubmitted) {
+            created.rejectPipelining();
+            throw new IOException("Transport is shut down");
+        }
+        return true;
+    }
+
+    private IoLoop nextLoop() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    private InetSocketAddress resolve(Exchange exchange) throws IOException {
+        InetAddress[] addresses = dnsResolver.resolve(exchange.host);
+        if (addresses == null || addresses.length == 0) {
+            throw new UnknownHostException(exchange.host);
+        }
+        return new InetSocketAddress(addresses[0], exchange.port);
+    }
+
+    private void start(final IoLoop loop, final Exchange exchange, final Connection connection, final InetSocketAddress address) throws IOException {
+        exchange.loop = loop;
+        boolean isSubmitted = loop.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (exchange.isDone()) {
+                    if (connection != null) {
+                        connection.release();
+                    }
+                    return;
+                }
+                if (connection != null && connection.isOpen()) {
+                    connection.assign(exchange, true);
+                } else {
+                    if (connection != null) {
+                        connection.rejectPipelining();
+                    }
+                    loop.connect(exchange, connection != null ? connection.address : address);
+                }
+            }
+        });
+        if (!isSubmitted) {
+            if (connection != null) {
+                connection.closeLater();
+            }
+            throw new IOException("Transport is shut down");
+        }
+    }
+
+    private Connection takeIdleConnection(String route) {
+        long now = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            LinkedList<Connection> connections = idleConnections.get(route);
+            while (connections != null && !connections.isEmpty()) {
+                Connection connection = connections.removeLast();
+                connection.isIdle = false;
+                if (connections.isEmpty()) {
+                    idleConnections.remove(route);
+                }
+                if (now - connection.idleSince < keepAliveTimeout) {
+                    return connection;
+                }
+                connection.closeLater();
+            }
+        }
+        return null;
+    }
+
+    private synchronized SSLContext getSslContext() throws IOException {
+        if (sslContext == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                sslContext = context;
+            } catch (Exception e) {
+                throw new SSLException("Cannot initialize SSLContext: " + e.getMessage());
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Single request, from being sent until its response is received
+     */
+    private class Exchange implements Cancellable {
+        final HttpUriRequest request;
+        final Callback callback;
+        final AtomicBoolean isDone = new AtomicBoolean();
+        volatile IoLoop loop;
+        volatile Connection connection;
+        String route;
+        String host;
+        int port;
+        boolean isSecure;
+        boolean isHead;
+        String method;
+        String target;
+        String authority;
+        List<Header> headers;
+        // null if the request doesn't enclose entity
+        byte[] body;
+        boolean isRetried;
+        boolean canPipeline = true;
+        private byte[] requestBytes;
+
+        Exchange(HttpUriRequest request, Callback callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+
+        void prepare() throws IOException {
+            URI uri = request.getURI();
+            String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.US);
+            if (!"http".equals(scheme) && !"https".equals(scheme)) {
+                throw new MalformedURLException("Unsupported URI scheme: " + scheme);
+            }
+            host = uri.getHost();
+            if (host == null) {
+                throw new MalformedURLException("No host in URI: " + uri);
+            }
+            isSecure = "https".equals(scheme);
+            int defaultPort = isSecure ? 443 : 80;
+            port = uri.getPort() < 0 ? defaultPort : uri.getPort();
+            route = scheme + "://" + host.toLowerCase(Locale.US) + ":" + port;
+            method = request.getMethod();
+            isHead = "HEAD".equalsIgnoreCase(method);
+            String path = uri.getRawPath();
+            target = path == null || path.length() == 0 ? "/" : path;
+            if (uri.getRawQuery() != null) {
+                target += "?" + uri.getRawQuery();
+            }
+            authority = port == defaultPort ? host : host + ":" + port;
+
+            headers = new ArrayList<Header>();
+            for (Header header : request.getAllHeaders()) {
+                String name = header.getName();
+                if ("Host".equalsIgnoreCase(name)) {
+                    authority = header.getValue();
+                } else if (!"Connection".equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name) && !"Transfer-Encoding".equalsIgnoreCase(name)) {
+                    headers.add(header);
+                }
+            }
+            if (!request.containsHeader(AsyncHttpClient.HEADER_ACCEPT_ENCODING)) {
+                headers.add(new BasicHeader(AsyncHttpClient.HEADER_ACCEPT_ENCODING, AsyncHttpClient.ENCODING_GZIP));
+            }
+
+            HttpEntity entity = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+            if (entity != null) {
+                Header contentType = entity.getContentType();
+                if (contentType != null && !request.containsHeader(AsyncHttpClient.HEADER_CONTENT_TYPE)) {
+                    headers.add(contentType);
+                }
+                Header contentEncoding = entity.getContentEncoding();
+                if (contentEncoding != null && !request.containsHeader(AsyncHttpClient.HEADER_CONTENT_ENCODING)) {
+                    headers.add(contentEncoding);
+                }
+                long length = entity.getContentLength();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length : 4096);
+                entity.writeTo(out);
+                body = out.toByteArray();
+            } else if (request instanceof HttpEntityEnclosingRequest) {
+                body = new byte[0];
+            }
+        }
+
+        /**
+         * Returns true if the request can be pipelined, and safely sent again if its response
+         * doesn't arrive
+         */
+        boolean isPipelineable() {
+            return canPipeline && ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)) && (body == null || body.length == 0);
+        }
+
+        /**
+         * Returns the request serialized as HTTP/1.1 message
+         */
+        byte[] getRequestBytes() {
+            if (requestBytes != null) {
+                return requestBytes;
+            }
+            StringBuilder head = new StringBuilder(256);
+            head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(authority).append("\r\n");
+            for (Header header : headers) {
+                head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (body != null) {
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("\r\n");
+
+            int headLength = head.length();
+            requestBytes = new byte[headLength + (body == null ? 0 : body.length)];
+            for (int i = 0; i < headLength; i++) {
+                char c = head.charAt(i);
+                requestBytes[i] = (byte) (c > 0xff ? '?' : c);
+            }
+            if (body != null) {
+                System.arraycopy(body, 0, requestBytes, headLength, body.length);
+            }
+            return requestBytes;
+        }
+
+        /**
+         * Returns headers of HTTP/2 request, with pseudo-headers first and without headers
+         * specific to HTTP/1.1 connections
+         */
+        List<Header> getHttp2Headers() {
+            List<Header> result = new ArrayList<Header>(headers.size() + 5);
+            result.add(new BasicHeader(":method", method));
+            result.add(new BasicHeader(":scheme", isSecure ? "https" : "http"));
+            result.add(new BasicHeader(":authority", authority));
+            result.add(new BasicHeader(":path", target));
+            for (Header header : headers) {
+                String name = header.getName().toLowerCase(Locale.US);
+                if ("keep-alive".equals(name) || "proxy-connection".equals(name) || "upgrade".equals(name)
+                        || ("te".equals(name) && !"trailers".equalsIgnoreCase(header.getValue()))) {
+                    continue;
+                }
+                result.add(new BasicHeader(name, header.getValue()));
+            }
+            if (body != null) {
+                result.add(new BasicHeader("content-length", String.valueOf(body.length)));
+            }
+            return result;
+        }
+
+        boolean isDone() {
+            return isDone.get();
+        }
+
+        void complete(HttpResponse response) {
+            if (isDone.compareAndSet(false, true)) {
+                try {
+                    callback.onResponse(response);
+                } catch (RuntimeException e) {
+                    AsyncHttpClient.log.e(LOG_TAG, "Callback failed", e);
+                }
+            }
+        }
+
+        boolean fail(IOException error) {
+            if (isDone.compareAndSet(false, true)) {
+                try {
+                    callback.onFailure(error);
+                } catch (RuntimeException e) {
+                    AsyncHttpClient.log.e(LOG_TAG, "Callback failed", e);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!fail(new IOException("Request aborted"))) {
+                return false;
+            }
+            IoLoop _loop = loop;
+            if (_loop != null) {
+                _loop.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Connection _connection = connection;
+                        if (_connection != null) {
+                            _connection.cancel(Exchange.this);
+                        }
+                    }
+                });
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Selector thread, owning the connections it has opened
+     */
+    private class IoLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        // accessed by this loop only
+        final Set<Connection> connections = new HashSet<Connection>();
+        // guarded by tasks
+        boolean isClosed;
+
+        IoLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Runs the task on this loop
+         *
+         * @param task task to be run
+         * @return false if this loop has stopped already
+         */
+        boolean submit(Runnable task) {
+            synchronized (tasks) {
+                if (isClosed) {
+                    return false;
+                }
+                tasks.add(task);
+            }
+            selector.wakeup();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (!isShutdown) {
+                try {
+                    selector.select(checkTimeouts());
+                    runTasks();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.onReady(key.readyOps());
+                        } catch (CancelledKeyException e) {
+                            // closed in the meantime
+                        }
+                    }
+                } catch (Throwable t) {
+                    AsyncHttpClient.log.e(LOG_TAG, "Selector loop failed", t);
+                }
+            }
+            synchronized (tasks) {
+                isClosed = true;
+            }
+            runTasks();
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.fail(new IOException("Transport is shut down"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                AsyncHttpClient.log.w(LOG_TAG, "Cannot close selector", e);
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    AsyncHttpClient.log.e(LOG_TAG, "Task failed", e);
+                }
+            }
+        }
+
+        /**
+         * Fails connections, which timed out, and closes idle connections not reused in time
+         *
+         * @return milliseconds until next timeout, or 0 if there's none
+         */
+        private long checkTimeouts() {
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                if (connection.deadline > 0) {
+                    if (now >= connection.deadline) {
+                        connection.fail(connection.isConnected && !connection.isHandshaking
+                                ? new SocketTimeoutException("Read timed out")
+                                : new ConnectTimeoutException("Connect to " + connection.address + " timed out"));
+                        continue;
+                    }
+                    next = Math.min(next, connection.deadline);
+                } else if (connection.http2 != null) {
+                    if (connection.http2.isStarted && !connection.http2.isBusy()) {
+                        long expiry = connection.http2.idleSince + keepAliveTimeout;
+                        if (now >= expiry) {
+                            connection.http2.close();
+                            continue;
+                        }
+                        next = Math.min(next, expiry);
+                    }
+                } else if (connection.exchange == null) {
+                    long idleSince;
+                    synchronized (idleConnections) {
+                        idleSince = connection.isIdle ? connection.idleSince : -1;
+                    }
+                    if (idleSince >= 0) {
+                        long expiry = idleSince + keepAliveTimeout;
+                        if (now >= expiry) {
+                            connection.close();
+                            continue;
+                        }
+                        next = Math.min(next, expiry);
+                    }
+                }
+            }
+            return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+        }
+
+        void connect(Exchange exchange, InetSocketAddress address) {
+            open(new Connection(this, exchange.route, address, exchange.host, exchange.port, exchange.isSecure), exchange);
+        }
+
+        void open(Connection connection, Exchange exchange) {
+            connection.assign(exchange, false);
+            try {
+                connection.open();
+            } catch (IOException e) {
+                connection.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Single non-blocking connection, accessed by its loop only, except for fields guarded by
+     * the idle connections pool
+     */
+    private class Connection {
+        final IoLoop loop;
+        final String route;
+        final InetSocketAddress address;
+        final String host;
+        final int port;
+        final boolean isSecure;
+        SocketChannel channel;
+        SelectionKey key;
+        // set while HTTP/2 is used or being negotiated
+        Http2Session http2;
+        boolean isClosed;
+        SSLEngine engine;
+        ByteBuffer netIn;
+        ByteBuffer netOut;
+        ByteBuffer appIn;
+        boolean isConnected;
+        boolean isHandshaking;
+        Exchange exchange;
+        boolean isReused;
+        // exchanges pipelined behind the current one, awaiting their responses in order
+        final LinkedList<Exchange> pipeline = new LinkedList<Exchange>();
+        ByteBuffer outbound;
+        ResponseParser parser;
+        long deadline;
+        // guarded by idleConnections
+        boolean isIdle;
+        long idleSince;
+        boolean isPipelining;
+        int pipelineDepth;
+
+        Connection(IoLoop loop, String route, InetSocketAddress address, String host, int port, boolean isSecure) {
+            this.loop = loop;
+            this.route = route;
+            this.address = address;
+            this.host = host;
+            this.port = port;
+            this.isSecure = isSecure;
+        }
+
+        void open() throws IOException {
+            loop.connections.add(this);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(loop.selector, 0, this);
+            int timeout = connectTimeout;
+            deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            if (channel.connect(address)) {
+                onConnected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        }
+
+        boolean isOpen() {
+            return channel != null && channel.isOpen();
+        }
+
+        void assign(Exchange exchange, boolean isReused) {
+            this.exchange = exchange;
+            this.isReused = isReused;
+            exchange.connection = this;
+            outbound = ByteBuffer.wrap(exchange.getRequestBytes());
+            parser = new ResponseParser(exchange.isHead, maxResponseSize);
+            try {
+                if (isConnected) {
+                    touch();
+                    pump();
+                } else {
+                    updateInterest();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Adds the exchange to streams of this HTTP/2 connection, or dispatches it elsewhere, if
+         * this connection cannot take it anymore
+         */
+        void enqueue(Exchange exchange) {
+            if (exchange.isDone()) {
+                return;
+            }
+            if (isClosed || http2 == null || http2.isGoingAway) {
+                redispatch(exchange, address);
+                return;
+            }
+            exchange.connection = this;
+            http2.pending.add(exchange);
+            if (http2.isStarted) {
+                http2.startPending();
+                pumpSafely();
+            }
+        }
+
+        void cancel(Exchange exchange) {
+            if (http2 != null) {
+                http2.cancel(exchange);
+                pumpSafely();
+            } else if (this.exchange == exchange) {
+                List<Exchange> unanswered = takePipeline();
+                close();
+                replay(unanswered, false);
+            }
+        }
+
+        /**
+         * Registers this connection to take pipelined requests, while its current exchange is
+         * in flight
+         */
+        void acceptPipelining() {
+            synchronized (idleConnections) {
+                LinkedList<Connection> connections = pipeliningConnections.get(route);
+                if (connections == null) {
+                    connections = new LinkedList<Connection>();
+                    pipeliningConnections.put(route, connections);
+                }
+                connections.add(this);
+                isPipelining = true;
+                pipelineDepth = 1;
+            }
+        }
+
+        void rejectPipelining() {
+            synchronized (idleConnections) {
+                if (isPipelining) {
+                    isPipelining = false;
+                    LinkedList<Connection> connections = pipeliningConnections.get(route);
+                    if (connections != null && connections.remove(this) && connections.isEmpty()) {
+                        pipeliningConnections.remove(route);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes request of the exchange right after requests in flight, or dispatches it
+         * elsewhere, if this connection has become idle or closed in the meantime
+         */
+        void pipeline(Exchange next) {
+            if (next.isDone()) {
+                synchronized (idleConnections) {
+                    pipelineDepth--;
+                }
+                return;
+            }
+            if (isClosed || exchange == null) {
+                next.canPipeline = false;
+                redispatch(next, address);
+                return;
+            }
+            next.connection = this;
+            pipeline.add(next);
+            byte[] bytes = next.getRequestBytes();
+            ByteBuffer combined = ByteBuffer.allocate(outbound.remaining() + bytes.length);
+            combined.put(outbound).put(bytes);
+            combined.flip();
+            outbound = combined;
+            pumpSafely();
+        }
+
+        private List<Exchange> takePipeline() {
+            List<Exchange> exchanges = new ArrayList<Exchange>(pipeline);
+            pipeline.clear();
+            return exchanges;
+        }
+
+        /**
+         * Sends again pipelined exchanges, which won't be answered over this connection, each
+         * over its own connection
+         *
+         * @param unanswered    the exchanges, requests of which may have been sent already
+         * @param isServerFault true if the server has closed the connection, so that the route
+         *                      shouldn't be sent pipelined requests anymore
+         */
+        private void replay(List<Exchange> unanswered, boolean isServerFault) {
+            if (unanswered.isEmpty()) {
+                return;
+            }
+            if (isServerFault) {
+                synchronized (idleConnections) {
+                    nonPipeliningRoutes.add(route);
+                }
+            }
+            for (Exchange unansweredExchange : unanswered) {
+                if (!unansweredExchange.isDone()) {
+                    unansweredExchange.connection = null;
+                    unansweredExchange.canPipeline = false;
+                    redispatch(unansweredExchange, address);
+                }
+            }
+        }
+
+        /**
+         * Removes this connection from shared HTTP/2 connections, so that it isn't given new
+         * exchanges
+         */
+        void unshare() {
+            synchronized (idleConnections) {
+                if (sharedConnections.get(route) == this) {
+                    sharedConnections.remove(route);
+                }
+            }
+        }
+
+        void onReady(int readyOps) {
+            try {
+                if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    onConnected();
+                    return;
+                }
+                pump();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            isConnected = true;
+            if (isSecure) {
+                engine = getSslContext().createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                if (http2 != null) {
+                    Alpn.setProtocols(engine, "h2", "http/1.1");
+                }
+                int packetSize = engine.getSession().getPacketBufferSize();
+                netIn = ByteBuffer.allocate(packetSize);
+                netOut = ByteBuffer.allocate(packetSize);
+                appIn = ByteBuffer.allocate(Math.max(BUFFER_SIZE, engine.getSession().getApplicationBufferSize()));
+                engine.beginHandshake();
+                isHandshaking = true;
+            } else {
+                appIn = ByteBuffer.allocate(BUFFER_SIZE);
+                touch();
+            }
+            pump();
+        }
+
+        void touch() {
+            int timeout = socketTimeout;
+            boolean isBusy = exchange != null || (http2 != null && http2.isBusy());
+            deadline = timeout > 0 && isBusy ? System.currentTimeMillis() + timeout : 0;
+        }
+
+        private void pumpSafely() {
+            try {
+                if (isConnected && !isClosed) {
+                    pump();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Moves as much data as possible without blocking, in both directions
+         */
+        private void pump() throws IOException {
+            if (isHandshaking) {
+                if (!handshake()) {
+                    updateInterest();
+                    return;
+                }
+                isHandshaking = false;
+                verifyHost();
+                touch();
+            }
+
+            if (http2 != null) {
+                if (!http2.isStarted && !startHttp2()) {
+                    return;
+                }
+                http2.pump();
+                return;
+            }
+
+            if (exchange == null) {
+                // idle, any readable data means the server has closed the connection
+                if (read() != 0) {
+                    synchronized (idleConnections) {
+                        if (!isIdle) {
+                            // taken for next request, which will find out
+                            key.interestOps(0);
+                            return;
+                        }
+                    }
+                    close();
+                }
+                return;
+            }
+
+            if (outbound.hasRemaining() || (netOut != null && netOut.position() > 0)) {
+                int before = outbound.remaining();
+                write(outbound);
+                if (outbound.remaining() < before) {
+                    touch();
+                }
+            }
+
+            int count;
+            // buffered data may hold next pipelined response
+            while ((count = read()) > 0 || appIn.position() > 0) {
+                if (count > 0) {
+                    touch();
+                }
+                appIn.flip();
+                boolean isComplete = parser.parse(appIn);
+                appIn.compact();
+                if (isComplete) {
+                    if (!complete()) {
+                        return;
+                    }
+                } else if (count <= 0) {
+                    break;
+                }
+            }
+            if (count < 0) {
+                if (parser.onEndOfStream()) {
+                    complete();
+                } else {
+                    fail(parser.hasStarted()
+                            ? new IOException("Connection closed before response was complete")
+                            : new NoHttpResponseException("The target server failed to respond"));
+                }
+                return;
+            }
+            updateInterest();
+        }
+
+        /**
+         * Starts HTTP/2 on this newly established connection, or falls back to HTTP/1.1, if
+         * the server has selected it by ALPN
+         *
+         * @return true if HTTP/2 has been started
+         */
+        private boolean startHttp2() throws IOException {
+            String protocol = engine == null ? null : Alpn.getProtocol(engine);
+            if (protocol == null ? engine == null || http2Mode == HTTP2_PRIOR_KNOWLEDGE : "h2".equals(protocol)) {
+                http2.start();
+                return true;
+            }
+            Http2Session session = http2;
+            http2 = null;
+            unshare();
+            synchronized (idleConnections) {
+                http1Routes.add(route);
+            }
+            Exchange first = null;
+            for (Exchange waiting : session.pending) {
+                if (waiting.isDone()) {
+                    continue;
+                }
+                if (first == null) {
+                    first = waiting;
+                } else {
+                    redispatch(waiting, address);
+                }
+            }
+            session.pending.clear();
+            if (first != null) {
+                assign(first, false);
+            } else {
+                release();
+            }
+            return false;
+        }
+
+        /**
+         * Hands over response of the current exchange
+         *
+         * @return true if this connection goes on with response to next pipelined exchange
+         */
+        private boolean complete() {
+            Exchange _exchange = exchange;
+            ResponseParser _parser = parser;
+            HttpResponse response = _parser.getResponse();
+            if (!pipeline.isEmpty()) {
+                if (_parser.isKeepAlive()) {
+                    exchange = pipeline.removeFirst();
+                    parser = new ResponseParser(exchange.isHead, maxResponseSize);
+                    synchronized (idleConnections) {
+                        pipelineDepth--;
+                    }
+                    touch();
+                    _exchange.connection = null;
+                    _exchange.complete(response);
+                    return true;
+                }
+                // the server closes the connection without answering pipelined requests
+                List<Exchange> unanswered = takePipeline();
+                close();
+                _exchange.connection = null;
+                _exchange.complete(response);
+                replay(unanswered, true);
+                return false;
+            }
+            boolean isReusable = _parser.isKeepAlive() && appIn.position() == 0 && !outbound.hasRemaining();
+            exchange = null;
+            parser = null;
+            outbound = null;
+            deadline = 0;
+            if (isReusable) {
+                release();
+            } else {
+                close();
+            }
+            _exchange.connection = null;
+            _exchange.complete(response);
+            return false;
+        }
+
+        /**
+         * Puts this connection to pool of idle connections, or closes it if the pool is full
+         */
+        void release() {
+            rejectPipelining();
+            if (!isOpen() || isShutdown || keepAliveTimeout == 0) {
+                close();
+                return;
+            }
+            synchronized (idleConnections) {
+                LinkedList<Connection> connections = idleConnections.get(route);
+                if (connections == null) {
+                    connections = new LinkedList<Connection>();
+                }
+                if (connections.size() < maxIdleConnectionsPerHost) {
+                    connections.addLast(this);
+                    idleConnections.put(route, connections);
+                    isIdle = true;
+                    idleSince = System.currentTimeMillis();
+                }
+            }
+            if (isIdle) {
+                updateInterest();
+            } else {
+                close();
+            }
+        }
+
+        void fail(IOException error) {
+            if (http2 != null) {
+                Http2Session session = http2;
+                close();
+                session.failAll(error);
+                return;
+            }
+            Exchange _exchange = exchange;
+            boolean hasResponse = parser != null && parser.hasStarted();
+            List<Exchange> unanswered = takePipeline();
+            close();
+            replay(unanswered, true);
+            if (_exchange == null || _exchange.isDone()) {
+                return;
+            }
+            _exchange.connection = null;
+            if (isReused && !hasResponse && !_exchange.isRetried && !isShutdown) {
+                // kept alive connection closed by the server in the meantime, request not processed
+                _exchange.isRetried = true;
+                loop.connect(_exchange, address);
+                return;
+            }
+            _exchange.fail(error);
+        }
+
+        void close() {
+            isClosed = true;
+            loop.connections.remove(this);
+            if (http2 != null) {
+                unshare();
+            }
+            rejectPipelining();
+            synchronized (idleConnections) {
+                if (isIdle) {
+                    isIdle = false;
+                    LinkedList<Connection> connections = idleConnections.get(route);
+                    if (connections != null && connections.remove(this) && connections.isEmpty()) {
+                        idleConnections.remove(route);
+                    }
+                }
+            }
+            exchange = null;
+            parser = null;
+            deadline = 0;
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    AsyncHttpClient.log.w(LOG_TAG, "Cannot close connection", e);
+                }
+            }
+        }
+
+        void closeLater() {
+            loop.submit(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+        }
+
+        private void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = SelectionKey.OP_READ;
+            if (!isConnected) {
+                ops = SelectionKey.OP_CONNECT;
+            } else if ((outbound != null && outbound.hasRemaining()) || (netOut != null && netOut.position() > 0)) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Reads available data into application buffer
+         *
+         * @return number of bytes read, -1 at end of stream
+         */
+        private int read() throws IOException {
+            if (!appIn.hasRemaining()) {
+                return 0;
+            }
+            if (engine == null) {
+                return channel.read(appIn);
+            }
+            int produced = 0;
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                produced += result.bytesProduced();
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        return produced > 0 ? produced : -1;
+                    case BUFFER_OVERFLOW:
+                        return produced;
+                    case BUFFER_UNDERFLOW:
+                        int count = channel.read(netIn);
+                        if (count < 0) {
+                            return produced > 0 ? produced : -1;
+                        }
+                        if (count == 0) {
+                            return produced;
+                        }
+                        continue;
+                    default:
+                        break;
+                }
+                if (isHandshakeStep(result.getHandshakeStatus()) && !handshake()) {
+                    return produced;
+                }
+            }
+        }
+
+        /**
+         * Writes as much of the data as possible
+         */
+        private void write(ByteBuffer data) throws IOException {
+            if (engine == null) {
+                channel.write(data);
+                return;
+            }
+            while (flush() && data.hasRemaining()) {
+                SSLEngineResult result = engine.wrap(data, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS connection closed");
+                }
+            }
+        }
+
+        /**
+         * Writes encrypted data to the socket
+         *
+         * @return true if all the data has been written
+         */
+        private boolean flush() throws IOException {
+            netOut.flip();
+            channel.write(netOut);
+            netOut.compact();
+            return netOut.position() == 0;
+        }
+
+        /**
+         * Advances TLS handshake as far as possible without blocking
+         *
+         * @return true if the handshake has finished
+         */
+        private boolean handshake() throws IOException {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    case NEED_WRAP:
+                        if (!flush()) {
+                            return false;
+                        }
+                        SSLEngineResult wrapped = engine.wrap(EMPTY_BUFFER, netOut);
+                        if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("TLS connection closed during handshake");
+                        }
+                        if (!flush()) {
+                            return false;
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                        netIn.flip();
+                        SSLEngineResult unwrapped = engine.unwrap(netIn, appIn);
+                        netIn.compact();
+                        if (unwrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("TLS connection closed during handshake");
+                        }
+                        if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            int count = channel.read(netIn);
+                            if (count < 0) {
+                                throw new SSLException("Connection closed during TLS handshake");
+                            }
+                            if (count == 0) {
+                                return false;
+                            }
+                        }
+                        break;
+                    default:
+                        return flush();
+                }
+            }
+        }
+
+        private boolean isHandshakeStep(SSLEngineResult.HandshakeStatus status) {
+            return status == SSLEngineResult.HandshakeStatus.NEED_TASK
+                    || status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                    || status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+        }
+
+        private void verifyHost() throws IOException {
+            Certificate[] certificates = engine.getSession().getPeerCertificates();
+            if (certificates.length == 0 || !(certificates[0] instanceof X509Certificate)) {
+                throw new SSLPeerUnverifiedException("No X.509 certificate of " + host);
+            }
+            hostnameVerifier.verify(host, (X509Certificate) certificates[0]);
+        }
+    }
+
+    /**
+     * Sets entity of the response, decompressing gzip-encoded body on the fly
+     *
+     * @param response received response
+     * @param body     received body, or null if the response has none
+     * @return the response
+     */
+    private static HttpResponse withBody(HttpResponse response, ByteArrayBuffer body) {
+        if (body != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(body.buffer(), 0, body.length());
+            entity.setContentType(response.getFirstHeader(AsyncHttpClient.HEADER_CONTENT_TYPE));
+            Header encoding = response.getFirstHeader(AsyncHttpClient.HEADER_CONTENT_ENCODING);
+            entity.setContentEncoding(encoding);
+            HttpEntity _entity = entity;
+            if (encoding != null) {
+                for (HeaderElement element : encoding.getElements()) {
+                    if (element.getName().equalsIgnoreCase(AsyncHttpClient.ENCODING_GZIP)) {
+                        _entity = new AsyncHttpClient.InflatingEntity(entity);
+                        break;
+                    }
+                }
+            }
+            response.setEntity(_entity);
+        }
+        return response;
+    }
+
+    /**
+     * HTTP/2 state of single connection (RFC 7540), running exchanges as concurrent streams,
+     * accessed by loop of the connection only
+     */
+    private class Http2Session {
+        static final int FRAME_HEADER_SIZE = 9;
+        static final int DEFAULT_WINDOW_SIZE = 65535;
+        static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+        // receive windows advertised to the server, bodies are buffered in memory anyway
+        static final int STREAM_WINDOW_SIZE = 4 * 1024 * 1024;
+        static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+        static final int MAX_HEADER_BLOCK_SIZE = 256 * 1024;
+
+        static final int DATA = 0x0;
+        static final int HEADERS = 0x1;
+        static final int PRIORITY = 0x2;
+        static final int RST_STREAM = 0x3;
+        static final int SETTINGS = 0x4;
+        static final int PUSH_PROMISE = 0x5;
+        static final int PING = 0x6;
+        static final int GOAWAY = 0x7;
+        static final int WINDOW_UPDATE = 0x8;
+        static final int CONTINUATION = 0x9;
+
+        static final int FLAG_END_STREAM = 0x1;
+        static final int FLAG_ACK = 0x1;
+        static final int FLAG_END_HEADERS = 0x4;
+        static final int FLAG_PADDED = 0x8;
+        static final int FLAG_PRIORITY = 0x20;
+
+        static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+        static final int SETTINGS_ENABLE_PUSH = 0x2;
+        static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+        static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+        static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+        static final int NO_ERROR = 0x0;
+        static final int PROTOCOL_ERROR = 0x1;
+        static final int FLOW_CONTROL_ERROR = 0x3;
+        static final int FRAME_SIZE_ERROR = 0x6;
+        static final int REFUSED_STREAM = 0x7;
+        static final int CANCEL = 0x8;
+        static final int COMPRESSION_ERROR = 0x9;
+
+        final Connection connection;
+        final LinkedList<Exchange> pending = new LinkedList<Exchange>();
+        final Map<Integer, Http2Stream> streams = new HashMap<Integer, Http2Stream>();
+        final Hpack.Encoder encoder = new Hpack.Encoder();
+        final Hpack.Decoder decoder = new Hpack.Decoder();
+        // frames not yet handed over to the connection
+        final ByteArrayBuffer queued = new ByteArrayBuffer(BUFFER_SIZE);
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + DEFAULT_MAX_FRAME_SIZE);
+        boolean isStarted;
+        boolean isGoingAway;
+        long idleSince;
+        int nextStreamId = 1;
+        int completedStreams;
+        // settings of the server
+        int maxConcurrentStreams = Integer.MAX_VALUE;
+        int initialWindowSize = DEFAULT_WINDOW_SIZE;
+        int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+        // flow control of the connection
+        long sendWindow = DEFAULT_WINDOW_SIZE;
+        int unacknowledged;
+        // header block continued by CONTINUATION frames
+        ByteArrayBuffer headerBlock;
+        int headerBlockStreamId;
+        boolean headerBlockEndsStream;
+
+        Http2Session(Connection connection) {
+            this.connection = connection;
+        }
+
+        boolean isBusy() {
+            return !streams.isEmpty() || !pending.isEmpty();
+        }
+
+        void start() {
+            isStarted = true;
+            idleSince = System.currentTimeMillis();
+            byte[] preface = {'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n', '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'};
+            queued.append(preface, 0, preface.length);
+            ByteBuffer settings = ByteBuffer.allocate(18);
+            settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+            settings.putShort((short) SETTINGS_HEADER_TABLE_SIZE).putInt(Hpack.DEFAULT_TABLE_SIZE);
+            settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW_SIZE);
+            writeFrame(SETTINGS, 0, 0, settings.array(), 0, settings.capacity());
+            writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            startPending();
+        }
+
+        /**
+         * Starts streams of pending exchanges, as far as the server allows
+         */
+        void startPending() {
+            while (!pending.isEmpty() && !isGoingAway && streams.size() < maxConcurrentStreams) {
+                Exchange exchange = pending.removeFirst();
+                if (!exchange.isDone()) {
+                    startStream(exchange);
+                }
+            }
+            if (isGoingAway) {
+                while (!pending.isEmpty()) {
+                    retry(pending.removeFirst(), new NoHttpResponseException("Connection closed by the server"));
+                }
+            }
+            writeData();
+        }
+
+        private void startStream(Exchange exchange) {
+            boolean wasBusy = isBusy();
+            Http2Stream stream = new Http2Stream(nextStreamId, exchange, initialWindowSize, completedStreams > 0);
+            nextStreamId += 2;
+            if (nextStreamId < 0) {
+                // stream identifiers exhausted
+                isGoingAway = true;
+                connection.unshare();
+            }
+            streams.put(stream.id, stream);
+
+            ByteArrayBuffer block = new ByteArrayBuffer(256);
+            encoder.encode(exchange.getHttp2Headers(), block);
+            boolean hasBody = exchange.body != null && exchange.body.length > 0;
+            int offset = 0;
+            do {
+                int length = Math.min(block.length() - offset, maxFrameSize);
+                int flags = offset + length == block.length() ? FLAG_END_HEADERS : 0;
+                if (offset == 0 && !hasBody) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrame(offset == 0 ? HEADERS : CONTINUATION, flags, stream.id, block.buffer(), offset, length);
+                offset += length;
+            } while (offset < block.length());
+            if (hasBody) {
+                stream.data = ByteBuffer.wrap(exchange.body);
+            }
+            if (!wasBusy) {
+                connection.touch();
+            }
+        }
+
+        /**
+         * Sends request bodies, as far as flow control windows allow
+         */
+        private void writeData() {
+            for (Http2Stream stream : streams.values()) {
+                while (stream.data != null && sendWindow > 0 && stream.sendWindow > 0) {
+                    int length = (int) Math.min(Math.min(stream.data.remaining(), maxFrameSize), Math.min(sendWindow, stream.sendWindow));
+                    boolean isLast = length == stream.data.remaining();
+                    writeFrame(DATA, isLast ? FLAG_END_STREAM : 0, stream.id, stream.data.array(), stream.data.position(), length);
+                    stream.data.position(stream.data.position() + length);
+                    stream.sendWindow -= length;
+                    sendWindow -= length;
+                    if (isLast) {
+                        stream.data = null;
+                    }
+                }
+            }
+        }
+
+        void cancel(Exchange exchange) {
+            if (pending.remove(exchange)) {
+                return;
+            }
+            for (Http2Stream stream : streams.values()) {
+                if (stream.exchange == exchange) {
+                    closeStream(stream, CANCEL);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sends and receives as much as possible without blocking
+         */
+        void pump() throws IOException {
+            try {
+                writeOutput();
+                int count;
+                while ((count = connection.read()) > 0) {
+                    connection.appIn.flip();
+                    parse(connection.appIn);
+                    connection.appIn.compact();
+                    connection.touch();
+                }
+                if (count < 0) {
+                    connection.fail(null);
+                    return;
+                }
+                writeOutput();
+            } catch (Http2Exception e) {
+                writeGoAway(e.errorCode);
+                try {
+                    writeOutput();
+                } catch (IOException ignored) {
+                    // failing anyway
+                }
+                throw e;
+            }
+            if (isGoingAway && !isBusy()) {
+                connection.close();
+                return;
+            }
+            connection.updateInterest();
+        }
+
+        /**
+         * Closes the idle connection gracefully
+         */
+        void close() {
+            writeGoAway(NO_ERROR);
+            try {
+                writeOutput();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+            connection.close();
+        }
+
+        /**
+         * Fails exchanges of the connection, which has failed, dispatching again those not
+         * processed by the server
+         *
+         * @param error cause of the failure, or null if the server has closed the connection
+         */
+        void failAll(IOException error) {
+            List<Http2Stream> active = new ArrayList<Http2Stream>(streams.values());
+            streams.clear();
+            for (Http2Stream stream : active) {
+                Exchange exchange = stream.exchange;
+                exchange.connection = null;
+                IOException streamError = error;
+                if (streamError == null) {
+                    streamError = stream.response != null
+                            ? new IOException("Connection closed before response was complete")
+                            : new NoHttpResponseException("The target server failed to respond");
+                }
+                if (stream.response == null && stream.isReused) {
+                    // connection kept alive, but closed by the server in the meantime
+                    retry(exchange, streamError);
+                } else {
+                    exchange.fail(streamError);
+                }
+            }
+            List<Exchange> waiting = new ArrayList<Exchange>(pending);
+            pending.clear();
+            for (Exchange exchange : waiting) {
+                exchange.connection = null;
+                IOException pendingError = error != null ? error : new NoHttpResponseException("The target server failed to respond");
+                if (isStarted) {
+                    // not sent yet
+                    retry(exchange, pendingError);
+                } else {
+                    exchange.fail(pendingError);
+                }
+            }
+        }
+
+        /**
+         * Dispatches again exchange not processed by the server, unless it has been retried
+         * already
+         */
+        private void retry(Exchange exchange, IOException error) {
+            if (exchange.isRetried || isShutdown) {
+                exchange.fail(error);
+                return;
+            }
+            exchange.isRetried = true;
+            redispatch(exchange, connection.address);
+        }
+
+        /**
+         * Hands queued frames over to the connection, and writes as much as possible
+         */
+        private void writeOutput() throws IOException {
+            while (true) {
+                ByteBuffer outbound = connection.outbound;
+                if ((outbound != null && outbound.hasRemaining()) || (connection.netOut != null && connection.netOut.position() > 0)) {
+                    connection.write(outbound != null ? outbound : EMPTY_BUFFER);
+                    if (outbound != null && outbound.hasRemaining()) {
+                        return;
+                    }
+                }
+                if (queued.length() == 0) {
+                    return;
+                }
+                connection.outbound = ByteBuffer.wrap(queued.toByteArray());
+                queued.clear();
+            }
+        }
+
+        private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+            queued.append(length >>> 16);
+            queued.append(length >>> 8);
+            queued.append(length);
+            queued.append(type);
+            queued.append(flags);
+            queued.append(streamId >>> 24);
+            queued.append(streamId >>> 16);
+            queued.append(streamId >>> 8);
+            queued.append(streamId);
+            queued.append(payload, offset, length);
+        }
+
+        private void writeWindowUpdate(int streamId, int increment) {
+            writeFrame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array(), 0, 4);
+        }
+
+        private void writeReset(int streamId, int errorCode) {
+            writeFrame(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(errorCode).array(), 0, 4);
+        }
+
+        private void writeGoAway(int errorCode) {
+            // no stream initiated by the server is ever processed, as push is disabled
+            writeFrame(GOAWAY, 0, 0, ByteBuffer.allocate(8).putInt(0).putInt(errorCode).array(), 0, 8);
+        }
+
+        /**
+         * Consumes received data, handling each complete frame
+         */
+        private void parse(ByteBuffer data) throws IOException {
+            while (true) {
+                int position = frame.position();
+                int size = position < FRAME_HEADER_SIZE ? FRAME_HEADER_SIZE : FRAME_HEADER_SIZE + payloadLength();
+                if (position == size) {
+                    onFrame();
+                    frame.clear();
+                    continue;
+                }
+                if (!data.hasRemaining()) {
+                    return;
+                }
+                int count = Math.min(size - position, data.remaining());
+                frame.put(data.array(), data.arrayOffset() + data.position(), count);
+                data.position(data.position() + count);
+                if (frame.position() == FRAME_HEADER_SIZE && payloadLength() > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + payloadLength() + " bytes exceeds maximum size");
+                }
+            }
+        }
+
+        private int payloadLength() {
+            return ((frame.get(0) & 0xff) << 16) | ((frame.get(1) & 0xff) << 8) | (frame.get(2) & 0xff);
+        }
+
+        private void onFrame() throws IOException {
+            int length = payloadLength();
+            int type = frame.get(3) & 0xff;
+            int flags = frame.get(4) & 0xff;
+            int streamId = frame.getInt(5) & Integer.MAX_VALUE;
+            byte[] payload = frame.array();
+            if (headerBlock != null && type != CONTINUATION) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Header block not continued");
+            }
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, payload, length);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, payload, length);
+                    break;
+                case CONTINUATION:
+                    if (headerBlock == null || streamId != headerBlockStreamId) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+                    }
+                    appendHeaderBlock(payload, FRAME_HEADER_SIZE, length, flags);
+                    break;
+                case RST_STREAM:
+                    if (length != 4) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+                    }
+                    onReset(streamId, frame.getInt(FRAME_HEADER_SIZE));
+                    break;
+                case SETTINGS:
+                    onSettings(streamId, flags, length);
+                    break;
+                case PING:
+                    if (length != 8 || streamId != 0) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid PING frame");
+                    }
+                    if ((flags & FLAG_ACK) == 0) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, FRAME_HEADER_SIZE, 8);
+                    }
+                    break;
+                case GOAWAY:
+                    if (length < 8) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid GOAWAY frame");
+                    }
+                    onGoAway(frame.getInt(FRAME_HEADER_SIZE) & Integer.MAX_VALUE, frame.getInt(FRAME_HEADER_SIZE + 4));
+                    break;
+                case WINDOW_UPDATE:
+                    if (length != 4) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+                    }
+                    onWindowUpdate(streamId, frame.getInt(FRAME_HEADER_SIZE) & Integer.MAX_VALUE);
+                    break;
+                case PUSH_PROMISE:
+                    throw new Http2Exception(PROTOCOL_ERROR, "Server push is disabled");
+                default:
+                    // PRIORITY and unknown frames are ignored
+                    break;
+            }
+        }
+
+        private void onData(int streamId, int flags, byte[] payload, int length) throws IOException {
+            if (streamId == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA frame of stream 0");
+            }
+            int padding = (flags & FLAG_PADDED) != 0 && length > 0 ? (payload[FRAME_HEADER_SIZE] & 0xff) + 1 : 0;
+            if (padding > length) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+            }
+            // the whole frame counts against flow control, including padding
+            unacknowledged += length;
+            if (unacknowledged >= CONNECTION_WINDOW_SIZE / 2) {
+                writeWindowUpdate(0, unacknowledged);
+                unacknowledged = 0;
+            }
+            Http2Stream stream = streams.get(streamId);
+            if (stream == null) {
+                // cancelled already
+                return;
+            }
+            if (stream.response == null) {
+                failStream(stream, PROTOCOL_ERROR, new ClientProtocolException("DATA frame before response headers"));
+                return;
+            }
+            int dataLength = length - padding;
+            if (dataLength > 0) {
+                if (stream.body == null) {
+                    failStream(stream, PROTOCOL_ERROR, new ClientProtocolException("Response must not have body"));
+                    return;
+                }
+                if (stream.body.length() + (long) dataLength > maxResponseSize) {
+                    failStream(stream, CANCEL, new ResponseTooLargeException("Response body exceeds " + maxResponseSize + " bytes"));
+                    return;
+                }
+                int offset = FRAME_HEADER_SIZE + ((flags & FLAG_PADDED) != 0 ? 1 : 0);
+                stream.body.append(payload, offset, dataLength);
+            }
+            if ((flags & FLAG_END_STREAM) != 0) {
+                completeStream(stream);
+                return;
+            }
+            stream.unacknowledged += length;
+            if (stream.unacknowledged >= STREAM_WINDOW_SIZE / 2) {
+                writeWindowUpdate(streamId, stream.unacknowledged);
+                stream.unacknowledged = 0;
+            }
+        }
+
+        private void onHeaders(int streamId, int flags, byte[] payload, int length) throws IOException {
+            if (streamId == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "HEADERS frame of stream 0");
+            }
+            int offset = FRAME_HEADER_SIZE;
+            int padding = 0;
+            if ((flags & FLAG_PADDED) != 0 && length > 0) {
+                padding = payload[offset++] & 0xff;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) {
+                offset += 5;
+            }
+            int blockLength = length - (offset - FRAME_HEADER_SIZE) - padding;
+            if (blockLength < 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Invalid HEADERS frame");
+            }
+            headerBlock = new ByteArrayBuffer(Math.max(blockLength, 64));
+            headerBlockStreamId = streamId;
+            headerBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+            appendHeaderBlock(payload, offset, blockLength, flags);
+        }
+
+        private void appendHeaderBlock(byte[] payload, int offset, int length, int flags) throws IOException {
+            if (headerBlock.length() + length > MAX_HEADER_BLOCK_SIZE) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Response headers exceed " + MAX_HEADER_BLOCK_SIZE + " bytes");
+            }
+            headerBlock.append(payload, offset, length);
+            if ((flags & FLAG_END_HEADERS) == 0) {
+                return;
+            }
+            List<Header> headers;
+            try {
+                // decoded even if the stream is gone, to keep the dynamic table in sync
+                headers = decoder.decode(headerBlock.buffer(), headerBlock.length());
+            } catch (IOException e) {
+                throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+            }
+            headerBlock = null;
+            Http2Stream stream = streams.get(headerBlockStreamId);
+            if (stream != null) {
+                onResponseHeaders(stream, headers, headerBlockEndsStream);
+            }
+        }
+
+        private void onResponseHeaders(Http2Stream stream, List<Header> headers, boolean isEndOfStream) {
+            if (stream.response != null) {
+                // trailers, not exposed
+                if (isEndOfStream) {
+                    completeStream(stream);
+                } else {
+                    failStream(stream, PROTOCOL_ERROR, new ClientProtocolException("Trailers must end the stream"));
+                }
+                return;
+            }
+            String status = null;
+            List<Header> regular = new ArrayList<Header>(headers.size());
+            for (Header header : headers) {
+                if (":status".equals(header.getName())) {
+                    status = header.getValue();
+                } else if (!header.getName().startsWith(":")) {
+                    regular.add(header);
+                }
+            }
+            int statusCode;
+            try {
+                statusCode = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                failStream(stream, PROTOCOL_ERROR, new ClientProtocolException("Invalid response status: " + status));
+                return;
+            }
+            if (statusCode >= 100 && statusCode < 200) {
+                // interim response, such as 100 Continue
+                return;
+            }
+            BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HTTP_2, statusCode, EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, null)));
+            for (Header header : regular) {
+                response.addHeader(header);
+            }
+            stream.response = response;
+            if (!stream.exchange.isHead && statusCode != 204 && statusCode != 304) {
+                long length = -1;
+                Header contentLength = response.getFirstHeader("Content-Length");
+                try {
+                    length = contentLength == null ? -1 : Long.parseLong(contentLength.getValue().trim());
+                } catch (NumberFormatException e) {
+                    // treated as unknown length
+                }
+                if (length > maxResponseSize) {
+                    failStream(stream, CANCEL, new ResponseTooLargeException("Response body exceeds " + maxResponseSize + " bytes"));
+                    return;
+                }
+                // right-sized, if the length is known
+                stream.body = new ByteArrayBuffer(length >= 0 ? (int) Math.max(length, 1) : 4096);
+            }
+            if (isEndOfStream) {
+                completeStream(stream);
+            }
+        }
+
+        private void onReset(int streamId, int errorCode) {
+            Http2Stream stream = streams.remove(streamId);
+            if (stream == null) {
+                return;
+            }
+            Exchange exchange = stream.exchange;
+            exchange.connection = null;
+            onStreamClosed();
+            if (errorCode == REFUSED_STREAM) {
+                // not processed by the server, so it's safe to try again
+                retry(exchange, new NoHttpResponseException("Stream refused by the server"));
+            } else {
+                exchange.fail(new IOException("Stream reset by the server, error code " + errorCode));
+            }
+        }
+
+        private void onSettings(int streamId, int flags, int length) throws IOException {
+            if (streamId != 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS frame of stream " + streamId);
+            }
+            if ((flags & FLAG_ACK) != 0) {
+                return;
+            }
+            if (length % 6 != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+            }
+            for (int offset = FRAME_HEADER_SIZE; offset < FRAME_HEADER_SIZE + length; offset += 6) {
+                int id = frame.getShort(offset) & 0xffff;
+                int value = frame.getInt(offset + 2);
+                switch (id) {
+                    case SETTINGS_HEADER_TABLE_SIZE:
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                        break;
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) {
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid initial window size");
+                        }
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += value - initialWindowSize;
+                        }
+                        initialWindowSize = value;
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                            throw new Http2Exception(PROTOCOL_ERROR, "Invalid maximum frame size");
+                        }
+                        maxFrameSize = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            writeFrame(SETTINGS, FLAG_ACK, 0, frame.array(), 0, 0);
+            startPending();
+        }
+
+        private void onGoAway(int lastStreamId, int errorCode) {
+            isGoingAway = true;
+            connection.unshare();
+            if (errorCode != NO_ERROR) {
+                AsyncHttpClient.log.w(LOG_TAG, "Connection to " + connection.route + " going away, error code " + errorCode);
+            }
+            for (Http2Stream stream : new ArrayList<Http2Stream>(streams.values())) {
+                if (stream.id > lastStreamId) {
+                    // not processed by the server
+                    streams.remove(stream.id);
+                    stream.exchange.connection = null;
+                    retry(stream.exchange, new NoHttpResponseException("Connection closed by the server"));
+                }
+            }
+            startPending();
+        }
+
+        private void onWindowUpdate(int streamId, int increment) throws IOException {
+            if (streamId == 0) {
+                if (increment == 0 || sendWindow + increment > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid connection window update");
+                }
+                sendWindow += increment;
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                if (increment == 0 || stream.sendWindow + increment > Integer.MAX_VALUE) {
+                    failStream(stream, FLOW_CONTROL_ERROR, new ClientProtocolException("Invalid stream window update"));
+                    return;
+                }
+                stream.sendWindow += increment;
+            }
+            writeData();
+        }
+
+        private void completeStream(Http2Stream stream) {
+            streams.remove(stream.id);
+            if (stream.data != null) {
+                // the server has responded without reading whole request body
+                writeReset(stream.id, CANCEL);
+            }
+            completedStreams++;
+            stream.exchange.connection = null;
+            onStreamClosed();
+            stream.exchange.complete(withBody(stream.response, stream.body));
+        }
+
+        private void failStream(Http2Stream stream, int errorCode, IOException error) {
+            closeStream(stream, errorCode);
+            stream.exchange.fail(error);
+        }
+
+        private void closeStream(Http2Stream stream, int errorCode) {
+            streams.remove(stream.id);
+            writeReset(stream.id, errorCode);
+            stream.exchange.connection = null;
+            onStreamClosed();
+        }
+
+        private void onStreamClosed() {
+            startPending();
+            if (!isBusy()) {
+                idleSince = System.currentTimeMillis();
+            }
+            connection.touch();
+        }
+    }
+
+    /**
+     * Single exchange of HTTP/2 connection
+     */
+    private static class Http2Stream {
+        final int id;
+        final Exchange exchange;
+        // true if the connection has been used before, and might have been closed by the server
+        final boolean isReused;
+        long sendWindow;
+        int unacknowledged;
+        // rest of request body
+        ByteBuffer data;
+        BasicHttpResponse response;
+        ByteArrayBuffer body;
+
+        Http2Stream(int id, Exchange exchange, int sendWindow, boolean isReused) {
+            this.id = id;
+            this.exchange = exchange;
+            this.sendWindow = sendWindow;
+            this.isReused = isReused;
+        }
+    }
+
+    /**
+     * Connection error of HTTP/2, closing the connection
+     */
+    private static class Http2Exception extends ClientProtocolException {
+        private static final long serialVersionUID = 1L;
+        final int errorCode;
+
+        Http2Exception(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * Application-Layer Protocol Negotiation of TLS connections, looked up by reflection, as
+     * it's available since Android 10 only
+     */
+    private static final class Alpn {
+        private static final Method GET_PARAMETERS;
+        private static final Method SET_PARAMETERS;
+        private static final Method SET_PROTOCOLS;
+        private static final Method GET_PROTOCOL;
+
+        static {
+            Method getParameters = null;
+            Method setParameters = null;
+            Method setProtocols = null;
+            Method getProtocol = null;
+            try {
+                Class<?> parameters = Class.forName("javax.net.ssl.SSLParameters");
+                getParameters = SSLEngine.class.getMethod("getSSLParameters");
+                setParameters = SSLEngine.class.getMethod("setSSLParameters", parameters);
+                setProtocols = parameters.getMethod("setApplicationProtocols", String[].class);
+                getProtocol = SSLEngine.class.getMethod("getApplicationProtocol");
+            } catch (Exception e) {
+                // ALPN not available
+            }
+            GET_PARAMETERS = getParameters;
+            SET_PARAMETERS = setParameters;
+            SET_PROTOCOLS = setProtocols;
+            GET_PROTOCOL = getProtocol;
+        }
+
+        private Alpn() {
+        }
+
+        static boolean isSupported() {
+            return GET_PROTOCOL != null;
+        }
+
+        static void setProtocols(SSLEngine engine, String... protocols) {
+            if (!isSupported()) {
+                return;
+            }
+            try {
+                Object parameters = GET_PARAMETERS.invoke(engine);
+                SET_PROTOCOLS.invoke(parameters, (Object) protocols);
+                SET_PARAMETERS.invoke(engine, parameters);
+            } catch (Exception e) {
+                AsyncHttpClient.log.w(LOG_TAG, "Cannot set ALPN protocols", e);
+            }
+        }
+
+        /**
+         * Returns protocol selected by ALPN
+         *
+         * @return the protocol, empty string if none was selected, or null if ALPN isn't
+         * supported
+         */
+        static String getProtocol(SSLEngine engine) {
+            if (!isSupported()) {
+                return null;
+            }
+            try {
+                return (String) GET_PROTOCOL.invoke(engine);
+            } catch (Exception e) {
+                AsyncHttpClient.log.w(LOG_TAG, "Cannot get ALPN protocol", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Incremental parser of single HTTP/1.1 response, buffering its body in memory
+     */
+    private static class ResponseParser {
+        private static final int STATUS_LINE = 0;
+        private static final int HEADERS = 1;
+        private static final int BODY = 2;
+        private static final int CHUNK_SIZE = 3;
+        private static final int CHUNK_DATA = 4;
+        private static final int CHUNK_END = 5;
+        private static final int TRAILERS = 6;
+        private static final int BODY_UNTIL_CLOSE = 7;
+        private static final int DONE = 8;
+
+        private final boolean isHead;
+        private final long maxSize;
+        private final StringBuilder line = new StringBuilder(128);
+        private int state = STATUS_LINE;
+        private BasicHttpResponse response;
+        private ByteArrayBuffer body;
+        private long remaining;
+        private boolean isKeepAlive;
+        private boolean hasStarted;
+
+        ResponseParser(boolean isHead, long maxSize) {
+            this.isHead = isHead;
+            this.maxSize = maxSize;
+        }
+
+        boolean hasStarted() {
+            return hasStarted;
+        }
+
+        boolean isKeepAlive() {
+            return isKeepAlive && state == DONE;
+        }
+
+        /**
+         * Consumes the data, up to the end of the response
+         *
+         * @param data received data, position is advanced past consumed bytes
+         * @return true if the response is complete
+         */
+        boolean parse(ByteBuffer data) throws IOException {
+            if (data.hasRemaining()) {
+                hasStarted = true;
+            }
+            while (data.hasRemaining() && state != DONE) {
+                switch (state) {
+                    case BODY:
+                    case CHUNK_DATA:
+                        int count = (int) Math.min(remaining, data.remaining());
+                        append(data, count);
+                        remaining -= count;
+                        if (remaining == 0) {
+                            state = state == BODY ? DONE : CHUNK_END;
+                        }
+                        break;
+                    case BODY_UNTIL_CLOSE:
+                        append(data, data.remaining());
+                        break;
+                    default:
+                        if (readLine(data)) {
+                            onLine(line.toString());
+                            line.setLength(0);
+                        }
+                }
+            }
+            return state == DONE;
+        }
+
+        /**
+         * Handles end of stream
+         *
+         * @return true if the response is complete, as its body was delimited by the end of
+         * stream
+         */
+        boolean onEndOfStream() {
+            if (state == BODY_UNTIL_CLOSE) {
+                state = DONE;
+                isKeepAlive = false;
+            }
+            return state == DONE;
+        }
+
+        HttpResponse getResponse() {
+            return withBody(response, body);
+        }
+
+        private boolean readLine(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                char c = (char) (data.get() & 0xff);
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return true;
+                }
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new ClientProtocolException("Response header line too long");
+                }
+                line.append(c);
+            }
+            return false;
+        }
+
+        private void onLine(String text) throws IOException {
+            try {
+                switch (state) {
+                    case STATUS_LINE:
+                        if (text.length() > 0) {
+                            StatusLine statusLine = BasicLineParser.parseStatusLine(text, null);
+                            response = new BasicHttpResponse(statusLine);
+                            state = HEADERS;
+                        }
+                        break;
+                    case HEADERS:
+                        if (text.length() == 0) {
+                            onHeadersEnd();
+                        } else {
+                            response.addHeader(BasicLineParser.parseHeader(text, null));
+                        }
+                        break;
+                    case CHUNK_SIZE:
+                        int extension = text.indexOf(';');
+                        long size = Long.parseLong((extension < 0 ? text : text.substring(0, extension)).trim(), 16);
+                        if (size == 0) {
+                            state = TRAILERS;
+                        } else {
+                            reserve(size);
+                            remaining = size;
+                            state = CHUNK_DATA;
+                        }
+                        break;
+                    case CHUNK_END:
+                        state = CHUNK_SIZE;
+                        break;
+                    case TRAILERS:
+                        if (text.length() == 0) {
+                            state = DONE;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (ParseException e) {
+                throw new ClientProtocolException("Invalid response: " + e.getMessage());
+            } catch (NumberFormatException e) {
+                throw new ClientProtocolException("Invalid chunk size: " + text);
+            }
+        }
+
+        private void onHeadersEnd() throws IOException {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode >= 100 && statusCode < 200) {
+                // interim response, such as 100 Continue
+                response = null;
+                state = STATUS_LINE;
+                return;
+            }
+
+            Header connection = response.getFirstHeader("Connection");
+            if (response.getStatusLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+                isKeepAlive = connection != null && "keep-alive".equalsIgnoreCase(connection.getValue().trim());
+            } else {
+                isKeepAlive = connection == null || !"close".equalsIgnoreCase(connection.getValue().trim());
+            }
+
+            if (isHead || statusCode == 204 || statusCode == 304) {
+                state = DONE;
+                return;
+            }
+            Header transferEncoding = response.getFirstHeader("Transfer-Encoding");
+            Header contentLength = response.getFirstHeader("Content-Length");
+            if (transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding.getValue().trim())) {
+                body = new ByteArrayBuffer(4096);
+                state = CHUNK_SIZE;
+            } else if (contentLength != null) {
+                long length = Long.parseLong(contentLength.getValue().trim());
+                if (length < 0) {
+                    throw new ClientProtocolException("Invalid Content-Length: " + length);
+                }
+                // right-sized, as the length is known
+                reserve(length);
+                body = new ByteArrayBuffer((int) Math.max(length, 1));
+                remaining = length;
+                state = length == 0 ? DONE : BODY;
+            } else {
+                body = new ByteArrayBuffer(4096);
+                isKeepAlive = false;
+                state = BODY_UNTIL_CLOSE;
+            }
+        }
+
+        private void reserve(long size) throws IOException {
+            long total = (body == null ? 0 : body.length()) + size;
+            if (total > maxSize) {
+                throw new ResponseTooLargeException("Response body exceeds " + maxSize + " bytes");
+            }
+        }
+
+        private void append(ByteBuffer data, int count) throws IOException {
+            reserve(count);
+            body.append(data.array(), data.arrayOffset() + data.position(), count);
+            data.position(data.position() + count);
+        }
+    }
+
+    /**
+     * Callback of blocking {@link #execute(HttpUriRequest, HttpContext)}
+     */
+    private static class BlockingCallback implements Callback {
+        private HttpResponse response;
+        private IOException error;
+        private boolean isDone;
+
+        @Override
+        public synchronized void onResponse(HttpResponse response) {
+            this.response = response;
+            isDone = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onFailure(IOException error) {
+            this.error = error;
+            isDone = true;
+            notifyAll();
+        }
+
+        synchronized HttpResponse await(HttpUriRequest request) throws IOException {
+            while (!isDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    request.abort();
+                    throw new InterruptedIOException("Interrupted while waiting for response");
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return response;
+        }
+    }
+}
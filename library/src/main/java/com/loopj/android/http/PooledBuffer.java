@@ -0,0 +1,258 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reference counted body, collected in segments taken from {@link BufferPool}. Segments grow
+ * from size hint up to {@link BufferPool#MAX_SEGMENT_SIZE}, so data is never copied while the
+ * body is being read, unlike in buffer growing by doubling. Size hint over the maximum segment
+ * size gets single array of exactly that size, so that body of known length is read straight
+ * into its final place. Segments return to the pool, once every holder of the body has called
+ * {@link #release()}.
+ * <p>&nbsp;</p>
+ * Not thread safe while being written; once complete, it can be read and retained from any
+ * thread.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final List<byte[]> segments = new ArrayList<byte[]>();
+    private int nextSegmentSize;
+    // bytes used in the last segment
+    private int tailCount;
+    private long length;
+    private int refCount = 1;
+
+    /**
+     * Creates new empty PooledBuffer with single reference held by caller
+     *
+     * @param pool     pool to take segments from, must not be null
+     * @param sizeHint expected length of the body, or 0 if unknown
+     */
+    public PooledBuffer(BufferPool pool, int sizeHint) {
+        this.pool = Utils.notNull(pool, "pool");
+        this.nextSegmentSize = Math.max(sizeHint, BufferPool.MIN_SEGMENT_SIZE);
+    }
+
+    private byte[] tail() {
+        checkReleased();
+        if (segments.isEmpty() || tailCount == segments.get(segments.size() - 1).length) {
+            byte[] segment = pool.acquire(nextSegmentSize);
+            segments.add(segment);
+            tailCount = 0;
+            nextSegmentSize = Math.min(segment.length * 2, BufferPool.MAX_SEGMENT_SIZE);
+            return segment;
+        }
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Reads once from the stream straight into free space of the last segment
+     *
+     * @param instream stream to read from
+     * @return number of bytes read, or -1 at end of stream
+     * @throws IOException if reading fails
+     */
+    public int readFrom(InputStream instream) throws IOException {
+        checkReleased();
+        if (!segments.isEmpty() && tailCount == segments.get(segments.size() - 1).length) {
+            // body may have filled its segment exactly, don't take another one just to see end
+            // of stream, which would also keep body of known length from being handed over
+            int first = instream.read();
+            if (first < 0) {
+                return -1;
+            }
+            byte[] segment = tail();
+            segment[tailCount++] = (byte) first;
+            length++;
+            int count = instream.read(segment, tailCount, segment.length - tailCount);
+            if (count > 0) {
+                tailCount += count;
+                length += count;
+                return count + 1;
+            }
+            return 1;
+        }
+        byte[] segment = tail();
+        int count = instream.read(segment, tailCount, segment.length - tailCount);
+        if (count > 0) {
+            tailCount += count;
+            length += count;
+        }
+        return count;
+    }
+
+    /**
+     * Appends bytes to the body
+     *
+     * @param buffer source of bytes
+     * @param offset offset of the bytes in the source
+     * @param count  number of bytes to append
+     */
+    public void write(byte[] buffer, int offset, int count) {
+        while (count > 0) {
+            byte[] segment = tail();
+            int chunk = Math.min(count, segment.length - tailCount);
+            System.arraycopy(buffer, offset, segment, tailCount, chunk);
+            tailCount += chunk;
+            length += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    /**
+     * Returns number of bytes in the body
+     *
+     * @return length of the body
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns number of segments the body is stored in
+     *
+     * @return number of segments
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns segment of the body, valid only until the buffer is released
+     *
+     * @param index index of the segment
+     * @return the segment, of which only first {@link #getSegmentLength(int)} bytes belong to
+     * the body
+     */
+    public byte[] getSegment(int index) {
+        checkReleased();
+        return segments.get(index);
+    }
+
+    /**
+     * Returns number of bytes of the body in the segment
+     *
+     * @param index index of the segment
+     * @return length of the data in the segment
+     */
+    public int getSegmentLength(int index) {
+        return index == segments.size() - 1 ? tailCount : segments.get(index).length;
+    }
+
+    private boolean isSingleSegment() {
+        return segments.size() == 1;
+    }
+
+    /**
+     * Returns the body as array. Body read whole into single array not belonging to the pool is
+     * handed over as is, otherwise it is copied into new array.
+     *
+     * @return array of {@link #length()} bytes
+     */
+    public byte[] toByteArray() {
+        checkReleased();
+        if (isSingleSegment() && tailCount == segments.get(0).length && tailCount > BufferPool.MAX_SEGMENT_SIZE) {
+            return segments.get(0);
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Body too large to be copied into array");
+        }
+        byte[] result = new byte[(int) length];
+        int position = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            int count = getSegmentLength(i);
+            System.arraycopy(segments.get(i), 0, result, position, count);
+            position += count;
+        }
+        return result;
+    }
+
+    /**
+     * Returns read-only view of the body. Body stored in single segment is not copied, and the
+     * view is valid only until the buffer is released; otherwise segments are copied into new
+     * array, see {@link #toByteArray()}.
+     *
+     * @return buffer positioned at start of the body, limited by its end
+     */
+    public ByteBuffer toByteBuffer() {
+        checkReleased();
+        if (segments.isEmpty()) {
+            return ByteBuffer.wrap(new byte[0]).asReadOnlyBuffer();
+        }
+        if (isSingleSegment()) {
+            return ByteBuffer.wrap(segments.get(0), 0, tailCount).slice().asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the body to the stream
+     *
+     * @param outstream stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream outstream) throws IOException {
+        checkReleased();
+        for (int i = 0; i < segments.size(); i++) {
+            outstream.write(segments.get(i), 0, getSegmentLength(i));
+        }
+    }
+
+    /**
+     * Adds reference to the body, to be dropped by {@link #release()}
+     *
+     * @return this buffer
+     */
+    public synchronized PooledBuffer retain() {
+        checkReleased();
+        refCount++;
+        return this;
+    }
+
+    /**
+     * Drops reference to the body, returning its segments to the pool when the last reference
+     * is dropped. The segments must not be used by the caller afterwards.
+     */
+    public void release() {
+        synchronized (this) {
+            if (refCount == 0 || --refCount > 0) {
+                return;
+            }
+        }
+        for (byte[] segment : segments) {
+            pool.release(segment);
+        }
+        segments.clear();
+    }
+
+    private synchronized void checkReleased() {
+        if (refCount == 0) {
+            throw new IllegalStateException("Buffer has been released");
+        }
+    }
+}
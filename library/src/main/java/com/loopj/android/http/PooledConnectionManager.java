@@ -0,0 +1,455 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import cz.msebera.android.httpclient.conn.ClientConnectionOperator;
+import cz.msebera.android.httpclient.conn.ClientConnectionRequest;
+import cz.msebera.android.httpclient.conn.ConnectionPoolTimeoutException;
+import cz.msebera.android.httpclient.conn.DnsResolver;
+import cz.msebera.android.httpclient.conn.ManagedClientConnection;
+import cz.msebera.android.httpclient.conn.params.ConnManagerParams;
+import cz.msebera.android.httpclient.conn.params.ConnPerRoute;
+import cz.msebera.android.httpclient.conn.params.ConnPerRouteBean;
+import cz.msebera.android.httpclient.conn.routing.HttpRoute;
+import cz.msebera.android.httpclient.conn.scheme.SchemeRegistry;
+import cz.msebera.android.httpclient.impl.conn.SystemDefaultDnsResolver;
+import cz.msebera.android.httpclient.impl.conn.tsccm.AbstractConnPool;
+import cz.msebera.android.httpclient.impl.conn.tsccm.BasicPoolEntry;
+import cz.msebera.android.httpclient.impl.conn.tsccm.ConnPoolByRoute;
+import cz.msebera.android.httpclient.impl.conn.tsccm.ThreadSafeClientConnManager;
+import cz.msebera.android.httpclient.impl.conn.tsccm.WaitingThreadAborter;
+import cz.msebera.android.httpclient.params.HttpParams;
+
+/**
+ * Connection manager used by {@link AsyncHttpClient} by default, which keeps statistics of
+ * leased, idle and pending connections of each route, and allows changing limits of the pool
+ * while the client is in use.
+ * <p>&nbsp;</p>
+ * Unlike {@link ThreadSafeClientConnManager} constructed from HttpParams, changes made by {@link
+ * #setDefaultMaxPerRoute(int)} and {@link #setMaxForRoute(HttpRoute, int)} take effect on the
+ * pool, as they are applied to the {@link ConnPerRouteBean} the pool was created with.
+ * <p>&nbsp;</p>
+ * Connections idle for longer than {@link #getIdleConnectionTimeout()}, or longer than server
+ * allowed by Keep-Alive header, are closed in background, so they don't hold sockets (and radio)
+ * and are not found half-closed by the next request. Instead of checking each connection for
+ * being stale before every request, only connections idle for longer than {@link
+ * #getValidateAfterInactivity()} are checked, when leased, so stale checking of HttpParams can be
+ * disabled.
+ * <p>&nbsp;</p>
+ * Host names are resolved by {@link #getDnsResolver()}, which can be changed at any time, i.e. to
+ * {@link CachingDnsResolver}. Connections to hosts with multiple addresses are opened by {@link
+ * RacingConnectionOperator}, see {@link #setConnectionAttemptDelay(long)}.
+ */
+public class PooledConnectionManager extends ThreadSafeClientConnManager {
+
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 30 * 1000;
+    public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 2 * 1000;
+
+    private static final String LOG_TAG = "PooledConnectionManager";
+    private static Timer evictionTimer;
+    // time of last use of the pool entry just leased by the current thread, see IdleTrackingConnPool
+    private static final ThreadLocal<Long> leasedEntryUpdated = new ThreadLocal<Long>();
+
+    private final ConnPerRouteBean poolConnPerRoute;
+    private final Map<HttpRoute, RouteStats> routeStats = new HashMap<HttpRoute, RouteStats>();
+    private final Map<ManagedClientConnection, HttpRoute> leasedConnections = new HashMap<ManagedClientConnection, HttpRoute>();
+    private final Object evictionLock = new Object();
+    private volatile long idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+    private volatile int validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+    private volatile DnsResolver dnsResolver = SystemDefaultDnsResolver.INSTANCE;
+    private TimerTask evictionTask;
+    private long evictionTime;
+
+    /**
+     * Creates new PooledConnectionManager, limits of the pool are read from the params, see
+     * {@link ConnManagerParams}
+     *
+     * @param params         params of the pool
+     * @param schemeRegistry scheme registry
+     */
+    public PooledConnectionManager(HttpParams params, SchemeRegistry schemeRegistry) {
+        super(params, schemeRegistry);
+        ConnPerRoute _connPerRoute = ConnManagerParams.getMaxConnectionsPerRoute(params);
+        this.poolConnPerRoute = _connPerRoute instanceof ConnPerRouteBean ? (ConnPerRouteBean) _connPerRoute : null;
+    }
+
+    @Override
+    protected AbstractConnPool createConnectionPool(HttpParams params) {
+        return new IdleTrackingConnPool(connOperator, params);
+    }
+
+    @Override
+    protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
+        // called from super constructor, so the resolver is looked up on each use
+        return new RacingConnectionOperator(schreg, new DnsResolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                return dnsResolver.resolve(host);
+            }
+        });
+    }
+
+    /**
+     * Sets time after which next address of host is tried, while connecting to previous ones is
+     * still pending, see {@link RacingConnectionOperator}
+     *
+     * @param connectionAttemptDelay delay in milliseconds, or 0 to try addresses one by one
+     */
+    public void setConnectionAttemptDelay(long connectionAttemptDelay) {
+        ((RacingConnectionOperator) connOperator).setConnectionAttemptDelay(connectionAttemptDelay);
+    }
+
+    /**
+     * Returns resolver of host names of new connections
+     *
+     * @return current DNS resolver
+     */
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * Sets resolver of host names of new connections, such as {@link CachingDnsResolver}
+     *
+     * @param dnsResolver DNS resolver, or null to use the system resolver
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver == null ? SystemDefaultDnsResolver.INSTANCE : dnsResolver;
+    }
+
+    /**
+     * Returns time after which idle connections are closed in background
+     *
+     * @return idle timeout in milliseconds, or 0 if idle connections are not evicted
+     */
+    public long getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * Sets time after which idle connections are closed in background. Connections are closed
+     * sooner, if server asks for that by Keep-Alive header.
+     *
+     * @param idleConnectionTimeout idle timeout in milliseconds, or 0 to evict only connections
+     *                              expired according to Keep-Alive header
+     */
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = Math.max(0, idleConnectionTimeout);
+    }
+
+    /**
+     * Returns time of inactivity, after which connection is checked for being stale before reuse
+     *
+     * @return inactivity in milliseconds, or negative value if connections are never checked
+     */
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    /**
+     * Sets time of inactivity, after which connection is checked for being stale before reuse.
+     * Checking costs a blocking read, so connections reused shortly after previous request are
+     * not checked.
+     *
+     * @param validateAfterInactivity inactivity in milliseconds, 0 to check every connection, or
+     *                                negative value to never check connections
+     */
+    public void setValidateAfterInactivity(int validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    @Override
+    public int getDefaultMaxPerRoute() {
+        return poolConnPerRoute == null ? super.getDefaultMaxPerRoute() : poolConnPerRoute.getDefaultMaxPerRoute();
+    }
+
+    @Override
+    public void setDefaultMaxPerRoute(int max) {
+        if (poolConnPerRoute == null) {
+            super.setDefaultMaxPerRoute(max);
+        } else {
+            poolConnPerRoute.setDefaultMaxPerRoute(max);
+        }
+    }
+
+    @Override
+    public int getMaxForRoute(HttpRoute route) {
+        return poolConnPerRoute == null ? super.getMaxForRoute(route) : poolConnPerRoute.getMaxForRoute(route);
+    }
+
+    @Override
+    public void setMaxForRoute(HttpRoute route, int max) {
+        if (poolConnPerRoute == null) {
+            super.setMaxForRoute(route, max);
+        } else {
+            poolConnPerRoute.setMaxForRoute(route, max);
+        }
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(final HttpRoute route, Object state) {
+        final ClientConnectionRequest request = super.requestConnection(route, state);
+        return new ClientConnectionRequest() {
+            @Override
+            public ManagedClientConnection getConnection(long timeout, TimeUnit tunit) throws InterruptedException, ConnectionPoolTimeoutException {
+                onLeaseStarted(route);
+                long start = System.currentTimeMillis();
+                ManagedClientConnection connection = null;
+                try {
+                    connection = request.getConnection(timeout, tunit);
+                } finally {
+                    onLeaseFinished(route, connection, System.currentTimeMillis() - start);
+                }
+                validate(connection);
+                return connection;
+            }
+
+            @Override
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+        boolean isReusable = conn.isMarkedReusable();
+        synchronized (routeStats) {
+            // connection may be released more than once, i.e. when aborted
+            HttpRoute route = leasedConnections.remove(conn);
+            if (route != null) {
+                getRouteStats(route).leased--;
+            }
+        }
+        super.releaseConnection(conn, validDuration, timeUnit);
+
+        if (isReusable) {
+            long delay = idleConnectionTimeout;
+            if (validDuration > 0 && timeUnit != null) {
+                // server limited the connection by Keep-Alive header
+                long keepAlive = timeUnit.toMillis(validDuration);
+                delay = delay > 0 ? Math.min(delay, keepAlive) : keepAlive;
+            }
+            if (delay > 0) {
+                scheduleEviction(delay);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (evictionLock) {
+            if (evictionTask != null) {
+                evictionTask.cancel();
+                evictionTask = null;
+            }
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Closes connections expired according to Keep-Alive header, and connections idle for longer
+     * than {@link #getIdleConnectionTimeout()}, called periodically while there are idle
+     * connections
+     */
+    public void evictIdleConnections() {
+        closeExpiredConnections();
+        long timeout = idleConnectionTimeout;
+        if (timeout > 0) {
+            closeIdleConnections(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns routes connected to so far
+     *
+     * @return snapshot of known routes
+     */
+    public List<HttpRoute> getRoutes() {
+        synchronized (routeStats) {
+            return new ArrayList<HttpRoute>(routeStats.keySet());
+        }
+    }
+
+    /**
+     * Returns statistics of connections to the route
+     *
+     * @param route route of the connections
+     * @return current statistics of the route
+     */
+    public ConnectionPoolStats getStats(HttpRoute route) {
+        int inPool = getConnectionsInPool(route);
+        synchronized (routeStats) {
+            RouteStats stats = getRouteStats(route);
+            return new ConnectionPoolStats(route, stats.leased, Math.max(0, inPool - stats.leased), stats.pending,
+                    getMaxForRoute(route), stats.leaseCount, stats.totalLeaseWaitMillis, stats.maxLeaseWaitMillis);
+        }
+    }
+
+    /**
+     * Returns statistics of all connections of the pool
+     *
+     * @return current statistics of the whole pool
+     */
+    public ConnectionPoolStats getTotalStats() {
+        int inPool = getConnectionsInPool();
+        int leased = 0, pending = 0;
+        long leaseCount = 0, totalLeaseWaitMillis = 0, maxLeaseWaitMillis = 0;
+        synchronized (routeStats) {
+            for (RouteStats stats : routeStats.values()) {
+                leased += stats.leased;
+                pending += stats.pending;
+                leaseCount += stats.leaseCount;
+                totalLeaseWaitMillis += stats.totalLeaseWaitMillis;
+                maxLeaseWaitMillis = Math.max(maxLeaseWaitMillis, stats.maxLeaseWaitMillis);
+            }
+        }
+        return new ConnectionPoolStats(null, leased, Math.max(0, inPool - leased), pending,
+                getMaxTotal(), leaseCount, totalLeaseWaitMillis, maxLeaseWaitMillis);
+    }
+
+    private void validate(ManagedClientConnection connection) {
+        Long updated = leasedEntryUpdated.get();
+        leasedEntryUpdated.remove();
+        int inactivity = validateAfterInactivity;
+        if (inactivity < 0 || updated == null || !connection.isOpen()) {
+            return;
+        }
+        if (System.currentTimeMillis() - updated > inactivity && connection.isStale()) {
+            // closed connection is reopened by the request director
+            AsyncHttpClient.log.d(LOG_TAG, "Closing stale connection to " + connection.getRoute());
+            try {
+                connection.close();
+            } catch (IOException e) {
+                AsyncHttpClient.log.w(LOG_TAG, "Closing stale connection failed", e);
+            }
+        }
+    }
+
+    private void scheduleEviction(long delayMillis) {
+        synchronized (evictionLock) {
+            long time = System.currentTimeMillis() + delayMillis;
+            if (evictionTask != null) {
+                if (evictionTime <= time) {
+                    return;
+                }
+                evictionTask.cancel();
+            }
+            evictionTime = time;
+            evictionTask = new TimerTask() {
+                @Override
+                public void run() {
+                    onEviction(this);
+                }
+            };
+            getEvictionTimer().schedule(evictionTask, delayMillis);
+        }
+    }
+
+    private void onEviction(TimerTask task) {
+        synchronized (evictionLock) {
+            if (evictionTask != task) {
+                return;
+            }
+            evictionTask = null;
+        }
+        try {
+            evictIdleConnections();
+        } catch (RuntimeException e) {
+            AsyncHttpClient.log.w(LOG_TAG, "Evicting idle connections failed", e);
+        }
+        long timeout = idleConnectionTimeout;
+        if (timeout > 0 && getTotalStats().getIdle() > 0) {
+            scheduleEviction(timeout);
+        }
+    }
+
+    private static synchronized Timer getEvictionTimer() {
+        if (evictionTimer == null) {
+            evictionTimer = new Timer("AsyncHttpClient-evictor", true);
+        }
+        return evictionTimer;
+    }
+
+    private void onLeaseStarted(HttpRoute route) {
+        synchronized (routeStats) {
+            getRouteStats(route).pending++;
+        }
+    }
+
+    private void onLeaseFinished(HttpRoute route, ManagedClientConnection connection, long waitMillis) {
+        synchronized (routeStats) {
+            RouteStats stats = getRouteStats(route);
+            stats.pending--;
+            if (connection != null) {
+                leasedConnections.put(connection, route);
+                stats.leased++;
+                stats.leaseCount++;
+                stats.totalLeaseWaitMillis += waitMillis;
+                stats.maxLeaseWaitMillis = Math.max(stats.maxLeaseWaitMillis, waitMillis);
+            }
+        }
+    }
+
+    private RouteStats getRouteStats(HttpRoute route) {
+        RouteStats stats = routeStats.get(route);
+        if (stats == null) {
+            stats = new RouteStats();
+            routeStats.put(route, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Pool passing time of last use of leased entry to {@link #validate(ManagedClientConnection)},
+     * which runs on the same thread right after the entry is leased
+     */
+    private static class IdleTrackingConnPool extends ConnPoolByRoute {
+
+        IdleTrackingConnPool(ClientConnectionOperator operator, HttpParams params) {
+            super(operator, params);
+        }
+
+        @Override
+        protected BasicPoolEntry getEntryBlocking(HttpRoute route, Object state, long timeout, TimeUnit tunit, WaitingThreadAborter aborter) throws ConnectionPoolTimeoutException, InterruptedException {
+            BasicPoolEntry entry = super.getEntryBlocking(route, state, timeout, tunit, aborter);
+            leasedEntryUpdated.set(entry.getUpdated());
+            return entry;
+        }
+    }
+
+    private static class RouteStats {
+        int leased;
+        int pending;
+        long leaseCount;
+        long totalLeaseWaitMillis;
+        long maxLeaseWaitMillis;
+    }
+}
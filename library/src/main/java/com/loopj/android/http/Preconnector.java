@@ -0,0 +1,152 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import cz.msebera.android.httpclient.HttpException;
+import cz.msebera.android.httpclient.HttpHost;
+import cz.msebera.android.httpclient.conn.ClientConnectionManager;
+import cz.msebera.android.httpclient.conn.ConnectionPoolTimeoutException;
+import cz.msebera.android.httpclient.conn.ManagedClientConnection;
+import cz.msebera.android.httpclient.conn.params.ConnManagerParams;
+import cz.msebera.android.httpclient.conn.routing.HttpRoute;
+import cz.msebera.android.httpclient.impl.client.AbstractHttpClient;
+import cz.msebera.android.httpclient.impl.conn.tsccm.ThreadSafeClientConnManager;
+import cz.msebera.android.httpclient.message.BasicHttpRequest;
+import cz.msebera.android.httpclient.params.HttpParams;
+import cz.msebera.android.httpclient.protocol.BasicHttpContext;
+
+/**
+ * Opens connections to a host ahead of requests and parks them in the connection manager, so the
+ * requests don't have to wait for DNS lookup, TCP connect and TLS handshake. Connections are
+ * opened to the same route, which requests to the host get from the route planner of the client,
+ * so they are leased by the requests as any other idle connection.
+ */
+class Preconnector implements Runnable {
+
+    private static final String LOG_TAG = "Preconnector";
+
+    private final AbstractHttpClient client;
+    private final Executor executor;
+    private final HttpHost target;
+    private final int count;
+
+    /**
+     * @param client   client, whose connection manager gets the connections
+     * @param executor executor opening the connections in parallel
+     * @param target   host to be connected to
+     * @param count    number of connections to be ready, including the idle ones already pooled
+     */
+    Preconnector(AbstractHttpClient client, Executor executor, HttpHost target, int count) {
+        this.client = client;
+        this.executor = executor;
+        this.target = target;
+        this.count = count;
+    }
+
+    @Override
+    public void run() {
+        HttpParams params = client.getParams();
+        HttpRoute route;
+        try {
+            BasicHttpRequest request = new BasicHttpRequest("HEAD", "/");
+            request.setParams(params);
+            route = client.getRoutePlanner().determineRoute(target, request, new BasicHttpContext());
+        } catch (HttpException e) {
+            AsyncHttpClient.log.w(LOG_TAG, "Cannot determine route to " + target, e);
+            return;
+        }
+        if (route.getHopCount() > 1) {
+            // tunnelling through proxy is left to the request director
+            AsyncHttpClient.log.d(LOG_TAG, "Not preconnecting to " + target + " through proxy");
+            return;
+        }
+
+        ClientConnectionManager cm = client.getConnectionManager();
+        int max = count;
+        if (cm instanceof ThreadSafeClientConnManager) {
+            // leasing more than route allows would just wait for timeout
+            max = Math.min(max, ((ThreadSafeClientConnManager) cm).getMaxForRoute(route));
+        }
+
+        // all connections are leased first, so the same idle connection isn't counted twice
+        List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>(max);
+        try {
+            for (int i = 0; i < max; i++) {
+                connections.add(cm.requestConnection(route, null).getConnection(ConnManagerParams.getTimeout(params), TimeUnit.MILLISECONDS));
+            }
+        } catch (ConnectionPoolTimeoutException e) {
+            AsyncHttpClient.log.d(LOG_TAG, "Pool is full, preconnecting " + connections.size() + " connections to " + target);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (final ManagedClientConnection connection : connections) {
+            if (connection.isOpen()) {
+                // fresh lease is not reusable, and would be closed on release otherwise
+                connection.markReusable();
+                release(connection);
+                continue;
+            }
+            final HttpRoute _route = route;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        open(connection, _route);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                release(connection);
+            }
+        }
+    }
+
+    private void open(ManagedClientConnection connection, HttpRoute route) {
+        try {
+            connection.open(route, new BasicHttpContext(), client.getParams());
+            // completes TLS handshake, which may be otherwise deferred until first write
+            connection.getSSLSession();
+            connection.markReusable();
+        } catch (IOException e) {
+            AsyncHttpClient.log.w(LOG_TAG, "Preconnecting to " + target + " failed", e);
+            try {
+                connection.abortConnection();
+            } catch (IOException e1) {
+                AsyncHttpClient.log.w(LOG_TAG, "Aborting connection failed", e1);
+            }
+        } finally {
+            release(connection);
+        }
+    }
+
+    private void release(ManagedClientConnection connection) {
+        try {
+            connection.releaseConnection();
+        } catch (IOException e) {
+            AsyncHttpClient.log.w(LOG_TAG, "Releasing connection failed", e);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+import cz.msebera.android.httpclient.HttpHost;
+import cz.msebera.android.httpclient.client.protocol.ClientContext;
+import cz.msebera.android.httpclient.conn.DnsResolver;
+import cz.msebera.android.httpclient.conn.HttpHostConnectException;
+import cz.msebera.android.httpclient.conn.HttpInetSocketAddress;
+import cz.msebera.android.httpclient.conn.OperatedClientConnection;
+import cz.msebera.android.httpclient.conn.scheme.LayeredSocketFactory;
+import cz.msebera.android.httpclient.conn.scheme.PlainSocketFactory;
+import cz.msebera.android.httpclient.conn.scheme.Scheme;
+import cz.msebera.android.httpclient.conn.scheme.SchemeRegistry;
+import cz.msebera.android.httpclient.conn.scheme.SocketFactory;
+import cz.msebera.android.httpclient.conn.ssl.SSLSocketFactory;
+import cz.msebera.android.httpclient.impl.conn.DefaultClientConnectionOperator;
+import cz.msebera.android.httpclient.params.HttpParams;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+/**
+ * Connection operator racing TCP connects to addresses of the host (Happy Eyeballs, RFC 8305),
+ * used by {@link PooledConnectionManager}. Instead of trying resolved addresses one by one, each
+ * waiting up to the connect timeout, next address is tried after {@link
+ * #getConnectionAttemptDelay()} if no attempt has succeeded yet, while earlier attempts keep
+ * going. The first connected socket is used, the others are closed. IPv6 and IPv4 addresses are
+ * tried alternately, so single broken address family doesn't stall the connection.
+ * <p>&nbsp;</p>
+ * Attempts run on small pool of daemon threads shared by all clients. Once all of its threads
+ * are busy, attempt runs on the calling thread instead, so addresses are tried one by one
+ * rather than raced, but no more threads are started.
+ * <p>&nbsp;</p>
+ * TLS is layered over the winning socket by socket factory of the scheme, such as {@link
+ * MySSLSocketFactory}, so only one handshake is made. Schemes with other than plain or layered
+ * socket factory are connected the default way.
+ */
+public class RacingConnectionOperator extends DefaultClientConnectionOperator {
+
+    public static final long DEFAULT_CONNECTION_ATTEMPT_DELAY = 250;
+
+    private static final String LOG_TAG = "RacingConnOperator";
+    // bounds threads of attempts in flight across all clients, short-lived as losers are closed
+    private static final int MAX_CONNECT_THREADS = 16;
+    private static final long CONNECT_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static ExecutorService connectExecutor;
+
+    private volatile long connectionAttemptDelay = DEFAULT_CONNECTION_ATTEMPT_DELAY;
+
+    /**
+     * Creates new RacingConnectionOperator
+     *
+     * @param schemeRegistry scheme registry of the connection manager
+     * @param dnsResolver    resolver of host names
+     */
+    public RacingConnectionOperator(SchemeRegistry schemeRegistry, DnsResolver dnsResolver) {
+        super(schemeRegistry, dnsResolver);
+    }
+
+    /**
+     * Returns time after which next address is tried, while previous attempts are still pending
+     *
+     * @return delay in milliseconds, 0 if addresses are tried one by one
+     */
+    public long getConnectionAttemptDelay() {
+        return connectionAttemptDelay;
+    }
+
+    /**
+     * Sets time after which next address is tried, while previous attempts are still pending
+     *
+     * @param connectionAttemptDelay delay in milliseconds, or 0 to try addresses one by one
+     */
+    public void setConnectionAttemptDelay(long connectionAttemptDelay) {
+        this.connectionAttemptDelay = Math.max(0, connectionAttemptDelay);
+    }
+
+    @Override
+    public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local, HttpContext context, HttpParams params) throws IOException {
+        Utils.notNull(conn, "conn");
+        Utils.notNull(target, "target");
+        Utils.notNull(params, "params");
+        Utils.asserts(!conn.isOpen(), "Connection must not be open");
+
+        SchemeRegistry registry = (SchemeRegistry) context.getAttribute(ClientContext.SCHEME_REGISTRY);
+        if (registry == null) {
+            registry = schemeRegistry;
+        }
+        Scheme scheme = registry.getScheme(target.getSchemeName());
+        // the factory scheme was created with, the adaptor of getSchemeSocketFactory() hides it
+        SocketFactory factory = scheme.getSocketFactory();
+        boolean isLayered = factory instanceof LayeredSocketFactory;
+        if (connectionAttemptDelay <= 0 || !(isLayered || factory instanceof PlainSocketFactory)) {
+            super.openConnection(conn, target, local, context, params);
+            return;
+        }
+
+        InetAddress[] addresses = resolveHostname(target.getHostName());
+        int port = scheme.resolvePort(target.getPort());
+        InetSocketAddress localAddress = local == null ? null : new InetSocketAddress(local, 0);
+        Socket socket = race(conn, target, sortAddresses(addresses), port, localAddress, params);
+
+        try {
+            // the winner is closed if the connection gets aborted during TLS handshake
+            conn.opening(socket, target);
+            if (isLayered) {
+                socket = ((LayeredSocketFactory) factory).createSocket(socket, target.getHostName(), port, true);
+                if (factory instanceof SSLSocketFactory && socket instanceof SSLSocket) {
+                    // completes the handshake as well
+                    ((SSLSocketFactory) factory).getHostnameVerifier().verify(target.getHostName(), (SSLSocket) socket);
+                }
+            }
+            conn.opening(socket, target);
+            prepareSocket(socket, context, params);
+            conn.openCompleted(scheme.getSchemeSocketFactory().isSecure(socket), params);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private Socket race(OperatedClientConnection conn, HttpHost target, InetAddress[] addresses, int port, InetSocketAddress localAddress, HttpParams params) throws IOException {
+        if (addresses.length == 1) {
+            // nothing to race with, connect on the calling thread
+            Socket socket = PlainSocketFactory.getSocketFactory().createSocket(params);
+            conn.opening(socket, target);
+            try {
+                return PlainSocketFactory.getSocketFactory().connectSocket(socket, new HttpInetSocketAddress(target, addresses[0], port), localAddress, params);
+            } catch (ConnectException e) {
+                closeQuietly(socket);
+                throw new HttpHostConnectException(target, e);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                throw e;
+            }
+        }
+
+        Race race = new Race(addresses.length);
+        List<Socket> sockets = new ArrayList<Socket>(addresses.length);
+        try {
+            for (int i = 0; i < addresses.length; i++) {
+                Socket socket = PlainSocketFactory.getSocketFactory().createSocket(params);
+                sockets.add(socket);
+                // lets abort of the connection close the latest attempt, and fails once aborted
+                conn.opening(socket, target);
+                race.start(socket, new HttpInetSocketAddress(target, addresses[i], port), localAddress, params);
+                if (race.awaitWinner(i == addresses.length - 1 ? 0 : connectionAttemptDelay)) {
+                    break;
+                }
+            }
+            Socket winner = race.getWinner();
+            if (winner == null) {
+                IOException error = race.getError();
+                if (error instanceof ConnectException) {
+                    throw new HttpHostConnectException(target, (ConnectException) error);
+                }
+                throw error;
+            }
+            sockets.remove(winner);
+            return winner;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Connecting to " + target + " interrupted");
+        } finally {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Orders addresses to alternate between IPv6 and IPv4, starting with family of the first one
+     *
+     * @param addresses addresses in order given by resolver
+     * @return reordered addresses
+     */
+    static InetAddress[] sortAddresses(InetAddress[] addresses) {
+        List<InetAddress> preferred = new ArrayList<InetAddress>();
+        List<InetAddress> other = new ArrayList<InetAddress>();
+        boolean isFirstIPv6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == isFirstIPv6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+        InetAddress[] sorted = new InetAddress[addresses.length];
+        int i = 0, p = 0, o = 0;
+        while (p < preferred.size() || o < other.size()) {
+            if (p < preferred.size()) {
+                sorted[i++] = preferred.get(p++);
+            }
+            if (o < other.size()) {
+                sorted[i++] = other.get(o++);
+            }
+        }
+        return sorted;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignored, socket is discarded anyway
+        }
+    }
+
+    private static synchronized ExecutorService getConnectExecutor() {
+        if (connectExecutor == null) {
+            connectExecutor = new ThreadPoolExecutor(0, MAX_CONNECT_THREADS, CONNECT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AsyncHttpClient-connect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return connectExecutor;
+    }
+
+    /**
+     * Connection attempts to addresses of single host, the first one to connect wins
+     */
+    private static class Race {
+        private final int attempts;
+        private int started;
+        private int failed;
+        private Socket winner;
+        private IOException error;
+
+        Race(int attempts) {
+            this.attempts = attempts;
+        }
+
+        void start(final Socket socket, final InetSocketAddress remoteAddress, final InetSocketAddress localAddress, final HttpParams params) {
+            synchronized (this) {
+                started++;
+            }
+            Runnable attempt = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onConnected(PlainSocketFactory.getSocketFactory().connectSocket(socket, remoteAddress, localAddress, params));
+                    } catch (IOException e) {
+                        onFailed(e);
+                    }
+                }
+            };
+            try {
+                getConnectExecutor().execute(attempt);
+            } catch (RejectedExecutionException e) {
+                // all connect threads busy, this attempt ends before the next one starts
+                AsyncHttpClient.log.d(LOG_TAG, "Connect threads busy, connecting to " + remoteAddress + " on calling thread");
+                attempt.run();
+            }
+        }
+
+        /**
+         * Waits until some attempt connects, all started attempts fail, or the timeout elapses
+         *
+         * @param timeout time to wait in milliseconds, 0 to wait until all started attempts end
+         * @return true if there is nothing more to wait for, because some attempt has connected,
+         * or all attempts have been started and failed
+         */
+        synchronized boolean awaitWinner(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (winner == null && failed < started) {
+                long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                if (timeout != 0 && remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            // failed attempts don't need waiting for next one
+            return winner != null || started == attempts;
+        }
+
+        synchronized Socket getWinner() {
+            return winner;
+        }
+
+        synchronized IOException getError() {
+            return error;
+        }
+
+        private synchronized void onConnected(Socket socket) {
+            if (winner == null) {
+                winner = socket;
+            }
+            notifyAll();
+        }
+
+        private synchronized void onFailed(IOException e) {
+            failed++;
+            error = e;
+            notifyAll();
+        }
+    }
+}
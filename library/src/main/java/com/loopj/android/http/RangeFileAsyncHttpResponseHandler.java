@@ -80,15 +80,18 @@ public abstract class RangeFileAsyncHttpResponseHandler extends FileAsyncHttpRes
             long contentLength = entity.getContentLength() + current;
             FileOutputStream buffer = new FileOutputStream(getTargetFile(), append);
             if (instream != null) {
+                BufferPool pool = obtainBufferPool();
+                byte[] tmp = pool.acquire(BUFFER_SIZE);
                 try {
-                    byte[] tmp = new byte[BUFFER_SIZE];
                     int l;
                     while (current < contentLength && (l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
                         current += l;
                         buffer.write(tmp, 0, l);
                         sendProgressMessage(current, contentLength);
                     }
+                    flushProgressMessage();
                 } finally {
+                    pool.release(tmp);
                     instream.close();
                     buffer.flush();
                     buffer.close();
@@ -0,0 +1,614 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands {@link AsyncHttpRequest}s over to the {@link ExecutorService} of {@link AsyncHttpClient},
+ * keeping at most {@link #getMaxRequests()} of them running at once, and at most {@link
+ * #getMaxRequestsPerHost()} of them running against single host. Requests waiting for a free
+ * slot are queued by their priority (see {@link RequestHandle#setPriority(int)}), and in
+ * submission order among requests of the same priority.
+ * <p>&nbsp;</p>
+ * Requests to a host, which has no free slot, are skipped when starting queued requests, so
+ * requests to other hosts don't have to wait behind them. This way worker threads don't block
+ * inside of the connection manager, waiting for connection to saturated host.
+ * <p>&nbsp;</p>
+ * Queued requests, whose deadline has passed (see {@link RequestHandle#setDeadline(long)}), are
+ * failed with {@link DeadlineExceededException} without taking a slot or opening a connection,
+ * as soon as the deadline passes.
+ * <p>&nbsp;</p>
+ * Number of queued requests can be bounded as well, see {@link #setMaxQueuedRequests(int, int)}.
+ * <p>&nbsp;</p>
+ * As the number of running requests is bounded here, the number of worker threads used by the
+ * executor is bounded as well, even if the executor itself is unbounded (such as the default
+ * cached thread pool). Requests executed by {@link AsyncTransport} hold their slot, but not a
+ * worker thread, while waiting for the response, so with such transport the limits can be set
+ * well above the number of threads.
+ */
+public class RequestDispatcher {
+
+    public static final int DEFAULT_MAX_REQUESTS = 10;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 10;
+
+    /**
+     * Requests over limit of queued requests fail with {@link RejectedExecutionException}
+     */
+    public static final int REJECT_POLICY_FAIL = 0;
+    /**
+     * Requests over limit of queued requests make the oldest queued request of the lowest
+     * priority fail with {@link RejectedExecutionException}, unless they are of even lower priority
+     * themselves
+     */
+    public static final int REJECT_POLICY_DROP_LOWEST_PRIORITY = 1;
+    /**
+     * Requests over limit of queued requests block the calling thread, until there is room in
+     * the queue, must not be used if requests are sent from the main thread
+     */
+    public static final int REJECT_POLICY_BLOCK = 2;
+
+    private static final String LOG_TAG = "RequestDispatcher";
+
+    private final TreeSet<AsyncHttpRequest> readyRequests = new TreeSet<AsyncHttpRequest>(new PriorityComparator());
+    private final Set<AsyncHttpRequest> runningRequests = new HashSet<AsyncHttpRequest>();
+    private final Map<String, Integer> runningRequestsPerHost = new HashMap<String, Integer>();
+    // queued requests having deadline, soonest first
+    private final TreeSet<AsyncHttpRequest> expiringRequests = new TreeSet<AsyncHttpRequest>(new DeadlineComparator());
+    private TimerTask expiryTask;
+    private long expiryTaskDeadline;
+    private ExecutorService executorService;
+    private int maxRequests;
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private long nextSequence;
+    private int maxQueuedRequests = Integer.MAX_VALUE;
+    private int rejectPolicy = REJECT_POLICY_FAIL;
+    private long rejectedRequestsCount;
+
+    /**
+     * Creates new RequestDispatcher
+     *
+     * @param executorService executor running the requests, must not be null
+     * @param maxRequests     maximum number of requests running at once, must be at least 1
+     */
+    public RequestDispatcher(ExecutorService executorService, int maxRequests) {
+        this.executorService = Utils.notNull(executorService, "executorService");
+        this.maxRequests = maxRequests < 1 ? DEFAULT_MAX_REQUESTS : maxRequests;
+    }
+
+    /**
+     * Returns executor, which is used to run the dispatched requests
+     *
+     * @return current executor service
+     */
+    public synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Sets executor, which will be used to run requests dispatched from now on
+     *
+     * @param executorService executor service, must not be null
+     */
+    public synchronized void setExecutorService(ExecutorService executorService) {
+        this.executorService = Utils.notNull(executorService, "executorService");
+    }
+
+    /**
+     * Returns maximum number of requests running at once
+     *
+     * @return maximum number of running requests, default is 10
+     */
+    public synchronized int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Sets maximum number of requests running at once. If raised, queued requests are started
+     * immediately, if lowered, running requests are allowed to complete.
+     *
+     * @param maxRequests maximum number of running requests, must be at least 1
+     */
+    public synchronized void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests < 1 ? DEFAULT_MAX_REQUESTS : maxRequests;
+        promoteRequests();
+    }
+
+    /**
+     * Returns maximum number of requests running at once against single host
+     *
+     * @return maximum number of running requests per host, default is 10
+     */
+    public synchronized int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * Sets maximum number of requests running at once against single host (scheme, host name
+     * and port of the request URI). Should not be greater than maximum number of connections per
+     * route of the connection manager, otherwise the requests over limit will block waiting for a
+     * connection.
+     *
+     * @param maxRequestsPerHost maximum number of running requests per host, must be at least 1
+     */
+    public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost < 1 ? DEFAULT_MAX_REQUESTS_PER_HOST : maxRequestsPerHost;
+        promoteRequests();
+    }
+
+    /**
+     * Returns maximum number of requests waiting for a free slot
+     *
+     * @return maximum number of queued requests, unbounded by default
+     */
+    public synchronized int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    /**
+     * Returns policy applied to requests submitted while the queue is full
+     *
+     * @return one of {@link #REJECT_POLICY_FAIL}, {@link #REJECT_POLICY_DROP_LOWEST_PRIORITY} or
+     * {@link #REJECT_POLICY_BLOCK}
+     */
+    public synchronized int getRejectPolicy() {
+        return rejectPolicy;
+    }
+
+    /**
+     * Limits number of requests waiting for a free slot, each of which holds its entity and
+     * response handler. Requests already queued over new limit are kept.
+     *
+     * @param maxQueuedRequests maximum number of queued requests, or 0 for unbounded queue
+     * @param rejectPolicy      one of {@link #REJECT_POLICY_FAIL}, {@link
+     *                          #REJECT_POLICY_DROP_LOWEST_PRIORITY} or {@link #REJECT_POLICY_BLOCK}
+     */
+    public synchronized void setMaxQueuedRequests(int maxQueuedRequests, int rejectPolicy) {
+        Utils.asserts(rejectPolicy >= REJECT_POLICY_FAIL && rejectPolicy <= REJECT_POLICY_BLOCK, "Unknown reject policy");
+        this.maxQueuedRequests = maxQueuedRequests < 1 ? Integer.MAX_VALUE : maxQueuedRequests;
+        this.rejectPolicy = rejectPolicy;
+        // blocked callers may fit now
+        notifyAll();
+    }
+
+    /**
+     * Returns number of requests failed, since the queue was full when they (or requests of
+     * higher priority) were submitted
+     *
+     * @return number of rejected requests
+     */
+    public synchronized long getRejectedRequestsCount() {
+        return rejectedRequestsCount;
+    }
+
+    /**
+     * Returns limiter adjusting number of requests running against single host
+     *
+     * @return current limiter, or null if the limit of each host is fixed
+     */
+    public synchronized AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Sets limiter, which adjusts number of requests running against each host according to
+     * observed round-trip times and errors, up to {@link #getMaxRequestsPerHost()}
+     *
+     * @param concurrencyLimiter limiter to be used, or null to use fixed limit for every host
+     */
+    public synchronized void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+        promoteRequests();
+    }
+
+    /**
+     * Returns maximum number of requests running at once against given host, which may differ
+     * from {@link #getMaxRequestsPerHost()} if concurrency limiter is set
+     *
+     * @param host host, in form of scheme://hostname:port, as in {@link AsyncHttpRequest#getHostKey()}
+     * @return maximum number of running requests for the host
+     */
+    public synchronized int getMaxRequestsPerHost(String host) {
+        if (concurrencyLimiter == null) {
+            return maxRequestsPerHost;
+        }
+        return Math.min(maxRequestsPerHost, concurrencyLimiter.getLimit(host));
+    }
+
+    /**
+     * Returns number of requests currently running against given host
+     *
+     * @param host host, in form of scheme://hostname:port, as in {@link AsyncHttpRequest#getHostKey()}
+     * @return number of running requests for the host
+     */
+    public synchronized int getRunningRequestsCount(String host) {
+        Integer count = runningRequestsPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns number of requests waiting for a free slot
+     *
+     * @return number of queued requests
+     */
+    public synchronized int getQueuedRequestsCount() {
+        return readyRequests.size();
+    }
+
+    /**
+     * Returns number of requests currently handed over to executor
+     *
+     * @return number of running requests
+     */
+    public synchronized int getRunningRequestsCount() {
+        return runningRequests.size();
+    }
+
+    /**
+     * Queues the request and starts it, as soon as there is a free slot for it. If the queue is
+     * full, the request or another queued request is rejected, or the calling thread is blocked,
+     * see {@link #setMaxQueuedRequests(int, int)}.
+     *
+     * @param request request to be run, must not be null
+     */
+    public void enqueue(AsyncHttpRequest request) {
+        Utils.notNull(request, "request");
+        List<AsyncHttpRequest> rejected = new ArrayList<AsyncHttpRequest>();
+        synchronized (this) {
+            add(request, rejected);
+            promoteRequests();
+        }
+        reject(rejected);
+    }
+
+    /**
+     * Queues the requests next to each other, so they are started together and not interleaved
+     * with other requests of the same priority. Limit of queued requests applies to each of
+     * them, as in {@link #enqueue(AsyncHttpRequest)}.
+     *
+     * @param requests requests to be run, must not be null
+     */
+    public void enqueueAll(List<AsyncHttpRequest> requests) {
+        Utils.notNull(requests, "requests");
+        List<AsyncHttpRequest> rejected = new ArrayList<AsyncHttpRequest>();
+        synchronized (this) {
+            for (AsyncHttpRequest request : requests) {
+                add(Utils.notNull(request, "request"), rejected);
+            }
+            promoteRequests();
+        }
+        reject(rejected);
+    }
+
+    private void add(AsyncHttpRequest request, List<AsyncHttpRequest> rejected) {
+        request.setDispatcher(this, nextSequence++);
+        // slots might be free, in which case the request doesn't stay queued
+        promoteRequests();
+        while (readyRequests.size() >= maxQueuedRequests) {
+            if (rejectPolicy == REJECT_POLICY_BLOCK) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected.add(request);
+                    return;
+                }
+            } else if (rejectPolicy == REJECT_POLICY_DROP_LOWEST_PRIORITY && readyRequests.last().priority <= request.priority) {
+                rejected.add(removeOldestOfLowestPriority());
+            } else {
+                rejected.add(request);
+                return;
+            }
+        }
+        addQueued(request);
+    }
+
+    private void addQueued(AsyncHttpRequest request) {
+        readyRequests.add(request);
+        if (request.deadline > 0) {
+            expiringRequests.add(request);
+        }
+    }
+
+    private boolean removeQueuedEntry(AsyncHttpRequest request) {
+        expiringRequests.remove(request);
+        return readyRequests.remove(request);
+    }
+
+    private AsyncHttpRequest removeOldestOfLowestPriority() {
+        int lowestPriority = readyRequests.last().priority;
+        Iterator<AsyncHttpRequest> iterator = readyRequests.iterator();
+        while (iterator.hasNext()) {
+            AsyncHttpRequest request = iterator.next();
+            if (request.priority == lowestPriority) {
+                iterator.remove();
+                expiringRequests.remove(request);
+                return request;
+            }
+        }
+        throw new IllegalStateException("Request of the lowest priority not found");
+    }
+
+    private void reject(List<AsyncHttpRequest> rejected) {
+        if (rejected.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            rejectedRequestsCount += rejected.size();
+        }
+        AsyncHttpClient.log.w(LOG_TAG, "Queue is full, rejecting " + rejected.size() + " request(s)");
+        for (AsyncHttpRequest request : rejected) {
+            request.failUnsent(new RejectedExecutionException("Too many queued requests"));
+            request.onCompleted();
+        }
+    }
+
+    /**
+     * Changes priority of the request, moving it within the queue if it is still waiting
+     *
+     * @param request  request to be changed
+     * @param priority new priority of the request
+     */
+    synchronized void reprioritize(AsyncHttpRequest request, int priority) {
+        // ordering of the set depends on priority, so the request has to be re-inserted
+        boolean queued = readyRequests.remove(request);
+        request.priority = priority;
+        if (queued) {
+            readyRequests.add(request);
+            promoteRequests();
+        }
+    }
+
+    /**
+     * Changes deadline of the request, moving it among expiring requests if it is still waiting
+     *
+     * @param request  request to be changed
+     * @param deadline new deadline of the request, or 0 for none
+     */
+    synchronized void changeDeadline(AsyncHttpRequest request, long deadline) {
+        // ordering of the set depends on deadline, so the request has to be re-inserted
+        boolean expiring = expiringRequests.remove(request);
+        request.deadline = deadline;
+        if ((expiring || readyRequests.contains(request)) && deadline > 0) {
+            expiringRequests.add(request);
+        }
+        if (expiring || deadline > 0) {
+            promoteRequests();
+        }
+    }
+
+    /**
+     * Reports result of single attempt to execute the request, to be used by concurrency limiter
+     *
+     * @param request      request, which made the attempt
+     * @param rttMillis    time from sending the request to receiving the response headers
+     * @param isSuccessful false if the attempt failed in a way indicating overload of the host
+     */
+    synchronized void onAttempt(AsyncHttpRequest request, long rttMillis, boolean isSuccessful) {
+        if (concurrencyLimiter != null) {
+            String host = request.getHostKey();
+            concurrencyLimiter.onAttempt(host, rttMillis, getRunningRequestsCount(host), isSuccessful);
+            promoteRequests();
+        }
+    }
+
+    /**
+     * Removes cancelled request from the queue, so it doesn't wait for a free slot just to be
+     * skipped
+     *
+     * @param request cancelled request
+     */
+    void removeQueued(AsyncHttpRequest request) {
+        boolean removed;
+        synchronized (this) {
+            removed = removeQueuedEntry(request);
+            if (removed) {
+                notifyAll();
+            }
+        }
+        if (removed) {
+            request.onCompleted();
+        }
+    }
+
+    private synchronized void finished(AsyncHttpRequest request) {
+        removeRunning(request);
+        promoteRequests();
+    }
+
+    private void addRunning(AsyncHttpRequest request) {
+        runningRequests.add(request);
+        String host = request.getHostKey();
+        Integer count = runningRequestsPerHost.get(host);
+        runningRequestsPerHost.put(host, count == null ? 1 : count + 1);
+    }
+
+    private void removeRunning(AsyncHttpRequest request) {
+        if (runningRequests.remove(request)) {
+            String host = request.getHostKey();
+            Integer count = runningRequestsPerHost.get(host);
+            if (count == null || count <= 1) {
+                runningRequestsPerHost.remove(host);
+            } else {
+                runningRequestsPerHost.put(host, count - 1);
+            }
+        }
+    }
+
+    private void promoteRequests() {
+        int queuedCount = readyRequests.size();
+        try {
+            expireQueuedRequests();
+            promoteQueuedRequests();
+        } finally {
+            if (readyRequests.size() < queuedCount) {
+                // wake up callers blocked on full queue
+                notifyAll();
+            }
+            scheduleExpiry();
+        }
+    }
+
+    private void expireQueuedRequests() {
+        long now = System.currentTimeMillis();
+        while (!expiringRequests.isEmpty() && expiringRequests.first().deadline <= now) {
+            AsyncHttpRequest request = expiringRequests.first();
+            expiringRequests.remove(request);
+            readyRequests.remove(request);
+            // doesn't need a slot, as it fails without being sent
+            failExpired(request);
+        }
+    }
+
+    /**
+     * Makes sure queued requests are expired at the soonest deadline, even if no request is
+     * enqueued or finished in the meantime
+     */
+    private void scheduleExpiry() {
+        long deadline = expiringRequests.isEmpty() ? 0 : expiringRequests.first().deadline;
+        if (expiryTask != null && expiryTaskDeadline == deadline) {
+            return;
+        }
+        if (expiryTask != null) {
+            expiryTask.cancel();
+            expiryTask = null;
+        }
+        if (deadline > 0) {
+            expiryTaskDeadline = deadline;
+            expiryTask = new TimerTask() {
+                @Override
+                public void run() {
+                    // the timer thread is shared by all clients, and dies with any exception thrown
+                    try {
+                        synchronized (RequestDispatcher.this) {
+                            if (expiryTask == this) {
+                                expiryTask = null;
+                                promoteRequests();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        AsyncHttpClient.log.e(LOG_TAG, "Failed to expire queued requests", e);
+                    }
+                }
+            };
+            RequestGroup.getDeadlineTimer().schedule(expiryTask, Math.max(0, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    private void promoteQueuedRequests() {
+        Iterator<AsyncHttpRequest> iterator = readyRequests.iterator();
+        while (iterator.hasNext() && runningRequests.size() < maxRequests) {
+            final AsyncHttpRequest request = iterator.next();
+            if (request.isCancelRequested()) {
+                // cancelled while queued, the response handler has been notified already
+                iterator.remove();
+                expiringRequests.remove(request);
+                request.onCompleted();
+                continue;
+            }
+            if (getRunningRequestsCount(request.getHostKey()) >= getMaxRequestsPerHost(request.getHostKey())) {
+                // host is saturated, let requests to other hosts go first
+                continue;
+            }
+            iterator.remove();
+            expiringRequests.remove(request);
+            addRunning(request);
+            final ExecutorService executor = executorService;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // request run by AsyncTransport finishes later, on another thread
+                        request.run(executor, new Runnable() {
+                            @Override
+                            public void run() {
+                                finished(request);
+                                request.onCompleted();
+                            }
+                        });
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                AsyncHttpClient.log.e(LOG_TAG, "Executor rejected request", e);
+                removeRunning(request);
+                request.cancel(true);
+                request.onCompleted();
+            }
+        }
+    }
+
+    private void failExpired(final AsyncHttpRequest request) {
+        try {
+            // response handler is notified by the request itself, not under lock of the dispatcher
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        request.run();
+                    } finally {
+                        request.onCompleted();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            AsyncHttpClient.log.e(LOG_TAG, "Executor rejected expired request", e);
+            request.cancel(true);
+            request.onCompleted();
+        }
+    }
+
+    /**
+     * Orders requests by ascending deadline and submission order
+     */
+    private static class DeadlineComparator implements Comparator<AsyncHttpRequest> {
+        @Override
+        public int compare(AsyncHttpRequest lhs, AsyncHttpRequest rhs) {
+            if (lhs.deadline != rhs.deadline) {
+                return lhs.deadline < rhs.deadline ? -1 : 1;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Orders requests by descending priority and ascending submission order
+     */
+    private static class PriorityComparator implements Comparator<AsyncHttpRequest> {
+        @Override
+        public int compare(AsyncHttpRequest lhs, AsyncHttpRequest rhs) {
+            if (lhs.priority != rhs.priority) {
+                return lhs.priority > rhs.priority ? -1 : 1;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    }
+}
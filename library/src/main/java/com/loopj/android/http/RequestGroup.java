@@ -0,0 +1,531 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.StatusLine;
+import cz.msebera.android.httpclient.client.HttpResponseException;
+import cz.msebera.android.httpclient.client.methods.HttpUriRequest;
+
+/**
+ * Set of related requests, which are sent together, share single deadline and cancellation scope,
+ * and report their completion by single callback. Members are queued in {@link
+ * RequestDispatcher} as a unit, so unrelated requests of the same priority are not interleaved
+ * with them. <p>&nbsp;</p> For example: <p>&nbsp;</p>
+ * <pre>
+ * RequestGroup group = new RequestGroup(new RequestGroup.Listener() {
+ *     &#064;Override
+ *     public void onFinish(RequestGroup group, List&lt;RequestGroup.Result&gt; results) {
+ *         // All members finished, failed, got cancelled or timed out
+ *     }
+ * });
+ * group.setTimeout(5000);
+ * group.add("https://example.com/profile", null, profileHandler);
+ * group.add("https://example.com/feed", null, feedHandler);
+ * client.sendRequestGroup(context, group);
+ * </pre>
+ * Each member response handler receives its callbacks as usual, the group listener is notified on
+ * the looper of the thread, which created the group, or on the pool thread, if there's none.
+ */
+public class RequestGroup {
+
+    private static final String LOG_TAG = "RequestGroup";
+    private static Timer deadlineTimer;
+
+    private final List<Member> members = new ArrayList<Member>();
+    private final Listener listener;
+    private final Handler handler;
+    private List<AsyncHttpRequest> requests;
+    private TimerTask deadlineTask;
+    private long timeoutMillis;
+    private int priority = RequestHandle.PRIORITY_NORMAL;
+    private int pendingCount;
+    private boolean isSubmitted;
+    private boolean isTimedOut;
+
+    /**
+     * Creates new RequestGroup
+     *
+     * @param listener listener notified once all members are done, can be null
+     */
+    public RequestGroup(Listener listener) {
+        this.listener = listener;
+        Looper looper = Looper.myLooper();
+        this.handler = looper == null ? null : new Handler(looper);
+    }
+
+    /**
+     * Adds GET request to the group
+     *
+     * @param url             the URL to send the request to
+     * @param params          additional GET parameters to send with the request, can be null
+     * @param responseHandler the response handler instance that should handle the response
+     * @return this RequestGroup to allow fluid syntax
+     */
+    public RequestGroup add(String url, RequestParams params, ResponseHandlerInterface responseHandler) {
+        addMember(new Member(this, null, url, params, responseHandler));
+        return this;
+    }
+
+    /**
+     * Adds request to the group
+     *
+     * @param uriRequest      request to send, such as {@link HttpGet} or {@link
+     *                        cz.msebera.android.httpclient.client.methods.HttpPost}
+     * @param responseHandler the response handler instance that should handle the response
+     * @return this RequestGroup to allow fluid syntax
+     */
+    public RequestGroup add(HttpUriRequest uriRequest, ResponseHandlerInterface responseHandler) {
+        addMember(new Member(this, Utils.notNull(uriRequest, "uriRequest"), null, null, responseHandler));
+        return this;
+    }
+
+    private synchronized void addMember(Member member) {
+        Utils.asserts(!isSubmitted, "Cannot add requests to already submitted RequestGroup");
+        Utils.notNull(member.responseHandler, "responseHandler");
+        members.add(member);
+    }
+
+    /**
+     * Sets deadline shared by all members, counted from submitting the group. Members not done
+     * by then are cancelled, and reported as timed out.
+     *
+     * @param timeoutMillis timeout in milliseconds, 0 for no deadline
+     * @return this RequestGroup to allow fluid syntax
+     */
+    public synchronized RequestGroup setTimeout(long timeoutMillis) {
+        Utils.asserts(!isSubmitted, "Cannot change timeout of already submitted RequestGroup");
+        this.timeoutMillis = Math.max(0, timeoutMillis);
+        return this;
+    }
+
+    public synchronized long getTimeout() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Sets priority of all members, see {@link RequestHandle#setPriority(int)}
+     *
+     * @param priority priority of the members
+     * @return this RequestGroup to allow fluid syntax
+     */
+    public synchronized RequestGroup setPriority(int priority) {
+        this.priority = priority;
+        if (requests != null) {
+            for (AsyncHttpRequest request : requests) {
+                request.setPriority(priority);
+            }
+        }
+        return this;
+    }
+
+    public synchronized int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns number of members, which are not done yet
+     *
+     * @return number of pending members
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    public synchronized boolean isFinished() {
+        return isSubmitted && pendingCount == 0;
+    }
+
+    /**
+     * Cancels all members, which are not done yet, in one pass
+     *
+     * @param mayInterruptIfRunning specifies if active requests should be cancelled along with
+     *                              pending requests.
+     */
+    public void cancel(final boolean mayInterruptIfRunning) {
+        final List<AsyncHttpRequest> toCancel;
+        synchronized (this) {
+            if (requests == null) {
+                return;
+            }
+            toCancel = new ArrayList<AsyncHttpRequest>(requests);
+        }
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            // aborting connections may block, so leave it to the cancellation service
+            CancellationService.getInstance().cancelAll(toCancel);
+        } else {
+            for (AsyncHttpRequest request : toCancel) {
+                request.cancel(mayInterruptIfRunning);
+            }
+        }
+    }
+
+    /**
+     * Returns members of this group, each wrapping response handler of the member
+     *
+     * @return members in order of addition
+     */
+    synchronized List<Member> getMembers() {
+        return new ArrayList<Member>(members);
+    }
+
+    /**
+     * Marks the group as submitted and starts counting down its deadline
+     *
+     * @param requests requests of the members, in order of addition
+     */
+    void onSubmit(List<AsyncHttpRequest> requests) {
+        synchronized (this) {
+            Utils.asserts(!isSubmitted, "RequestGroup can be submitted only once");
+            isSubmitted = true;
+            this.requests = requests;
+            pendingCount = members.size();
+            long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+            for (AsyncHttpRequest request : requests) {
+                request.setPriority(priority);
+                // lets the dispatcher drop members still queued at the deadline
+                request.setDeadline(deadline);
+            }
+            if (timeoutMillis > 0 && pendingCount > 0) {
+                deadlineTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        // the timer thread is shared by all clients, and dies with any exception thrown
+                        try {
+                            onDeadline();
+                        } catch (RuntimeException e) {
+                            AsyncHttpClient.log.e(LOG_TAG, "Failed to cancel requests of group past its deadline", e);
+                        }
+                    }
+                };
+                getDeadlineTimer().schedule(deadlineTask, timeoutMillis);
+            }
+        }
+        if (members.isEmpty()) {
+            notifyFinished();
+        }
+    }
+
+    private void onDeadline() {
+        synchronized (this) {
+            if (pendingCount == 0) {
+                return;
+            }
+            isTimedOut = true;
+        }
+        AsyncHttpClient.log.d(LOG_TAG, "Deadline of request group expired, cancelling pending members");
+        cancel(true);
+    }
+
+    private void onMemberDone(Member member, int state) {
+        synchronized (this) {
+            if (member.state != Result.PENDING) {
+                return;
+            }
+            member.state = (state == Result.CANCELLED && isTimedOut) ? Result.TIMED_OUT : state;
+            if (--pendingCount > 0) {
+                return;
+            }
+            if (deadlineTask != null) {
+                deadlineTask.cancel();
+            }
+        }
+        notifyFinished();
+    }
+
+    private void notifyFinished() {
+        if (listener == null) {
+            return;
+        }
+
+        final List<Result> results = new ArrayList<Result>();
+        synchronized (this) {
+            for (Member member : members) {
+                results.add(new Result(member));
+            }
+        }
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                listener.onFinish(RequestGroup.this, Collections.unmodifiableList(results));
+            }
+        };
+        if (handler != null) {
+            handler.post(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    static synchronized Timer getDeadlineTimer() {
+        if (deadlineTimer == null) {
+            deadlineTimer = new Timer("AsyncHttpClient-deadlines", true);
+        }
+        return deadlineTimer;
+    }
+
+    /**
+     * Listener notified, once all members of the group are done
+     */
+    public interface Listener {
+        /**
+         * Fired when every member succeeded, failed, got cancelled or timed out
+         *
+         * @param group   the finished group
+         * @param results results of the members, in order of addition to the group
+         */
+        void onFinish(RequestGroup group, List<Result> results);
+    }
+
+    /**
+     * Outcome of single member of the group
+     */
+    public static class Result {
+        public static final int PENDING = 0;
+        public static final int SUCCESS = 1;
+        public static final int FAILURE = 2;
+        public static final int CANCELLED = 3;
+        public static final int TIMED_OUT = 4;
+
+        private final ResponseHandlerInterface responseHandler;
+        private final int state;
+        private final int statusCode;
+        private final Throwable error;
+
+        Result(Member member) {
+            this.responseHandler = member.responseHandler;
+            this.state = member.state;
+            this.statusCode = member.statusCode;
+            this.error = member.error;
+        }
+
+        /**
+         * @return response handler the member was added with
+         */
+        public ResponseHandlerInterface getResponseHandler() {
+            return responseHandler;
+        }
+
+        /**
+         * @return one of {@link #SUCCESS}, {@link #FAILURE}, {@link #CANCELLED} or {@link #TIMED_OUT}
+         */
+        public int getState() {
+            return state;
+        }
+
+        public boolean isSuccess() {
+            return state == SUCCESS;
+        }
+
+        /**
+         * @return HTTP status code of the response, 0 if there was none
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return cause of failure, {@link HttpResponseException} if the member failed with error
+         * status, null if it succeeded
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Response handler of single member, which delegates all calls to response handler of the
+     * member while recording its outcome
+     */
+    static class Member implements ResponseHandlerInterface {
+        /**
+         * Returns response handler behind the member wrapper, if any
+         *
+         * @param responseHandler response handler of a request
+         * @return handler of the member, or the handler itself if it is not a member of group
+         */
+        static ResponseHandlerInterface unwrap(ResponseHandlerInterface responseHandler) {
+            return responseHandler instanceof Member ? ((Member) responseHandler).getResponseHandler() : responseHandler;
+        }
+
+
+        final HttpUriRequest uriRequest;
+        final String url;
+        final RequestParams params;
+        private final RequestGroup group;
+        private final ResponseHandlerInterface responseHandler;
+        // guarded by the group
+        private int state = Result.PENDING;
+        private volatile int statusCode;
+        private volatile Throwable error;
+
+        Member(RequestGroup group, HttpUriRequest uriRequest, String url, RequestParams params, ResponseHandlerInterface responseHandler) {
+            this.group = group;
+            this.uriRequest = uriRequest;
+            this.url = url;
+            this.params = params;
+            this.responseHandler = responseHandler;
+        }
+
+        ResponseHandlerInterface getResponseHandler() {
+            return responseHandler;
+        }
+
+        @Override
+        public void sendResponseMessage(HttpResponse response) throws IOException {
+            sendResponseMessage(response, null);
+        }
+
+        /**
+         * Passes the response to the member's handler, along with the request to handlers
+         * streaming the body, so they can still stop it
+         *
+         * @param response response to the request
+         * @param request  request of the member, can be null
+         */
+        void sendResponseMessage(HttpResponse response, AsyncHttpRequest request) throws IOException {
+            StatusLine status = response.getStatusLine();
+            statusCode = status.getStatusCode();
+            // handler reports failure of error status through itself, not through this wrapper
+            error = statusCode >= 300 ? new HttpResponseException(statusCode, status.getReasonPhrase()) : null;
+            if (responseHandler instanceof StreamingResponseHandler) {
+                ((StreamingResponseHandler) responseHandler).sendResponseMessage(response, request);
+            } else {
+                responseHandler.sendResponseMessage(response);
+            }
+        }
+
+        @Override
+        public void sendStartMessage() {
+            responseHandler.sendStartMessage();
+        }
+
+        @Override
+        public void sendFinishMessage() {
+            responseHandler.sendFinishMessage();
+            if (error instanceof DeadlineExceededException) {
+                group.onMemberDone(this, Result.TIMED_OUT);
+            } else {
+                group.onMemberDone(this, error == null && statusCode > 0 && statusCode < 300 ? Result.SUCCESS : Result.FAILURE);
+            }
+        }
+
+        @Override
+        public void sendProgressMessage(long bytesWritten, long bytesTotal) {
+            responseHandler.sendProgressMessage(bytesWritten, bytesTotal);
+        }
+
+        @Override
+        public void sendCancelMessage() {
+            responseHandler.sendCancelMessage();
+            group.onMemberDone(this, Result.CANCELLED);
+        }
+
+        @Override
+        public void sendSuccessMessage(int statusCode, Header[] headers, byte[] responseBody) {
+            this.statusCode = statusCode;
+            responseHandler.sendSuccessMessage(statusCode, headers, responseBody);
+        }
+
+        @Override
+        public void sendFailureMessage(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+            this.statusCode = statusCode;
+            this.error = error;
+            responseHandler.sendFailureMessage(statusCode, headers, responseBody, error);
+        }
+
+        @Override
+        public void sendRetryMessage(int retryNo) {
+            responseHandler.sendRetryMessage(retryNo);
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return responseHandler.getRequestURI();
+        }
+
+        @Override
+        public void setRequestURI(URI requestURI) {
+            responseHandler.setRequestURI(requestURI);
+        }
+
+        @Override
+        public Header[] getRequestHeaders() {
+            return responseHandler.getRequestHeaders();
+        }
+
+        @Override
+        public void setRequestHeaders(Header[] requestHeaders) {
+            responseHandler.setRequestHeaders(requestHeaders);
+        }
+
+        @Override
+        public boolean getUseSynchronousMode() {
+            return responseHandler.getUseSynchronousMode();
+        }
+
+        @Override
+        public void setUseSynchronousMode(boolean useSynchronousMode) {
+            responseHandler.setUseSynchronousMode(useSynchronousMode);
+        }
+
+        @Override
+        public boolean getUsePoolThread() {
+            return responseHandler.getUsePoolThread();
+        }
+
+        @Override
+        public void setUsePoolThread(boolean usePoolThread) {
+            responseHandler.setUsePoolThread(usePoolThread);
+        }
+
+        @Override
+        public void onPreProcessResponse(ResponseHandlerInterface instance, HttpResponse response) {
+            responseHandler.onPreProcessResponse(responseHandler, response);
+        }
+
+        @Override
+        public void onPostProcessResponse(ResponseHandlerInterface instance, HttpResponse response) {
+            responseHandler.onPostProcessResponse(responseHandler, response);
+        }
+
+        @Override
+        public Object getTag() {
+            return responseHandler.getTag();
+        }
+
+        @Override
+        public void setTag(Object TAG) {
+            responseHandler.setTag(TAG);
+        }
+    }
+}
@@ -18,6 +18,7 @@
 
 package com.loopj.android.http;
 
+import android.content.Context;
 import android.os.Looper;
 
 import java.lang.ref.WeakReference;
@@ -26,7 +27,25 @@ import java.lang.ref.WeakReference;
  * A Handle to an AsyncRequest which can be used to cancel a running request.
  */
 public class RequestHandle {
+    /**
+     * Priority of requests blocking user interaction, such as foreground API calls
+     */
+    public static final int PRIORITY_INTERACTIVE = 10;
+    /**
+     * Default priority of requests
+     */
+    public static final int PRIORITY_NORMAL = 5;
+    /**
+     * Priority of background transfers, such as prefetching or bulk downloads
+     */
+    public static final int PRIORITY_BULK = 0;
+
     private final WeakReference<AsyncHttpRequest> request;
+    // guarded by the registry tracking this handle, see RequestRegistry
+    RequestRegistry registry;
+    boolean isRegistered;
+    WeakReference<Context> registeredContext;
+    Object registeredTag;
 
     public RequestHandle(AsyncHttpRequest request) {
         this.request = new WeakReference<AsyncHttpRequest>(request);
@@ -52,15 +71,8 @@ public class RequestHandle {
         final AsyncHttpRequest _request = request.get();
         if (_request != null) {
             if (Looper.myLooper() == Looper.getMainLooper()) {
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        _request.cancel(mayInterruptIfRunning);
-                    }
-                }).start();
-                // Cannot reliably tell if the request got immediately canceled at this point
-                // we'll assume it got cancelled
-                return true;
+                // aborting connection may block, so leave it to the cancellation service
+                return CancellationService.getInstance().cancel(_request);
             } else {
                 return _request.cancel(mayInterruptIfRunning);
             }
@@ -116,6 +128,89 @@ public class RequestHandle {
         AsyncHttpRequest _request = request.get();
         if (_request != null)
             _request.setRequestTag(tag);
+        notifyTagChanged();
+        return this;
+    }
+
+    /**
+     * Updates index of the registry tracking this handle, after TAG has been changed
+     */
+    void notifyTagChanged() {
+        RequestRegistry _registry = registry;
+        if (_registry != null)
+            _registry.onTagChanged(this);
+    }
+
+    /**
+     * Stops tracking this handle by the registry, i.e. when it's cancelled before its request
+     * completes
+     */
+    void unregister() {
+        RequestRegistry _registry = registry;
+        if (_registry != null)
+            _registry.unregister(this);
+    }
+
+    /**
+     * Will return deadline of underlying AsyncHttpRequest if it's not already GCed
+     *
+     * @return deadline in milliseconds since epoch, or 0 if there is none
+     */
+    public long getDeadline() {
+        AsyncHttpRequest _request = request.get();
+        return _request == null ? 0 : _request.getDeadline();
+    }
+
+    /**
+     * Will set deadline of underlying AsyncHttpRequest. Once the deadline passes, the request is
+     * not started anymore, instead it fails with {@link DeadlineExceededException}, and if it's
+     * already running, it's not retried anymore.
+     *
+     * @param deadline deadline in milliseconds since epoch, as in {@link System#currentTimeMillis()},
+     *                 or 0 to remove the deadline
+     * @return this RequestHandle to allow fluid syntax
+     */
+    public RequestHandle setDeadline(long deadline) {
+        AsyncHttpRequest _request = request.get();
+        if (_request != null)
+            _request.setDeadline(deadline);
+        return this;
+    }
+
+    /**
+     * Will set deadline of underlying AsyncHttpRequest relative to now, see {@link
+     * #setDeadline(long)}
+     *
+     * @param timeoutMillis time from now in milliseconds, or 0 to remove the deadline
+     * @return this RequestHandle to allow fluid syntax
+     */
+    public RequestHandle setTimeout(long timeoutMillis) {
+        return setDeadline(timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0);
+    }
+
+    /**
+     * Will return priority of underlying AsyncHttpRequest if it's not already GCed
+     *
+     * @return priority of the request, {@link #PRIORITY_NORMAL} if not available
+     */
+    public int getPriority() {
+        AsyncHttpRequest _request = request.get();
+        return _request == null ? PRIORITY_NORMAL : _request.getPriority();
+    }
+
+    /**
+     * Will set priority of underlying AsyncHttpRequest. If the request is still queued, waiting
+     * for free slot in {@link RequestDispatcher}, it will be moved ahead of (or behind) requests
+     * of lower (or higher) priority. Request is queued with priority of its handler, see {@link
+     * AsyncHttpResponseHandler#setPriority(int)}, until changed here.
+     *
+     * @param priority priority, such as {@link #PRIORITY_INTERACTIVE} or {@link #PRIORITY_BULK}
+     * @return this RequestHandle to allow fluid syntax
+     */
+    public RequestHandle setPriority(int priority) {
+        AsyncHttpRequest _request = request.get();
+        if (_request != null)
+            _request.setPriority(priority);
         return this;
     }
-}
\ No newline at end of file
+}
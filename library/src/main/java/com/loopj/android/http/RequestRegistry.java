@@ -0,0 +1,173 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import android.content.Context;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of unfinished requests of {@link AsyncHttpClient}, indexed by the Context, which
+ * initiated them, and by their TAG. Handles are removed as soon as their request completes or is
+ * cancelled, so registering, unregistering and looking up handles of single Context or TAG
+ * doesn't depend on total number of tracked requests.
+ * <p>&nbsp;</p>
+ * Contexts are referenced weakly, TAGs are referenced only while their request is unfinished.
+ */
+class RequestRegistry {
+
+    private final Map<Context, Set<RequestHandle>> contextHandles = new WeakHashMap<Context, Set<RequestHandle>>();
+    private final Map<Object, Set<RequestHandle>> tagHandles = new HashMap<Object, Set<RequestHandle>>();
+
+    /**
+     * Starts tracking the handle, until its request completes
+     *
+     * @param context   the Android Context which initiated the request, can be null
+     * @param handle    handle of the request
+     * @param request   the request, whose completion unregisters the handle
+     */
+    void register(Context context, final RequestHandle handle, AsyncHttpRequest request) {
+        synchronized (this) {
+            handle.registry = this;
+            handle.isRegistered = true;
+            if (context != null) {
+                handle.registeredContext = new WeakReference<Context>(context);
+                add(contextHandles, context, handle);
+            }
+            Object tag = handle.getTag();
+            if (tag != null) {
+                handle.registeredTag = tag;
+                add(tagHandles, tag, handle);
+            }
+        }
+
+        request.addCompletionListener(new Runnable() {
+            @Override
+            public void run() {
+                unregister(handle);
+            }
+        });
+    }
+
+    /**
+     * Stops tracking the handle
+     *
+     * @param handle handle of completed or cancelled request
+     */
+    synchronized void unregister(RequestHandle handle) {
+        if (handle.registry != this || !handle.isRegistered) {
+            return;
+        }
+        handle.isRegistered = false;
+        Context context = handle.registeredContext == null ? null : handle.registeredContext.get();
+        if (context != null) {
+            remove(contextHandles, context, handle);
+        }
+        if (handle.registeredTag != null) {
+            remove(tagHandles, handle.registeredTag, handle);
+            handle.registeredTag = null;
+        }
+    }
+
+    /**
+     * Moves the handle within the TAG index, after its TAG has been changed
+     *
+     * @param handle handle with new TAG
+     */
+    synchronized void onTagChanged(RequestHandle handle) {
+        if (handle.registry != this || !handle.isRegistered) {
+            return;
+        }
+        if (handle.registeredTag != null) {
+            remove(tagHandles, handle.registeredTag, handle);
+        }
+        handle.registeredTag = handle.getTag();
+        if (handle.registeredTag != null) {
+            add(tagHandles, handle.registeredTag, handle);
+        }
+    }
+
+    /**
+     * Returns handles of the Context, and stops tracking them
+     *
+     * @param context the Android Context
+     * @return unfinished handles initiated by the Context
+     */
+    synchronized List<RequestHandle> removeByContext(Context context) {
+        Set<RequestHandle> handles = contextHandles.get(context);
+        if (handles == null) {
+            return new ArrayList<RequestHandle>();
+        }
+        List<RequestHandle> result = new ArrayList<RequestHandle>(handles);
+        for (RequestHandle handle : result) {
+            unregister(handle);
+        }
+        return result;
+    }
+
+    /**
+     * Returns handles of all Contexts, and stops tracking them
+     *
+     * @return unfinished handles initiated by any Context
+     */
+    synchronized List<RequestHandle> removeAllContexts() {
+        List<RequestHandle> result = new ArrayList<RequestHandle>();
+        for (Set<RequestHandle> handles : contextHandles.values()) {
+            result.addAll(handles);
+        }
+        for (RequestHandle handle : result) {
+            unregister(handle);
+        }
+        return result;
+    }
+
+    /**
+     * Returns handles with given TAG
+     *
+     * @param tag TAG to be matched
+     * @return unfinished handles with the TAG
+     */
+    synchronized List<RequestHandle> getByTag(Object tag) {
+        Set<RequestHandle> handles = tagHandles.get(tag);
+        return handles == null ? new ArrayList<RequestHandle>() : new ArrayList<RequestHandle>(handles);
+    }
+
+    private static <K> void add(Map<K, Set<RequestHandle>> index, K key, RequestHandle handle) {
+        Set<RequestHandle> handles = index.get(key);
+        if (handles == null) {
+            handles = new HashSet<RequestHandle>();
+            index.put(key, handles);
+        }
+        handles.add(handle);
+    }
+
+    private static <K> void remove(Map<K, Set<RequestHandle>> index, K key, RequestHandle handle) {
+        Set<RequestHandle> handles = index.get(key);
+        if (handles != null && handles.remove(handle) && handles.isEmpty()) {
+            index.remove(key);
+        }
+    }
+}
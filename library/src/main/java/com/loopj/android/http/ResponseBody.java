@@ -0,0 +1,307 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * Response body held in memory while it's small, and spilled to temporary file once it grows
+ * over memory threshold, so that heap usage stays predictable regardless of response size. The
+ * body reads the same either way: as stream, as read-only {@link ByteBuffer}, which maps the
+ * file into memory instead of loading it, or as byte array.
+ * <p>&nbsp;</p>
+ * In-memory body is stored in {@link PooledBuffer}. The body is reference counted, its buffers
+ * return to the pool and its file is deleted once every holder has called {@link #release()}.
+ * Response handlers receive it in {@link AsyncHttpResponseHandler#getResponseData(ResponseBody)}.
+ *
+ * @see AsyncHttpResponseHandler#setMemoryThreshold(long)
+ */
+public final class ResponseBody {
+
+    private static final String LOG_TAG = "ResponseBody";
+    private static final String FILE_PREFIX = "response";
+    private static final String FILE_SUFFIX = ".body";
+    // files not modified for this long are not in use by any other process either
+    private static final long STALE_FILE_AGE = 60 * 60 * 1000;
+    // directories already cleaned of files left behind by earlier processes
+    private static final Set<String> cleanedDirectories = new HashSet<String>();
+
+    private final BufferPool pool;
+    private final long memoryThreshold;
+    private final File spillDirectory;
+    private PooledBuffer memory;
+    private File file;
+    private OutputStream fileOut;
+    private byte[] spillBuffer;
+    private long length;
+    private int refCount = 1;
+
+    /**
+     * Creates new empty body
+     *
+     * @param pool            pool to take buffers from
+     * @param contentLength   expected length of the body, or negative value if unknown
+     * @param memoryThreshold length over which the body is moved to file
+     * @param spillDirectory  directory for the file, or null for default temporary directory
+     * @throws IOException if the body is known to be over the threshold and creating the file
+     *                     fails
+     */
+    ResponseBody(BufferPool pool, long contentLength, long memoryThreshold, File spillDirectory) throws IOException {
+        this.pool = pool;
+        this.memoryThreshold = memoryThreshold;
+        this.spillDirectory = spillDirectory;
+        if (contentLength > memoryThreshold) {
+            spill();
+        } else {
+            this.memory = new PooledBuffer(pool, contentLength <= 0 ? AsyncHttpResponseHandler.BUFFER_SIZE : (int) contentLength);
+        }
+    }
+
+    private void spill() throws IOException {
+        deleteStaleFiles(spillDirectory);
+        file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, spillDirectory);
+        fileOut = new FileOutputStream(file);
+        spillBuffer = pool.acquire(BufferPool.MAX_SEGMENT_SIZE);
+        if (memory != null) {
+            AsyncHttpClient.log.d(LOG_TAG, "Spilling body over " + memoryThreshold + " bytes to " + file);
+            memory.writeTo(fileOut);
+            memory.release();
+            memory = null;
+        }
+    }
+
+    /**
+     * Deletes spilled files of bodies never released, such as bodies of messages discarded by
+     * quitting looper, or left behind by process killed while handling them. Runs once per
+     * directory, before the first body is spilled there, so no file of this process is in use.
+     *
+     * @param directory spill directory, or null for default temporary directory
+     */
+    private static synchronized void deleteStaleFiles(File directory) {
+        File _directory = directory != null ? directory : new File(System.getProperty("java.io.tmpdir"));
+        if (!cleanedDirectories.add(_directory.getAbsolutePath())) {
+            return;
+        }
+        File[] files = _directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long staleTime = System.currentTimeMillis() - STALE_FILE_AGE;
+        for (File stale : files) {
+            String name = stale.getName();
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX) && stale.lastModified() < staleTime) {
+                if (stale.delete()) {
+                    AsyncHttpClient.log.d(LOG_TAG, "Deleted stale " + stale);
+                } else {
+                    AsyncHttpClient.log.w(LOG_TAG, "Cannot delete stale " + stale);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads once from the stream into the body
+     *
+     * @param instream stream to read from
+     * @return number of bytes read, or -1 at end of stream
+     * @throws IOException if reading or writing the file fails
+     */
+    int readFrom(InputStream instream) throws IOException {
+        int count;
+        if (memory != null && memory.length() < memoryThreshold) {
+            count = memory.readFrom(instream);
+        } else {
+            if (memory != null) {
+                spill();
+            }
+            count = instream.read(spillBuffer);
+            if (count > 0) {
+                fileOut.write(spillBuffer, 0, count);
+            }
+        }
+        if (count > 0) {
+            length += count;
+        }
+        return count;
+    }
+
+    /**
+     * Ends writing of the body, closing its file
+     *
+     * @throws IOException if flushing the file fails
+     */
+    void finish() throws IOException {
+        if (fileOut != null) {
+            OutputStream _fileOut = fileOut;
+            fileOut = null;
+            pool.release(spillBuffer);
+            spillBuffer = null;
+            _fileOut.close();
+        }
+    }
+
+    /**
+     * Returns number of bytes in the body
+     *
+     * @return length of the body
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns whether the body is held in memory
+     *
+     * @return false if the body has been spilled to file
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Returns file the body has been spilled to, valid only until the body is released
+     *
+     * @return the file, or null if the body is held in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens stream reading the body from its start
+     *
+     * @return new stream, to be closed by caller
+     * @throws IOException if opening the file fails
+     */
+    public InputStream openStream() throws IOException {
+        checkReleased();
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        Vector<InputStream> segments = new Vector<InputStream>();
+        for (int i = 0; i < memory.getSegmentCount(); i++) {
+            segments.add(new ByteArrayInputStream(memory.getSegment(i), 0, memory.getSegmentLength(i)));
+        }
+        return new SequenceInputStream(segments.elements());
+    }
+
+    /**
+     * Returns read-only view of the body, valid only until the body is released. Spilled body
+     * is mapped into memory, see {@link FileChannel#map(FileChannel.MapMode, long, long)}, in
+     * memory one is viewed as by {@link PooledBuffer#toByteBuffer()}.
+     *
+     * @return buffer positioned at start of the body, limited by its end
+     * @throws IOException if mapping the file fails, or it's too large to be mapped
+     */
+    public ByteBuffer toByteBuffer() throws IOException {
+        checkReleased();
+        if (file == null) {
+            return memory.toByteBuffer();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Body of " + length + " bytes too large to be mapped");
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the body as array, loading it from file if it has been spilled
+     *
+     * @return array of {@link #length()} bytes
+     * @throws IOException if reading the file fails, or the body is too large for an array
+     */
+    public byte[] toByteArray() throws IOException {
+        checkReleased();
+        if (file == null) {
+            return memory.toByteArray();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Body of " + length + " bytes too large to be buffered in memory");
+        }
+        byte[] result = new byte[(int) length];
+        DataInputStream instream = new DataInputStream(new FileInputStream(file));
+        try {
+            instream.readFully(result);
+        } finally {
+            AsyncHttpClient.silentCloseInputStream(instream);
+        }
+        return result;
+    }
+
+    /**
+     * Adds reference to the body, to be dropped by {@link #release()}
+     *
+     * @return this body
+     */
+    public synchronized ResponseBody retain() {
+        checkReleased();
+        refCount++;
+        return this;
+    }
+
+    /**
+     * Drops reference to the body, returning its buffers to the pool, or deleting its file,
+     * when the last reference is dropped
+     */
+    public void release() {
+        synchronized (this) {
+            if (refCount == 0 || --refCount > 0) {
+                return;
+            }
+        }
+        if (memory != null) {
+            memory.release();
+        }
+        if (fileOut != null) {
+            AsyncHttpClient.silentCloseOutputStream(fileOut);
+            fileOut = null;
+            pool.release(spillBuffer);
+            spillBuffer = null;
+        }
+        if (file != null && !file.delete()) {
+            AsyncHttpClient.log.w(LOG_TAG, "Cannot delete " + file);
+        }
+    }
+
+    private synchronized void checkReleased() {
+        if (refCount == 0) {
+            throw new IllegalStateException("Body has been released");
+        }
+    }
+}
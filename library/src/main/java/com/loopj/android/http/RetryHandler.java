@@ -55,8 +55,13 @@ class RetryHandler implements HttpRequestRetryHandler {
         exceptionBlacklist.add(InterruptedIOException.class);
         // never retry SSL handshake failures
         exceptionBlacklist.add(SSLException.class);
+        // the response would be as large again
+        exceptionBlacklist.add(ResponseTooLargeException.class);
     }
 
+    // deadline of the request being executed by the current thread, see AsyncHttpRequest#setDeadline
+    private final static ThreadLocal<Long> requestDeadline = new ThreadLocal<Long>();
+
     private final int maxRetries;
     private final int retrySleepTimeMS;
 
@@ -73,6 +78,20 @@ class RetryHandler implements HttpRequestRetryHandler {
         exceptionBlacklist.add(cls);
     }
 
+    /**
+     * Sets deadline of the request executed by the calling thread, retries which would not
+     * complete before it are not made
+     *
+     * @param deadline deadline in milliseconds since epoch, or 0 if there is none
+     */
+    static void setDeadline(long deadline) {
+        if (deadline > 0) {
+            requestDeadline.set(deadline);
+        } else {
+            requestDeadline.remove();
+        }
+    }
+
     @Override
     public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
         boolean retry = true;
@@ -102,6 +121,14 @@ class RetryHandler implements HttpRequestRetryHandler {
             }
         }
 
+        if (retry) {
+            // do not sleep just to find out, that there is no time left for the retry
+            Long deadline = requestDeadline.get();
+            if (deadline != null && System.currentTimeMillis() + retrySleepTimeMS >= deadline) {
+                retry = false;
+            }
+        }
+
         if (retry) {
             SystemClock.sleep(retrySleepTimeMS);
         } else {
@@ -129,10 +129,14 @@ class SimpleMultipartEntity implements HttpEntity {
         out.write(CR_LF);
 
         // Stream (file)
-        final byte[] tmp = new byte[4096];
-        int l;
-        while ((l = inputStream.read(tmp)) != -1) {
-            out.write(tmp, 0, l);
+        final byte[] tmp = BufferPool.getDefault().acquire(4096);
+        try {
+            int l;
+            while ((l = inputStream.read(tmp)) != -1) {
+                out.write(tmp, 0, l);
+            }
+        } finally {
+            BufferPool.getDefault().release(tmp);
         }
 
         out.write(CR_LF);
@@ -282,11 +286,15 @@ class SimpleMultipartEntity implements HttpEntity {
             updateProgress(header.length);
 
             FileInputStream inputStream = new FileInputStream(file);
-            final byte[] tmp = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(tmp)) != -1) {
-                out.write(tmp, 0, bytesRead);
-                updateProgress(bytesRead);
+            final byte[] tmp = BufferPool.getDefault().acquire(4096);
+            try {
+                int bytesRead;
+                while ((bytesRead = inputStream.read(tmp)) != -1) {
+                    out.write(tmp, 0, bytesRead);
+                    updateProgress(bytesRead);
+                }
+            } finally {
+                BufferPool.getDefault().release(tmp);
             }
             out.write(CR_LF);
             updateProgress(CR_LF.length);
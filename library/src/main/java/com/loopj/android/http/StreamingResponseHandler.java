@@ -0,0 +1,216 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpEntity;
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.StatusLine;
+import cz.msebera.android.httpclient.client.HttpResponseException;
+
+/**
+ * Used to consume response body incrementally, as it arrives, instead of having it buffered
+ * whole. {@link #onStream(int, Header[], InputStream)} is fired on the thread executing the
+ * request, with live stream of the (already decompressed) body, so it can be parsed, transformed
+ * or persisted in constant memory. The stream is closed once the method returns, and closing it
+ * before the end of the body aborts the connection instead of reading the rest of the body.
+ * Cancelling the request makes further reads of the stream fail with {@link
+ * InterruptedIOException}.
+ * <p>&nbsp;</p>
+ * Afterwards, {@link #onSuccess(int, Header[], byte[])} or {@link #onFailure(int, Header[],
+ * byte[], Throwable)} are fired as usual, without response body, which has been consumed
+ * already. Progress of reading the stream is reported by {@link #onProgress(long, long)}.
+ * <p>&nbsp;</p>
+ * For example: <p>&nbsp;</p>
+ * <pre>
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.get("https://www.example.com/export.csv", new StreamingResponseHandler() {
+ *     &#064;Override
+ *     public void onStream(int statusCode, Header[] headers, InputStream body) throws IOException {
+ *         // Runs on worker thread, read body line by line
+ *     }
+ *
+ *     &#064;Override
+ *     public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+ *         // Body has been processed, responseBody is null
+ *     }
+ *
+ *     &#064;Override
+ *     public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+ *         // Request failed
+ *     }
+ * });
+ * </pre>
+ */
+public abstract class StreamingResponseHandler extends AsyncHttpResponseHandler {
+
+    private static final String LOG_TAG = "StreamingRH";
+
+    /**
+     * Creates a new StreamingResponseHandler
+     */
+    public StreamingResponseHandler() {
+        super();
+    }
+
+    /**
+     * Creates a new StreamingResponseHandler and decide whether the callbacks will be fired on
+     * current thread's looper or the pool thread's.
+     *
+     * @param usePoolThread Whether to use the pool's thread to fire callbacks
+     */
+    public StreamingResponseHandler(boolean usePoolThread) {
+        super(usePoolThread);
+    }
+
+    /**
+     * Fired on the thread executing the request, when response arrives, regardless of its status
+     * code. The stream must not be used after this method returns.
+     *
+     * @param statusCode the status code of the response
+     * @param headers    return headers, if any
+     * @param body       live stream of the response body, empty if the response has none
+     * @throws IOException if reading or processing the body fails, the request then fails or is
+     *                     retried as with any other I/O error
+     */
+    public abstract void onStream(int statusCode, Header[] headers, InputStream body) throws IOException;
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        sendResponseMessage(response, null);
+    }
+
+    /**
+     * Hands over the response body to {@link #onStream(int, Header[], InputStream)}, then
+     * reports success or failure
+     *
+     * @param response response to the request
+     * @param request  request, which cancellation stops the stream, can be null
+     */
+    void sendResponseMessage(HttpResponse response, AsyncHttpRequest request) throws IOException {
+        // do not process if request has been cancelled
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        InputStream instream = entity == null ? null : entity.getContent();
+        LiveInputStream body = new LiveInputStream(instream != null ? instream : new ByteArrayInputStream(new byte[0]), request, entity == null ? 0 : entity.getContentLength());
+        try {
+            onStream(status.getStatusCode(), response.getAllHeaders(), body);
+        } finally {
+            body.close();
+        }
+        if (!Thread.currentThread().isInterrupted() && (request == null || !request.isCancelRequested())) {
+            if (status.getStatusCode() >= 300) {
+                sendFailureMessage(status.getStatusCode(), response.getAllHeaders(), null, new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()));
+            } else {
+                sendSuccessMessage(status.getStatusCode(), response.getAllHeaders(), null);
+            }
+        }
+    }
+
+    /**
+     * Response body stream, failing reads once the request is cancelled, and giving up the
+     * connection when closed before the end of the body
+     */
+    private class LiveInputStream extends FilterInputStream {
+
+        private final AsyncHttpRequest request;
+        private final long contentLength;
+        private long count;
+        private boolean isEof;
+        private boolean isClosed;
+
+        LiveInputStream(InputStream in, AsyncHttpRequest request, long contentLength) {
+            super(in);
+            this.request = request;
+            this.contentLength = contentLength;
+        }
+
+        private void checkCancelled() throws IOException {
+            if (isClosed) {
+                throw new IOException("Stream closed");
+            }
+            if ((request != null && request.isCancelRequested()) || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Request cancelled");
+            }
+        }
+
+        private int onRead(int read) {
+            if (read < 0) {
+                if (!isEof) {
+                    isEof = true;
+                    flushProgressMessage();
+                }
+            } else {
+                count += read;
+                sendProgressMessage(count, contentLength <= 0 ? 1 : contentLength);
+            }
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            int b = super.read();
+            onRead(b < 0 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            checkCancelled();
+            return onRead(super.read(buffer, offset, length));
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkCancelled();
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (!isEof && (contentLength < 0 || count < contentLength) && request != null) {
+                // reading the rest of the body just to reuse the connection could take long
+                AsyncHttpClient.log.d(LOG_TAG, "Body not read to the end, aborting connection");
+                request.abort();
+            }
+            AsyncHttpClient.silentCloseInputStream(in);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Enumeration;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import cz.msebera.android.httpclient.conn.ssl.X509HostnameVerifier;
+
+/**
+ * Client side TLS session cache of single SSLContext, letting new connections to recently
+ * contacted host and port resume the negotiated session with abbreviated handshake, instead of
+ * doing full handshake with certificate exchange and key agreement every time. Sessions are kept
+ * by the SSLContext itself, keyed by host and port the socket was layered for; this class bounds
+ * the cache size and session lifetime, and counts full and resumed handshakes of sockets created
+ * by the owning socket factory.
+ * <p>&nbsp;</p>
+ * Owned by {@link MySSLSocketFactory} and {@link CachingSSLSocketFactory}, reachable by {@link
+ * AsyncHttpClient#getTlsSessionCache()}.
+ */
+public class TlsSessionCache {
+
+    public static final int DEFAULT_CACHE_SIZE = 32;
+    public static final int DEFAULT_SESSION_TIMEOUT = 8 * 60 * 60;
+
+    private static final String LOG_TAG = "TlsSessionCache";
+
+    private final SSLSessionContext sessionContext;
+    private long fullHandshakeCount;
+    private long resumedHandshakeCount;
+
+    /**
+     * Creates new TlsSessionCache with default limits
+     *
+     * @param sslContext initialized SSLContext, whose client sessions are to be cached
+     */
+    public TlsSessionCache(SSLContext sslContext) {
+        this(sslContext, DEFAULT_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Creates new TlsSessionCache
+     *
+     * @param sslContext     initialized SSLContext, whose client sessions are to be cached
+     * @param cacheSize      maximum number of cached sessions, 0 for no limit
+     * @param sessionTimeout time in seconds session can be resumed for, 0 for no limit
+     */
+    public TlsSessionCache(SSLContext sslContext, int cacheSize, int sessionTimeout) {
+        Utils.notNull(sslContext, "sslContext");
+        this.sessionContext = sslContext.getClientSessionContext();
+        setCacheSize(cacheSize);
+        setSessionTimeout(sessionTimeout);
+    }
+
+    /**
+     * Sets maximum number of cached sessions, least recently used are dropped first
+     *
+     * @param cacheSize maximum number of sessions, 0 for no limit
+     */
+    public void setCacheSize(int cacheSize) {
+        Utils.asserts(cacheSize >= 0, "cacheSize must not be negative");
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(cacheSize);
+        }
+    }
+
+    /**
+     * Returns maximum number of cached sessions
+     *
+     * @return maximum number of sessions, 0 for no limit
+     */
+    public int getCacheSize() {
+        return sessionContext == null ? 0 : sessionContext.getSessionCacheSize();
+    }
+
+    /**
+     * Sets time, for which negotiated session can be resumed. Servers may expire sessions sooner.
+     *
+     * @param sessionTimeout time in seconds, 0 for no limit
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        Utils.asserts(sessionTimeout >= 0, "sessionTimeout must not be negative");
+        if (sessionContext != null) {
+            sessionContext.setSessionTimeout(sessionTimeout);
+        }
+    }
+
+    /**
+     * Returns time, for which negotiated session can be resumed
+     *
+     * @return time in seconds, 0 for no limit
+     */
+    public int getSessionTimeout() {
+        return sessionContext == null ? 0 : sessionContext.getSessionTimeout();
+    }
+
+    /**
+     * Invalidates all cached sessions, so next connection to any host does full handshake, i.e.
+     * after trusted certificates or client credentials have changed
+     */
+    public void clear() {
+        if (sessionContext == null) {
+            return;
+        }
+        Enumeration<byte[]> ids = sessionContext.getIds();
+        while (ids.hasMoreElements()) {
+            SSLSession session = sessionContext.getSession(ids.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Returns number of handshakes, which negotiated new session
+     *
+     * @return number of full handshakes
+     */
+    public synchronized long getFullHandshakeCount() {
+        return fullHandshakeCount;
+    }
+
+    /**
+     * Returns number of handshakes, which resumed cached session
+     *
+     * @return number of abbreviated handshakes
+     */
+    public synchronized long getResumedHandshakeCount() {
+        return resumedHandshakeCount;
+    }
+
+    /**
+     * Returns part of handshakes, which resumed cached session
+     *
+     * @return resumption rate between 0 and 1, or 0 if no handshake has been done yet
+     */
+    public synchronized double getResumptionRate() {
+        long total = fullHandshakeCount + resumedHandshakeCount;
+        return total == 0 ? 0 : (double) resumedHandshakeCount / total;
+    }
+
+    /**
+     * Starts counting handshake of the socket, must be called before the handshake starts
+     *
+     * @param socket socket created by the owning socket factory
+     * @return the same socket
+     */
+    Socket track(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            final long createdAt = System.currentTimeMillis();
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    event.getSocket().removeHandshakeCompletedListener(this);
+                    // resumed session was created by some earlier handshake
+                    onHandshake(event.getSession().getCreationTime() < createdAt);
+                }
+            });
+        }
+        return socket;
+    }
+
+    /**
+     * Does the handshake of layered socket and verifies the host name, closing the socket if
+     * either fails
+     *
+     * @param socket   socket layered over connected plain socket
+     * @param host     host name the socket was layered for
+     * @param verifier host name verifier of the owning socket factory
+     * @throws IOException if the handshake fails or the host name doesn't match
+     */
+    static void handshake(SSLSocket socket, String host, X509HostnameVerifier verifier) throws IOException {
+        try {
+            socket.startHandshake();
+            verifier.verify(host, socket);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void onHandshake(boolean isResumed) {
+        if (isResumed) {
+            resumedHandshakeCount++;
+        } else {
+            fullHandshakeCount++;
+        }
+        AsyncHttpClient.log.v(LOG_TAG, isResumed ? "TLS session resumed" : "Full TLS handshake");
+    }
+}
@@ -0,0 +1,57 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    https://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.client.methods.HttpUriRequest;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+/**
+ * Engine actually executing requests of {@link AsyncHttpRequest}, so engines other than Apache
+ * HttpClient can be plugged into {@link AsyncHttpClient} by {@link
+ * AsyncHttpClient#setTransport(Transport)}, without any change of response handlers. Default
+ * engine is {@link HttpClientTransport}.
+ * <p>&nbsp;</p>
+ * Implementations must be thread-safe, as requests are executed concurrently. Cancelled request
+ * is aborted by {@link HttpUriRequest#abort()}, implementations should therefore register {@link
+ * cz.msebera.android.httpclient.concurrent.Cancellable} with requests extending {@link
+ * cz.msebera.android.httpclient.client.methods.HttpRequestBase}, to close their connection.
+ */
+public interface Transport {
+
+    /**
+     * Executes single attempt of the request, blocking until the response headers are received.
+     * Retries are handled by the caller.
+     *
+     * @param request request to be sent, including its headers and entity
+     * @param context HttpContext of the client, shared by all of its requests
+     * @return response, whose entity is read by response handler, and has to release underlying
+     * connection once it's consumed or closed
+     * @throws IOException if the request could not be sent, or the response could not be received
+     */
+    HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException;
+
+    /**
+     * Releases resources held by this transport, such as connections and threads. Requests
+     * executed afterwards may fail.
+     */
+    void shutdown();
+}